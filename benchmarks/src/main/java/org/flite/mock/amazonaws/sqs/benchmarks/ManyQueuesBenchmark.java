@@ -0,0 +1,100 @@
+package org.flite.mock.amazonaws.sqs.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.flite.mock.amazonaws.sqs.AmazonSQSMock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+/**
+ * Operations spread over many queues, as in multi-tenant test setups. Queues are named
+ * "tenant-NNN-queue-NNNNN" with tenantCount tenants, so listing one tenant's prefix
+ * returns queueCount / tenantCount queues.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class ManyQueuesBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    public int queueCount;
+
+    @Param({"10"})
+    public int tenantCount;
+
+    private AmazonSQSMock sqs;
+    private String[] queueUrls;
+    private String body;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrls = new String[queueCount];
+        for (int ix = 0; ix < queueCount; ix++) {
+            queueUrls[ix] = sqs.createQueue(new CreateQueueRequest(queueName(ix))).getQueueUrl();
+        }
+        body = Payloads.body(256);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    private String queueName(final int ix) {
+        return String.format("tenant-%03d-queue-%05d", ix % tenantCount, ix);
+    }
+
+    private String randomQueue() {
+        return queueUrls[ThreadLocalRandom.current().nextInt(queueCount)];
+    }
+
+    @Benchmark
+    public void sendReceiveDeleteRandomQueue() {
+        final String queueUrl = randomQueue();
+        sqs.sendMessage(new SendMessageRequest(queueUrl, body));
+        for (final Message msg : sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1)).getMessages()) {
+            sqs.deleteMessage(new DeleteMessageRequest(queueUrl, msg.getReceiptHandle()));
+        }
+    }
+
+    @Benchmark
+    public Object getQueueAttributesRandomQueue() {
+        return sqs.getQueueAttributes(new GetQueueAttributesRequest(randomQueue())
+                .withAttributeNames("ApproximateNumberOfMessages", "ApproximateNumberOfMessagesNotVisible"));
+    }
+
+    @Benchmark
+    public Object listQueuesTenantPrefix() {
+        final String prefix = String.format("tenant-%03d-", ThreadLocalRandom.current().nextInt(tenantCount));
+        return sqs.listQueues(new ListQueuesRequest(prefix));
+    }
+
+    @Benchmark
+    public Object listQueuesSingleQueue() {
+        return sqs.listQueues(new ListQueuesRequest(queueName(ThreadLocalRandom.current().nextInt(queueCount))));
+    }
+}
@@ -0,0 +1,14 @@
+package org.flite.mock.amazonaws.sqs.benchmarks;
+
+import java.util.Arrays;
+
+final class Payloads {
+
+    private Payloads() { }
+
+    static String body(final int size) {
+        final char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+}
@@ -0,0 +1,81 @@
+package org.flite.mock.amazonaws.sqs.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.flite.mock.amazonaws.sqs.AmazonSQSMock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+/**
+ * Producers and consumers hammering one queue at the same time.
+ *
+ * The thread split defaults to one producer and one consumer; use -tg to change it, e.g.
+ * "-tg 8,8" or "-tg 1,16". Consumers that find the queue empty still count as an operation,
+ * so compare the produce and consume rates rather than reading either on its own.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Group)
+public class ProducerConsumerBenchmark {
+
+    @Param({"256"})
+    public int bodySize;
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+    private String body;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        // A fresh mock per iteration, so a producer that outruns its consumers cannot fill the heap
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue(new CreateQueueRequest("benchmark-queue")).getQueueUrl();
+        body = Payloads.body(bodySize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Benchmark
+    @Group("pipeline")
+    @GroupThreads(1)
+    public Object produce() {
+        return sqs.sendMessage(new SendMessageRequest(queueUrl, body));
+    }
+
+    @Benchmark
+    @Group("pipeline")
+    @GroupThreads(1)
+    public int consume() {
+        int received = 0;
+        for (final Message msg : sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(10)).getMessages()) {
+            sqs.deleteMessage(new DeleteMessageRequest(queueUrl, msg.getReceiptHandle()));
+            received++;
+        }
+        return received;
+    }
+}
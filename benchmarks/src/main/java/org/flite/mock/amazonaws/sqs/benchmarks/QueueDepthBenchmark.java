@@ -0,0 +1,110 @@
+package org.flite.mock.amazonaws.sqs.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.flite.mock.amazonaws.sqs.AmazonSQSMock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+/**
+ * Per-operation cost of the hot paths against a single queue that is kept at a fixed depth,
+ * to show how each operation scales with the number of messages already queued.
+ *
+ * Both throughput and sampled latency (with percentiles) are reported. Run with -t N to
+ * measure the same operations under contention from N threads.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class QueueDepthBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int queueDepth;
+
+    @Param({"256"})
+    public int bodySize;
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+    private String body;
+    private GetQueueAttributesRequest attributesRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue(new CreateQueueRequest("benchmark-queue")).getQueueUrl();
+        body = Payloads.body(bodySize);
+        attributesRequest = new GetQueueAttributesRequest(queueUrl)
+                .withAttributeNames("ApproximateNumberOfMessages", "ApproximateNumberOfMessagesNotVisible");
+
+        final List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+        for (int ix = 0; ix < queueDepth; ix++) {
+            entries.add(new SendMessageBatchRequestEntry("e" + entries.size(), body));
+            if (entries.size() == 10 || ix == queueDepth - 1) {
+                sqs.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
+                entries.clear();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    /**
+     * One message in, one message out, so the depth stays where the parameter put it.
+     */
+    @Benchmark
+    public void sendReceiveDelete() {
+        sqs.sendMessage(new SendMessageRequest(queueUrl, body));
+        for (final Message msg : sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1)).getMessages()) {
+            sqs.deleteMessage(new DeleteMessageRequest(queueUrl, msg.getReceiptHandle()));
+        }
+    }
+
+    /**
+     * Ten messages in with one batch, ten out with one receive.
+     */
+    @Benchmark
+    public int sendBatchReceiveTen() {
+        final List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(10);
+        for (int ix = 0; ix < 10; ix++) { entries.add(new SendMessageBatchRequestEntry("e" + ix, body)); }
+        sqs.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
+        final List<Message> msgs = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(10)).getMessages();
+        for (final Message msg : msgs) {
+            sqs.deleteMessage(new DeleteMessageRequest(queueUrl, msg.getReceiptHandle()));
+        }
+        return msgs.size();
+    }
+
+    @Benchmark
+    public Object getQueueAttributes() {
+        return sqs.getQueueAttributes(attributesRequest);
+    }
+}
@@ -0,0 +1,326 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.AddPermissionRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.ListDeadLetterSourceQueuesRequest;
+import com.amazonaws.services.sqs.model.ListDeadLetterSourceQueuesResult;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.RemovePermissionRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+
+/**
+ * An {@link AmazonSQSMock} that also implements {@link AmazonSQSAsync}, without a thread pool.
+ *
+ * Every *Async call runs on the calling thread and returns a future that is already complete,
+ * after the AsyncHandler, if any, has been called; a failure calls onError and fails the future,
+ * as the SDK's async client does. The one exception is a receive that finds its queue empty and
+ * has a wait time: it returns a pending future and holds no thread while it waits. It completes
+ * on the thread that sends the message it receives, or on the timer thread when the wait runs
+ * out with nothing received.
+ *
+ * To keep handlers for those waiting receives off senders' threads, pass an executor; on Java
+ * 21, Executors.newVirtualThreadPerTaskExecutor() gives each completion its own virtual thread.
+ * The executor is not shut down by {@link #shutdown()}.
+ */
+public class AmazonSQSAsyncMock extends AmazonSQSMock implements AmazonSQSAsync {
+
+    private final Executor executor;
+
+    public AmazonSQSAsyncMock() {
+        this(null);
+    }
+
+    /**
+     * @param executor runs the completion of every receive that had to wait, or null to run it on the completing thread
+     */
+    public AmazonSQSAsyncMock(final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a durable mock over the data directory; see {@link AmazonSQSMock#AmazonSQSMock(File)}.
+     *
+     * @param executor runs the completion of every receive that had to wait, or null to run it on the completing thread
+     */
+    public AmazonSQSAsyncMock(final File dataDirectory, final Executor executor) {
+        super(dataDirectory);
+        this.executor = executor;
+    }
+
+    public Future<ReceiveMessageResult> receiveMessageAsync(final ReceiveMessageRequest request) {
+        return receiveMessageAsync(request, null);
+    }
+
+    public Future<ReceiveMessageResult> receiveMessageAsync(final ReceiveMessageRequest request,
+                                                            final AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler) {
+        final ReceiveMessageResult result = new ReceiveMessageResult();
+        final PendingReceive pending;
+        try {
+            pending = receiveOrWait(request, result, handler, executor);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return pending != null ? pending.future : succeeded(request, handler, result);
+    }
+
+    public Future<Void> setQueueAttributesAsync(final SetQueueAttributesRequest request) {
+        return setQueueAttributesAsync(request, null);
+    }
+
+    public Future<Void> setQueueAttributesAsync(final SetQueueAttributesRequest request, final AsyncHandler<SetQueueAttributesRequest, Void> handler) {
+        try {
+            setQueueAttributes(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, null);
+    }
+
+    public Future<ChangeMessageVisibilityBatchResult> changeMessageVisibilityBatchAsync(final ChangeMessageVisibilityBatchRequest request) {
+        return changeMessageVisibilityBatchAsync(request, null);
+    }
+
+    public Future<ChangeMessageVisibilityBatchResult> changeMessageVisibilityBatchAsync(final ChangeMessageVisibilityBatchRequest request, final AsyncHandler<ChangeMessageVisibilityBatchRequest, ChangeMessageVisibilityBatchResult> handler) {
+        final ChangeMessageVisibilityBatchResult result;
+        try {
+            result = changeMessageVisibilityBatch(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, result);
+    }
+
+    public Future<Void> changeMessageVisibilityAsync(final ChangeMessageVisibilityRequest request) {
+        return changeMessageVisibilityAsync(request, null);
+    }
+
+    public Future<Void> changeMessageVisibilityAsync(final ChangeMessageVisibilityRequest request, final AsyncHandler<ChangeMessageVisibilityRequest, Void> handler) {
+        try {
+            changeMessageVisibility(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, null);
+    }
+
+    public Future<GetQueueUrlResult> getQueueUrlAsync(final GetQueueUrlRequest request) {
+        return getQueueUrlAsync(request, null);
+    }
+
+    public Future<GetQueueUrlResult> getQueueUrlAsync(final GetQueueUrlRequest request, final AsyncHandler<GetQueueUrlRequest, GetQueueUrlResult> handler) {
+        final GetQueueUrlResult result;
+        try {
+            result = getQueueUrl(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, result);
+    }
+
+    public Future<Void> removePermissionAsync(final RemovePermissionRequest request) {
+        return removePermissionAsync(request, null);
+    }
+
+    public Future<Void> removePermissionAsync(final RemovePermissionRequest request, final AsyncHandler<RemovePermissionRequest, Void> handler) {
+        try {
+            removePermission(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, null);
+    }
+
+    public Future<GetQueueAttributesResult> getQueueAttributesAsync(final GetQueueAttributesRequest request) {
+        return getQueueAttributesAsync(request, null);
+    }
+
+    public Future<GetQueueAttributesResult> getQueueAttributesAsync(final GetQueueAttributesRequest request, final AsyncHandler<GetQueueAttributesRequest, GetQueueAttributesResult> handler) {
+        final GetQueueAttributesResult result;
+        try {
+            result = getQueueAttributes(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, result);
+    }
+
+    public Future<SendMessageBatchResult> sendMessageBatchAsync(final SendMessageBatchRequest request) {
+        return sendMessageBatchAsync(request, null);
+    }
+
+    public Future<SendMessageBatchResult> sendMessageBatchAsync(final SendMessageBatchRequest request, final AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler) {
+        final SendMessageBatchResult result;
+        try {
+            result = sendMessageBatch(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, result);
+    }
+
+    public Future<Void> purgeQueueAsync(final PurgeQueueRequest request) {
+        return purgeQueueAsync(request, null);
+    }
+
+    public Future<Void> purgeQueueAsync(final PurgeQueueRequest request, final AsyncHandler<PurgeQueueRequest, Void> handler) {
+        try {
+            purgeQueue(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, null);
+    }
+
+    public Future<ListDeadLetterSourceQueuesResult> listDeadLetterSourceQueuesAsync(final ListDeadLetterSourceQueuesRequest request) {
+        return listDeadLetterSourceQueuesAsync(request, null);
+    }
+
+    public Future<ListDeadLetterSourceQueuesResult> listDeadLetterSourceQueuesAsync(final ListDeadLetterSourceQueuesRequest request, final AsyncHandler<ListDeadLetterSourceQueuesRequest, ListDeadLetterSourceQueuesResult> handler) {
+        final ListDeadLetterSourceQueuesResult result;
+        try {
+            result = listDeadLetterSourceQueues(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, result);
+    }
+
+    public Future<Void> deleteQueueAsync(final DeleteQueueRequest request) {
+        return deleteQueueAsync(request, null);
+    }
+
+    public Future<Void> deleteQueueAsync(final DeleteQueueRequest request, final AsyncHandler<DeleteQueueRequest, Void> handler) {
+        try {
+            deleteQueue(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, null);
+    }
+
+    public Future<SendMessageResult> sendMessageAsync(final SendMessageRequest request) {
+        return sendMessageAsync(request, null);
+    }
+
+    public Future<SendMessageResult> sendMessageAsync(final SendMessageRequest request, final AsyncHandler<SendMessageRequest, SendMessageResult> handler) {
+        final SendMessageResult result;
+        try {
+            result = sendMessage(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, result);
+    }
+
+    public Future<ListQueuesResult> listQueuesAsync(final ListQueuesRequest request) {
+        return listQueuesAsync(request, null);
+    }
+
+    public Future<ListQueuesResult> listQueuesAsync(final ListQueuesRequest request, final AsyncHandler<ListQueuesRequest, ListQueuesResult> handler) {
+        final ListQueuesResult result;
+        try {
+            result = listQueues(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, result);
+    }
+
+    public Future<DeleteMessageBatchResult> deleteMessageBatchAsync(final DeleteMessageBatchRequest request) {
+        return deleteMessageBatchAsync(request, null);
+    }
+
+    public Future<DeleteMessageBatchResult> deleteMessageBatchAsync(final DeleteMessageBatchRequest request, final AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult> handler) {
+        final DeleteMessageBatchResult result;
+        try {
+            result = deleteMessageBatch(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, result);
+    }
+
+    public Future<CreateQueueResult> createQueueAsync(final CreateQueueRequest request) {
+        return createQueueAsync(request, null);
+    }
+
+    public Future<CreateQueueResult> createQueueAsync(final CreateQueueRequest request, final AsyncHandler<CreateQueueRequest, CreateQueueResult> handler) {
+        final CreateQueueResult result;
+        try {
+            result = createQueue(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, result);
+    }
+
+    public Future<Void> addPermissionAsync(final AddPermissionRequest request) {
+        return addPermissionAsync(request, null);
+    }
+
+    public Future<Void> addPermissionAsync(final AddPermissionRequest request, final AsyncHandler<AddPermissionRequest, Void> handler) {
+        try {
+            addPermission(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, null);
+    }
+
+    public Future<Void> deleteMessageAsync(final DeleteMessageRequest request) {
+        return deleteMessageAsync(request, null);
+    }
+
+    public Future<Void> deleteMessageAsync(final DeleteMessageRequest request, final AsyncHandler<DeleteMessageRequest, Void> handler) {
+        try {
+            deleteMessage(request);
+        } catch (RuntimeException ex) {
+            return failed(handler, ex);
+        }
+        return succeeded(request, handler, null);
+    }
+
+    private static <Q extends AmazonWebServiceRequest, R> Future<R> succeeded(final Q request, final AsyncHandler<Q, R> handler,
+                                                                             final R result) {
+        // As in the SDK's async client, a failing handler fails the future
+        try {
+            if (handler != null) { handler.onSuccess(request, result); }
+        } catch (RuntimeException ex) {
+            return MockFuture.failed(ex);
+        }
+        return MockFuture.succeeded(result);
+    }
+
+    private static <Q extends AmazonWebServiceRequest, R> Future<R> failed(final AsyncHandler<Q, R> handler,
+                                                                          final RuntimeException ex) {
+        if (handler != null) { handler.onError(ex); }
+        return MockFuture.failed(ex);
+    }
+}
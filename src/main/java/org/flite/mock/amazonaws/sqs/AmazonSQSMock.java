@@ -1,43 +1,68 @@
 package org.flite.mock.amazonaws.sqs;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
-
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.StringUtils;
+import org.flite.mock.amazonaws.sqs.Metrics.Operation;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.ResponseMetadata;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.AddPermissionRequest;
+import com.amazonaws.services.sqs.model.BatchEntryIdsNotDistinctException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
 import com.amazonaws.services.sqs.model.CreateQueueResult;
 import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
 import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
 import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.EmptyBatchRequestException;
 import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
 import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
 import com.amazonaws.services.sqs.model.GetQueueUrlResult;
 import com.amazonaws.services.sqs.model.InvalidAttributeNameException;
+import com.amazonaws.services.sqs.model.InvalidBatchEntryIdException;
 import com.amazonaws.services.sqs.model.ListDeadLetterSourceQueuesRequest;
 import com.amazonaws.services.sqs.model.ListDeadLetterSourceQueuesResult;
 import com.amazonaws.services.sqs.model.ListQueuesRequest;
 import com.amazonaws.services.sqs.model.ListQueuesResult;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
 import com.amazonaws.services.sqs.model.PurgeQueueRequest;
 import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
@@ -46,10 +71,11 @@ import com.amazonaws.services.sqs.model.RemovePermissionRequest;
 import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
 import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
 import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageResult;
 import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
-import com.amazonaws.util.Md5Utils;
+import com.amazonaws.services.sqs.model.TooManyEntriesInBatchRequestException;
 
 /**
  * Copyright (c) 2012 Flite, Inc
@@ -73,10 +99,39 @@ import com.amazonaws.util.Md5Utils;
  * THE SOFTWARE.
  *
  *
- * Currently, there is <em>NO</em> plan to implement any time-based features in this mock:
- *  - scheduling
- *  - delays
- *  - retrieved messages returning to the queue
+ * Retrieved messages return to the head of their queue once their visibility timeout
+ * passes, and delayed messages become visible once their delay passes; all timeouts of
+ * one mock instance are driven by a single background timer thread, which is stopped by
+ * {@link #shutdown()}; the mock cannot be used after that.
+ *
+ * By default everything is held in memory only. Given a data directory, the mock journals
+ * every change there and restores its queues, messages and receipt handles when it is next
+ * created over the same directory; {@link #shutdown()} then leaves a snapshot behind, so
+ * the next start has nothing to replay.
+ *
+ * Messages are held in a compact encoded form, and only turned into SDK messages when received.
+ * How many bytes of them each queue, and the mock as a whole, may hold can be capped with
+ * {@link #setQueueMemoryLimit(long)} and {@link #setMemoryLimit(long)}.
+ *
+ * Every call is counted and timed, and every queue keeps counts of its traffic; read them with
+ * {@link #getMetrics()}, or over JMX once {@link #registerMBean(String)} has been called.
+ *
+ * A queue created with FifoQueue set to true, whose name must end in .fifo, is a FIFO queue. As
+ * this SDK has no fields for them, a message's group and deduplication ids are given as the
+ * String message attributes {@link #MESSAGE_GROUP_ID} and {@link #MESSAGE_DEDUPLICATION_ID}; each
+ * group's messages are received in order, and not while an earlier batch of them is in flight,
+ * and a deduplication id seen in the last five minutes is accepted but not delivered again.
+ *
+ * To see how a client copes with a slow, throttled or failing service, give the mock a
+ * {@link FaultProfile}, for every call, one action or one queue: calls are then delayed, throttled
+ * and failed, and batch entries failed, as it says. The older way to force a failure, putting
+ * {@link #MARKER_CLIENT_EXCEPTION} or {@link #MARKER_SERVICE_EXCEPTION} in a queue URL or payload,
+ * still works unless turned off with {@link #setExceptionMarkersEnabled(boolean)}.
+ *
+ * Messages are dropped once they are older than their queue's MessageRetentionPeriod, a sixteenth
+ * of the period at a time. A queue with a RedrivePolicy moves a message to its dead-letter queue
+ * instead of delivering it once it has been received maxReceiveCount times, and purgeQueue empties
+ * a queue at once, however many messages it holds.
  */
 public class AmazonSQSMock implements AmazonSQS {
 
@@ -92,110 +147,580 @@ public class AmazonSQSMock implements AmazonSQS {
     public static final String MESSAGE_ID_PREFIX = "mock-aws-message-id-";
     public static final String RECEIPT_ID_PREFIX = "mock-aws-receipt-id-";
     public static final String ARN_PREFIX = "arn:aws:";
+    public static final int DEFAULT_VISIBILITY_TIMEOUT = 30;
+    public static final int MAX_VISIBILITY_TIMEOUT = 43200;
+    public static final int MAX_WAIT_TIME_SECONDS = 20;
+    public static final int MAX_DELAY_SECONDS = 900;
+    public static final int MAX_BATCH_SIZE = 10;
+    // ListQueues returns at most this many queues, as in SQS
+    public static final int MAX_LISTED_QUEUES = 1000;
+    public static final int MIN_MESSAGE_SIZE = 1024;
+    public static final int MAX_MESSAGE_SIZE = 262144;
+    public static final int MIN_RETENTION_PERIOD = 60;
+    public static final int DEFAULT_RETENTION_PERIOD = 345600;
+    public static final int MAX_RETENTION_PERIOD = 1209600;
+    public static final String MBEAN_DOMAIN = "org.flite.mock.amazonaws.sqs";
+    public static final String FIFO_SUFFIX = ".fifo";
+    public static final String MESSAGE_GROUP_ID = "MessageGroupId";
+    public static final String MESSAGE_DEDUPLICATION_ID = "MessageDeduplicationId";
+    public static final int MAX_FIFO_ID_LENGTH = 128;
+    private static final Pattern BATCH_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,80}");
+
+    private final IdGenerator ids;
+    private ConcurrentMap<String, QueueState> allQueues = new ConcurrentHashMap<String, QueueState>();
+    // The same queues by name, in order, so that listing a prefix only visits the queues it matches
+    private final ConcurrentNavigableMap<String, QueueState> queuesByName = new ConcurrentSkipListMap<String, QueueState>();
+    final TimerWheel timer = new TimerWheel("mock-sqs-timer");
+    private final Journal journal;
+    private final MemoryBudget memory = new MemoryBudget();
+    // The URLs of the queues whose RedrivePolicy targets each dead-letter queue, by the dead-letter queue's URL
+    private final ConcurrentMap<String, Set<String>> deadLetterSources = new ConcurrentHashMap<String, Set<String>>();
+    final Metrics metrics;
+    private volatile ObjectName mbeanName;
+    private volatile boolean exceptionMarkersEnabled = true;
+    private volatile boolean shutDown = false;
+    private final Faults faults = new Faults();
+
+    /**
+     * Creates a mock that keeps everything in memory.
+     */
+    public AmazonSQSMock() {
+        this.ids = new IdGenerator(System.currentTimeMillis() * 1000);
+        this.metrics = new Metrics(ids);
+        this.journal = Journal.NONE;
+    }
+
+    /**
+     * Creates a durable mock, restoring whatever was recorded in the directory (which is created if need be).
+     * Changes are written to the OS before the call making them returns, so they survive the JVM
+     * exiting, but not necessarily the machine going down.
+     */
+    public AmazonSQSMock(final File dataDirectory) {
+        this(dataDirectory, false);
+    }
+
+    /**
+     * @param syncWrites whether to also force every change to the disk before the call making it returns
+     */
+    public AmazonSQSMock(final File dataDirectory, final boolean syncWrites) {
+        final JournalFormat.Recovered recovered;
+        try {
+            recovered = JournalFormat.recover(dataDirectory);
+            this.journal = new FileJournal(dataDirectory, syncWrites, recovered.nextGeneration, recovered.replayedBytes);
+        } catch (IOException ex) {
+            throw new AmazonClientException("Cannot recover from " + dataDirectory, ex);
+        }
+        this.ids = new IdGenerator(Math.max(System.currentTimeMillis() * 1000, recovered.idBound));
+        this.metrics = new Metrics(ids);
+        for (final JournalFormat.RecoveredQueue queue : recovered.queues.values()) { restore(queue); }
+        journal.start(allQueues.values(), ids);
+    }
+
+    private void restore(final JournalFormat.RecoveredQueue recovered) {
+        final QueueState queue = new QueueState(recovered.id, QUEUE_URL_PREFIX + recovered.name, recovered.name,
+                recovered.settings.fifo, timer, memory, journal);
+        recovered.settings.applyTo(queue);
+        final long now = System.currentTimeMillis();
+        final List<StoredMessage> visible = new ArrayList<StoredMessage>(recovered.messages.size());
+        for (final JournalFormat.RecoveredMessage msg : recovered.messages) {
+            if (msg.removed || queue.retention.isExpired(msg.message, now)) { continue; }
+            msg.message.receiveCount = msg.receiveCount;
+            memory.restore(queue, msg.message.size());
+            if (msg.visibleAt <= now) {
+                visible.add(msg.message);
+            } else if (msg.slot < 0) {
+                queue.delayed.restore(msg.message, msg.visibleAt - now);
+            } else {
+                final InFlightMessage inFlight = new InFlightMessage(queue.inFlight.receiptHandle(msg.slot, msg.stamp),
+                        msg.message, queue, msg.slot, msg.stamp, msg.visibleAt);
+                if (queue.inFlight.restore(inFlight)) {
+                    queue.visible.restoredInFlight(msg.message);
+                    timer.schedule(inFlight, msg.visibleAt - now, TimeUnit.MILLISECONDS);
+                } else {
+                    visible.add(msg.message);
+                }
+            }
+        }
+        queue.inFlight.restoreFreeSlots();
+        queue.visible.addAll(visible);
+        allQueues.put(queue.url, queue);
+        queuesByName.put(queue.name, queue);
+        indexDeadLetterSource(queue, null, queue.redrivePolicy);
+    }
+
+    /**
+     * Whether queue URLs, message bodies, receipt handles and attribute names containing
+     * {@link #MARKER_CLIENT_EXCEPTION} or {@link #MARKER_SERVICE_EXCEPTION} force the matching
+     * exception. On by default; turning it off skips scanning every payload.
+     */
+    public void setExceptionMarkersEnabled(final boolean enabled) {
+        this.exceptionMarkersEnabled = enabled;
+    }
+
+    public boolean isExceptionMarkersEnabled() {
+        return exceptionMarkersEnabled;
+    }
+
+    /**
+     * Sets the latency, throttling and errors every call is subject to, unless its action or queue
+     * has a profile of its own; null removes it. See {@link FaultProfile}.
+     */
+    public void setFaultProfile(final FaultProfile profile) {
+        faults.setAll(profile);
+    }
+
+    /**
+     * Sets the profile for the calls of one action, which takes the place of the one for every call.
+     *
+     * @param action the action's name in the SQS API, e.g. "ReceiveMessage"
+     * @param profile the profile, or null to remove it
+     * @throws IllegalArgumentException if the mock does not serve that action
+     */
+    public void setFaultProfile(final String action, final FaultProfile profile) {
+        faults.setOperation(action, profile);
+    }
+
+    /**
+     * Sets the profile for the calls made to one queue, which takes the place of any other. The
+     * queue need not exist yet.
+     *
+     * @param profile the profile, or null to remove it
+     */
+    public void setQueueFaultProfile(final String queueUrl, final FaultProfile profile) {
+        faults.setQueue(queueUrl, profile);
+    }
+
+    /**
+     * Removes every fault profile, so that calls are served as fast as the mock can.
+     */
+    public void clearFaultProfiles() {
+        faults.clear();
+    }
+
+    /**
+     * @return whether any fault profile is set, in which case calls may be delayed
+     */
+    boolean hasFaultProfiles() {
+        return faults.enabled();
+    }
+
+    /**
+     * Caps the bytes of messages (as stored: bodies, attributes, ids and digests) that the mock may
+     * hold across all queues, visible, in flight or delayed. A send that would go over fails with an
+     * OverLimitException until enough messages are deleted. Unlimited by default.
+     */
+    public void setMemoryLimit(final long bytes) {
+        memory.setTotalLimit(bytes);
+    }
 
-    private AtomicLong incrementer = new AtomicLong(System.currentTimeMillis() * 1000);
-    private Map<String, List<Message>> allQueues = new ConcurrentHashMap<String, List<Message>>();
-    private Map<String, Map<String, Message>> retrievedMessages = new ConcurrentHashMap<String, Map<String,Message>>();
+    /**
+     * Caps the bytes of messages each queue may hold, in the same way as {@link #setMemoryLimit(long)}.
+     */
+    public void setQueueMemoryLimit(final long bytes) {
+        memory.setQueueLimit(bytes);
+    }
+
+    /**
+     * @return the bytes of messages the mock holds, as counted against its memory limits
+     */
+    public long getStoredBytes() {
+        return memory.total();
+    }
+
+    /**
+     * @return the calls made to each action, and the state and traffic of each queue, as of now
+     */
+    public MetricsSnapshot getMetrics() {
+        final long nowMillis = System.currentTimeMillis();
+        final long nowNanos = System.nanoTime();
+        final List<QueueMetrics> queueMetrics = new ArrayList<QueueMetrics>();
+        for (final QueueState queue : queuesByName.values()) { queueMetrics.add(new QueueMetrics(queue, nowMillis, nowNanos)); }
+        return new MetricsSnapshot(nowMillis, memory.total(), metrics.operations(nowNanos), queueMetrics);
+    }
+
+    /**
+     * Registers the mock's metrics with the platform MBean server, as an {@link AmazonSQSMockMXBean}
+     * named org.flite.mock.amazonaws.sqs:type=AmazonSQSMock,name=&lt;name&gt;, until {@link #shutdown()}.
+     *
+     * @return the name it was registered under
+     */
+    public synchronized ObjectName registerMBean(final String name) {
+        if (mbeanName != null) { throw new IllegalStateException("Already registered as " + mbeanName); }
+        try {
+            final ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=AmazonSQSMock,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new MXBean(), AmazonSQSMockMXBean.class, true), objectName);
+            mbeanName = objectName;
+            return objectName;
+        } catch (JMException ex) {
+            throw new AmazonClientException("Cannot register MBean " + name, ex);
+        }
+    }
+
+    private final class MXBean implements AmazonSQSMockMXBean {
+        public List<OperationMetrics> getOperations() {
+            return metrics.operations(System.nanoTime());
+        }
+
+        public List<QueueMetrics> getQueues() {
+            return getMetrics().getQueues();
+        }
+
+        public long getStoredBytes() {
+            return memory.total();
+        }
+
+        public int getQueueCount() {
+            return allQueues.size();
+        }
+    }
 
     //@Override
     public GetQueueUrlResult getQueueUrl(final GetQueueUrlRequest request) throws AmazonServiceException, AmazonClientException {
-        if (request == null) { throw new AmazonClientException("Null GetQueueUrlRequest"); }
-        final String queueName = request.getQueueName();
-        final String queueUrl = QUEUE_URL_PREFIX + queueName;
-        checkURLForException(queueUrl);
-        // Per documentation, supposedly throws QueueDoesNotExistException,
-        // but in my tests, they actually just throw AmazonServiceException
-        if (!allQueues.containsKey(queueUrl)) { throw new AmazonServiceException("Queue Not Found: " + queueUrl); }
-        return new GetQueueUrlResult().withQueueUrl(queueUrl);
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null GetQueueUrlRequest"); }
+            final String queueName = request.getQueueName();
+            final String queueUrl = QUEUE_URL_PREFIX + queueName;
+            checkURLForException(queueUrl);
+            begin(Operation.GET_QUEUE_URL, queueUrl);
+            // Per documentation, supposedly throws QueueDoesNotExistException,
+            // but in my tests, they actually just throw AmazonServiceException
+            getQueue(queueUrl);
+            return new GetQueueUrlResult().withQueueUrl(queueUrl);
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.GET_QUEUE_URL, ex);
+        } finally {
+            metrics.completed(Operation.GET_QUEUE_URL, request, start);
+        }
     }
 
     //@Override
     public CreateQueueResult createQueue(final CreateQueueRequest request) throws AmazonServiceException, AmazonClientException {
-        if (request == null) { throw new AmazonClientException("Null CreateQueueRequest"); }
-        final String queueName = request.getQueueName();
-        if (StringUtils.isBlank(queueName) || queueName.length() > 80) { throw new AmazonServiceException("Invalid queue name: " + queueName); }
-        final String queueUrl = QUEUE_URL_PREFIX + queueName;
-        checkURLForException(queueUrl);
-        // Per documentation, throws QueueNameExistsException, but in my testing, they actually
-        // just quietly return the CreateQueueResult
-        // (Also note: we are ignoring the documented exception: QueueDeletedRecentlyException)
-        if (!allQueues.containsKey(queueUrl)) {
-            allQueues.put(queueUrl, Collections.synchronizedList(new ArrayList<Message>()));
-            retrievedMessages.put(queueUrl, new ConcurrentHashMap<String, Message>());
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null CreateQueueRequest"); }
+            final String queueName = request.getQueueName();
+            if (StringUtils.isBlank(queueName) || queueName.length() > 80) { throw new AmazonServiceException("Invalid queue name: " + queueName); }
+            final String queueUrl = QUEUE_URL_PREFIX + queueName;
+            checkURLForException(queueUrl);
+            begin(Operation.CREATE_QUEUE, queueUrl);
+            // Per documentation, throws QueueNameExistsException, but in my testing, they actually
+            // just quietly return the CreateQueueResult
+            // (Also note: we are ignoring the documented exception: QueueDeletedRecentlyException)
+            if (!allQueues.containsKey(queueUrl)) {
+                // Fully configure the queue before publishing it; if another thread wins the race, theirs stands
+                final QueueState queue = new QueueState(ids.next(), queueUrl, queueName, isFifo(queueName, request.getAttributes()),
+                        timer, memory, journal);
+                if (request.getAttributes() != null) { applyAttributes(queue, request.getAttributes(), true); }
+                journal.lock();
+                try {
+                    // Held until the queue is in both maps, so that a delete racing with this create waits to remove it from both
+                    synchronized (queue) {
+                        if (allQueues.putIfAbsent(queueUrl, queue) == null) {
+                            queuesByName.put(queueName, queue);
+                            journal.queueCreated(queue);
+                            indexDeadLetterSource(queue, null, queue.redrivePolicy);
+                        }
+                    }
+                } finally {
+                    journal.unlock();
+                }
+                journal.commit();
+            }
+            return new CreateQueueResult().withQueueUrl(queueUrl);
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.CREATE_QUEUE, ex);
+        } finally {
+            metrics.completed(Operation.CREATE_QUEUE, request, start);
         }
-        return new CreateQueueResult().withQueueUrl(queueUrl);
     }
 
     //@Override
     public SendMessageResult sendMessage(final SendMessageRequest request) throws AmazonServiceException, AmazonClientException {
-        if (request == null) { throw new AmazonClientException("Null SendMessageRequest"); }
-        final String queueUrl = request.getQueueUrl();
-        checkURLForException(queueUrl);
-        checkStringForExceptionMarker(request.getMessageBody());
-        // Ignoring the following exception: InvalidMessageContentsException (thrown for character set conditions?)
-        if (!allQueues.containsKey(queueUrl)) { throw new AmazonServiceException("Queue Not Found: " + queueUrl); }
-        final Long seq = incrementer.getAndIncrement();
-        final Message msg = new Message()
-                .withMessageAttributes(request.getMessageAttributes())
-                .withBody(StringUtils.defaultString(request.getMessageBody()))
-                .withMD5OfBody(makeMD5(request.getMessageBody()))
-                .withMessageId(MESSAGE_ID_PREFIX + seq);
-        allQueues.get(queueUrl).add(msg);
-        return new SendMessageResult().withMD5OfMessageBody(msg.getMD5OfBody()).withMessageId(msg.getMessageId());
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null SendMessageRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            begin(Operation.SEND_MESSAGE, queueUrl);
+            checkStringForExceptionMarker(request.getMessageBody());
+            // Ignoring the following exception: InvalidMessageContentsException (thrown for character set conditions?)
+            final QueueState queue = getQueue(queueUrl);
+            final String deduplicationId = queue.fifo
+                    ? checkFifoMessage(queue, request.getMessageBody(), request.getMessageAttributes(), request.getDelaySeconds()) : null;
+            final int delay = request.getDelaySeconds() == null ? queue.delaySeconds : checkDelaySeconds(request.getDelaySeconds());
+            final StoredMessage msg = makeMessage(queue, request.getMessageBody(), request.getMessageAttributes(), start);
+            memory.reserve(queue, msg.size());
+            final long original = deduplicationId == null ? -1 : queue.deduplication.claim(deduplicationId, msg.idNumber(), start);
+            if (original >= 0) {
+                // Accepted, but not delivered again: the result names the message first sent
+                memory.release(queue, msg.size());
+                queue.stats.deduplicated.increment();
+                return new SendMessageResult().withMD5OfMessageBody(msg.md5OfBody())
+                        .withMD5OfMessageAttributes(msg.md5OfMessageAttributes()).withMessageId(MESSAGE_ID_PREFIX + original);
+            }
+            try {
+                journal.lock();
+                try {
+                    if (delay > 0) {
+                        journal.sent(queue, msg, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delay));
+                        queue.delayed.add(msg, delay);
+                    } else {
+                        journal.sent(queue, msg, 0);
+                        queue.visible.add(msg);
+                    }
+                } finally {
+                    journal.unlock();
+                }
+            } catch (RuntimeException ex) {
+                // Not stored (e.g. the journal could not be written), so nothing stays reserved or claimed
+                memory.release(queue, msg.size());
+                if (deduplicationId != null) { queue.deduplication.release(deduplicationId); }
+                throw ex;
+            }
+            queue.stats.sent.increment();
+            journal.commit();
+            return new SendMessageResult().withMD5OfMessageBody(msg.md5OfBody())
+                    .withMD5OfMessageAttributes(msg.md5OfMessageAttributes()).withMessageId(msg.messageId());
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.SEND_MESSAGE, ex);
+        } finally {
+            metrics.completed(Operation.SEND_MESSAGE, request, start);
+        }
+    }
+
+    /**
+     * @param startNanos when the call sending it started, which is when the message counts as sent
+     */
+    private StoredMessage makeMessage(final QueueState queue, final String body, final Map<String, MessageAttributeValue> attributes,
+                                      final long startNanos) {
+        return StoredMessage.encode(ids.next(), metrics.epochMillis(startNanos), StringUtils.defaultString(body), attributes,
+                queue.maximumMessageSize);
     }
 
     //@Override
     public void deleteMessage(final DeleteMessageRequest request) throws AmazonServiceException, AmazonClientException {
-        if (request == null) { throw new AmazonClientException("Null DeleteMessageRequest"); }
-        final String queueUrl = request.getQueueUrl();
-        checkURLForException(queueUrl);
-        checkStringForExceptionMarker(request.getReceiptHandle());
-        // Ignoring the documented exception: InvalidIdFormatException
-        if (!allQueues.containsKey(queueUrl)) { throw new AmazonServiceException("Queue Not Found: " + queueUrl); }
-        if (!retrievedMessages.containsKey(queueUrl)) { throw new AmazonServiceException("Queue Not Found: " + queueUrl); }
-        if (!retrievedMessages.get(queueUrl).containsKey(request.getReceiptHandle())) { throw new ReceiptHandleIsInvalidException("Reciept Handle Not Found: " + request.getReceiptHandle()); }
-        retrievedMessages.get(queueUrl).remove(request.getReceiptHandle());
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null DeleteMessageRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            begin(Operation.DELETE_MESSAGE, queueUrl);
+            checkStringForExceptionMarker(request.getReceiptHandle());
+            // Ignoring the documented exception: InvalidIdFormatException
+            final QueueState queue = getQueue(queueUrl);
+            delete(queue, request.getReceiptHandle());
+            journal.commit();
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.DELETE_MESSAGE, ex);
+        } finally {
+            metrics.completed(Operation.DELETE_MESSAGE, request, start);
+        }
+    }
+
+    private void delete(final QueueState queue, final String receiptHandle) {
+        journal.lock();
+        try {
+            deleteLocked(queue, receiptHandle);
+        } finally {
+            journal.unlock();
+        }
+    }
+
+    /**
+     * Deletes the in-flight message the receipt handle names. Must hold the journal lock.
+     */
+    private void deleteLocked(final QueueState queue, final String receiptHandle) {
+        final InFlightMessage inFlight = queue.inFlight.remove(receiptHandle);
+        if (inFlight == null) { throw new ReceiptHandleIsInvalidException("Reciept Handle Not Found: " + receiptHandle); }
+        inFlight.cancel();
+        queue.visible.deleted(inFlight.message);
+        journal.deleted(queue, inFlight.message.idNumber());
+        memory.release(queue, inFlight.message.size());
+        queue.stats.deleted.increment();
     }
 
     //@Override
     public ReceiveMessageResult receiveMessage(final ReceiveMessageRequest request) throws AmazonServiceException, AmazonClientException {
+        final long start = System.nanoTime();
+        try {
+            final QueueState queue = checkReceive(request);
+            final int max = request.getMaxNumberOfMessages();
+            final int visibilityTimeout = visibilityTimeoutFor(queue, request);
+            final int waitTime = waitTimeFor(queue, request);
+            final ReceiveMessageResult result = new ReceiveMessageResult();
+            int received = receiveAvailable(queue, max, visibilityTimeout, result);
+            if (received == 0 && waitTime > 0) {
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitTime);
+                long remaining;
+                while (received == 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        queue.visible.await(remaining);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new AmazonClientException("Interrupted while waiting for messages", ex);
+                    }
+                    received = receiveAvailable(queue, max, visibilityTimeout, result);
+                }
+            }
+            queue.stats.received(received);
+            return result;
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.RECEIVE_MESSAGE, ex);
+        } finally {
+            metrics.completed(Operation.RECEIVE_MESSAGE, request, start);
+        }
+    }
+
+    /**
+     * Receives without holding a thread while waiting, for the async mock and the server. If the
+     * receive has to wait, a {@link PendingReceive} finishes it and hands the result to the handler,
+     * on the executor if not null; until then it counts in the metrics as neither done nor failed.
+     *
+     * @param result filled with what was received, if the receive is done at once
+     * @return null if the receive is done, else the receive that is waiting
+     */
+    PendingReceive receiveOrWait(final ReceiveMessageRequest request, final ReceiveMessageResult result,
+                                 final AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler, final Executor executor) {
+        final long start = System.nanoTime();
+        try {
+            final QueueState queue = checkReceive(request);
+            final int visibilityTimeout = visibilityTimeoutFor(queue, request);
+            final int waitTime = waitTimeFor(queue, request);
+            final int received = receiveAvailable(queue, request.getMaxNumberOfMessages(), visibilityTimeout, result);
+            if (received == 0 && waitTime > 0) {
+                final PendingReceive pending = new PendingReceive(this, queue, request, visibilityTimeout, handler, executor, start);
+                pending.start(waitTime);
+                return pending;
+            }
+            queue.stats.received(received);
+        } catch (RuntimeException ex) {
+            metrics.failed(Operation.RECEIVE_MESSAGE, ex);
+            metrics.completed(Operation.RECEIVE_MESSAGE, request, start);
+            throw ex;
+        }
+        metrics.completed(Operation.RECEIVE_MESSAGE, request, start);
+        return null;
+    }
+
+    /**
+     * Checks a receive request, and resolves the queue it is for.
+     */
+    QueueState checkReceive(final ReceiveMessageRequest request) {
         if (request == null) { throw new AmazonClientException("Null ReceiveMessageRequest"); }
         final String queueUrl = request.getQueueUrl();
         checkURLForException(queueUrl);
+        begin(Operation.RECEIVE_MESSAGE, queueUrl);
         // Per documentation throws OverLimitException, but in my testing,
         // they actually only throw AmazonServiceException
         final Integer max = request.getMaxNumberOfMessages();
         if (max == null || max < 1 || max > 10) { throw new AmazonServiceException("MaxNumberOfMessages must be a value between [1,10]"); }
-        final ReceiveMessageResult result = new ReceiveMessageResult();
+        return getQueue(queueUrl);
+    }
+
+    static int visibilityTimeoutFor(final QueueState queue, final ReceiveMessageRequest request) {
+        return request.getVisibilityTimeout() == null ? queue.visibilityTimeout : checkVisibilityTimeout(request.getVisibilityTimeout());
+    }
+
+    static int waitTimeFor(final QueueState queue, final ReceiveMessageRequest request) {
+        return request.getWaitTimeSeconds() == null ? queue.receiveWaitTime : checkWaitTime(request.getWaitTimeSeconds());
+    }
+
+    /**
+     * Takes up to max visible messages and puts them in flight; never waits. Messages received too
+     * many times already go to the dead-letter queue instead, and others are taken in their place.
+     *
+     * @return the number of messages added to result
+     */
+    int receiveAvailable(final QueueState queue, final int max, final int visibilityTimeout,
+                         final ReceiveMessageResult result) {
+        final List<StoredMessage> taken = new ArrayList<StoredMessage>(max);
+        final long visibleAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
+        final RedrivePolicy redrive = queue.redrivePolicy;
         int received = 0;
-        boolean avail = true;
-        while (received < request.getMaxNumberOfMessages() && avail) {
-            try {
-                final Message msg = allQueues.get(queueUrl).remove(0);
-                received++;
-                msg.setReceiptHandle(RECEIPT_ID_PREFIX + incrementer.getAndIncrement());
-                retrievedMessages.get(queueUrl).put(msg.getReceiptHandle(), msg);
-                result.withMessages(msg);
-            } catch (Exception ex) {
-                avail = false;
-            }
+        int deadLettered;
+        // Receives are recorded but never waited for: losing one to a crash only means a redelivery
+        journal.lock();
+        try {
+            do {
+                deadLettered = 0;
+                taken.clear();
+                queue.visible.drainTo(taken, max - received);
+                for (final StoredMessage stored : taken) {
+                    if (redrive != null && stored.receiveCount >= redrive.maxReceiveCount && deadLetter(queue, redrive, stored)) {
+                        deadLettered++;
+                        continue;
+                    }
+                    stored.receiveCount++;
+                    putInFlight(queue, stored, visibilityTimeout, visibleAt, result);
+                    received++;
+                }
+            } while (deadLettered > 0 && received < max);
+        } finally {
+            journal.unlock();
         }
-        return result;
+        return received;
+    }
+
+    /**
+     * Puts a message taken from the visible store in flight, and adds it to result. Must hold the journal lock.
+     */
+    private void putInFlight(final QueueState queue, final StoredMessage stored, final int visibilityTimeout, final long visibleAt,
+                             final ReceiveMessageResult result) {
+        // The slot is claimed and filled in the same table, even if a purge swaps in another meanwhile
+        final InFlightTable table = queue.inFlight;
+        final int slot = table.claimSlot();
+        final long stamp = ids.next();
+        // Each delivery gets a Message of its own, so a redelivery never rewrites an earlier receiver's receipt handle
+        final Message msg = stored.toMessage().withReceiptHandle(table.receiptHandle(slot, stamp));
+        final InFlightMessage inFlight = new InFlightMessage(msg.getReceiptHandle(), stored, queue, slot, stamp, visibleAt);
+        table.put(inFlight);
+        timer.schedule(inFlight, visibilityTimeout, TimeUnit.SECONDS);
+        journal.received(queue, inFlight);
+        result.withMessages(msg);
+    }
+
+    /**
+     * Moves a message taken from the visible store to the dead-letter queue, where it keeps its id
+     * and the time it was sent, and starts its receive count again. Must hold the journal lock.
+     *
+     * @return false if the dead-letter queue no longer exists, in which case the message stays put
+     */
+    private boolean deadLetter(final QueueState queue, final RedrivePolicy redrive, final StoredMessage msg) {
+        final QueueState target = allQueues.get(redrive.deadLetterTargetUrl);
+        if (target == null || target == queue || target.fifo != queue.fifo) { return false; }
+        queue.visible.deleted(msg);
+        journal.deleted(queue, msg.idNumber());
+        memory.transfer(queue, target, msg.size());
+        msg.receiveCount = 0;
+        journal.sent(target, msg, 0);
+        target.visible.add(msg);
+        queue.stats.deadLettered.increment();
+        return true;
     }
 
     //@Override
     public ListQueuesResult listQueues(final ListQueuesRequest request) throws AmazonServiceException, AmazonClientException {
-        if (request == null) { throw new AmazonClientException("Null ListQueuesRequest"); }
-        checkStringForExceptionMarker(request.getQueueNamePrefix());
-
-        final String effectivePrefix = QUEUE_URL_PREFIX + (request.getQueueNamePrefix() == null ? "" : request.getQueueNamePrefix());
-        final ListQueuesResult result = new ListQueuesResult();
-        for (final String url : allQueues.keySet()) {
-            if (StringUtils.startsWith(url, effectivePrefix)) {
-                result.withQueueUrls(url);
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null ListQueuesRequest"); }
+            checkStringForExceptionMarker(request.getQueueNamePrefix());
+            begin(Operation.LIST_QUEUES, null);
+
+            // Names sharing the prefix sort together from the prefix on, so the walk stops at the first that does not
+            final String prefix = request.getQueueNamePrefix() == null ? "" : request.getQueueNamePrefix();
+            final List<String> urls = new ArrayList<String>();
+            for (final QueueState queue : queuesByName.tailMap(prefix).values()) {
+                if (!queue.name.startsWith(prefix) || urls.size() == MAX_LISTED_QUEUES) { break; }
+                urls.add(queue.url);
             }
+            return new ListQueuesResult().withQueueUrls(urls);
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.LIST_QUEUES, ex);
+        } finally {
+            metrics.completed(Operation.LIST_QUEUES, request, start);
         }
-        return result;
     }
 
     //@Override
@@ -205,12 +730,79 @@ public class AmazonSQSMock implements AmazonSQS {
 
     //@Override
     public void deleteQueue(final DeleteQueueRequest request) throws AmazonServiceException, AmazonClientException {
-        if (request == null) { throw new AmazonClientException("Null DeleteQueueRequest"); }
-        final String queueUrl = request.getQueueUrl();
-        checkURLForException(queueUrl);
-        if (!allQueues.containsKey(queueUrl)) { throw new AmazonServiceException("Queue Not Found: " + queueUrl); }
-        allQueues.remove(queueUrl);
-        if (retrievedMessages.containsKey(queueUrl)) { retrievedMessages.remove(queueUrl); }
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null DeleteQueueRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            begin(Operation.DELETE_QUEUE, queueUrl);
+            final QueueState queue;
+            journal.lock();
+            try {
+                queue = queueUrl == null ? null : allQueues.remove(queueUrl);
+                if (queue != null) { journal.queueDeleted(queue); }
+            } finally {
+                journal.unlock();
+            }
+            if (queue == null) { throw queueNotFound(queueUrl); }
+            synchronized (queue) {
+                queuesByName.remove(queue.name, queue);
+            }
+            journal.commit();
+            indexDeadLetterSource(queue, queue.redrivePolicy, null);
+            memory.detach(queue);
+            queue.markDeleted();
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.DELETE_QUEUE, ex);
+        } finally {
+            metrics.completed(Operation.DELETE_QUEUE, request, start);
+        }
+    }
+
+    //@Override
+    public void purgeQueue(final PurgeQueueRequest request) throws AmazonServiceException, AmazonClientException {
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null PurgeQueueRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            begin(Operation.PURGE_QUEUE, queueUrl);
+            final QueueState queue = getQueue(queueUrl);
+            journal.lock();
+            try {
+                journal.queuePurged(queue);
+                queue.purge();
+                memory.purge(queue);
+            } finally {
+                journal.unlock();
+            }
+            journal.commit();
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.PURGE_QUEUE, ex);
+        } finally {
+            metrics.completed(Operation.PURGE_QUEUE, request, start);
+        }
+    }
+
+    //@Override
+    public ListDeadLetterSourceQueuesResult listDeadLetterSourceQueues(final ListDeadLetterSourceQueuesRequest request)
+            throws AmazonServiceException, AmazonClientException {
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null ListDeadLetterSourceQueuesRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            begin(Operation.LIST_DEAD_LETTER_SOURCE_QUEUES, queueUrl);
+            getQueue(queueUrl);
+            final Set<String> sources = deadLetterSources.get(queueUrl);
+            final List<String> urls = sources == null ? new ArrayList<String>() : new ArrayList<String>(sources);
+            Collections.sort(urls);
+            return new ListDeadLetterSourceQueuesResult().withQueueUrls(urls);
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.LIST_DEAD_LETTER_SOURCE_QUEUES, ex);
+        } finally {
+            metrics.completed(Operation.LIST_DEAD_LETTER_SOURCE_QUEUES, request, start);
+        }
     }
 
     public static final String ALL = "All";
@@ -226,59 +818,157 @@ public class AmazonSQSMock implements AmazonSQS {
     public static final String MSGS_DELAYED = "ApproximateNumberOfMessagesDelayed";
     public static final String DELAY_SEC = "DelaySeconds";
     public static final String REDRIVE_POLICY = "RedrivePolicy";
+    public static final String RECEIVE_WAIT = "ReceiveMessageWaitTimeSeconds";
+    public static final String FIFO_QUEUE = "FifoQueue";
+    public static final String CONTENT_DEDUPLICATION = "ContentBasedDeduplication";
 
     private static final List<String> attbs = Arrays.asList(ALL, NUM_MSGS, NUM_NOT_VISIBLE, VIS_TIMEOUT, CREATED_TIMESTAMP,
-            MODIFIED_TIMESTAMP, POLICY, MAX_SIZE, RETENTION, ARN, MSGS_DELAYED, DELAY_SEC, REDRIVE_POLICY);
+            MODIFIED_TIMESTAMP, POLICY, MAX_SIZE, RETENTION, ARN, MSGS_DELAYED, DELAY_SEC, REDRIVE_POLICY, RECEIVE_WAIT, FIFO_QUEUE,
+            CONTENT_DEDUPLICATION);
+    private static final List<String> READ_ONLY_ATTBS = Arrays.asList(CREATED_TIMESTAMP, MODIFIED_TIMESTAMP, MSGS_DELAYED);
     //@Override
     public GetQueueAttributesResult getQueueAttributes(final GetQueueAttributesRequest request) throws AmazonServiceException, AmazonClientException {
-        if (request == null) { throw new AmazonClientException("Null GetQueueAttributesRequest"); }
-        final String queueUrl = request.getQueueUrl();
-        checkURLForException(queueUrl);
-        for (final String attb : request.getAttributeNames()) {
-            checkStringForExceptionMarker(attb);
-            if (!attbs.contains(attb)) { throw new InvalidAttributeNameException("Invalid Attribute Name: " + attb); }
-        }
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null GetQueueAttributesRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            begin(Operation.GET_QUEUE_ATTRIBUTES, queueUrl);
+            for (final String attb : request.getAttributeNames()) {
+                checkStringForExceptionMarker(attb);
+                if (!attbs.contains(attb)) { throw new InvalidAttributeNameException("Invalid Attribute Name: " + attb); }
+            }
 
-        final Map<String, String> results = new ConcurrentHashMap<String, String>();
-        final boolean hasAll = request.getAttributeNames().contains(ALL);
-        if (hasAll || request.getAttributeNames().contains(NUM_MSGS)) {
-            results.put(NUM_MSGS, allQueues.get(queueUrl) == null ? "0" : allQueues.get(queueUrl).size()+"");
-        }
-        if (hasAll || request.getAttributeNames().contains(NUM_NOT_VISIBLE)) {
-            results.put(NUM_NOT_VISIBLE, retrievedMessages.get(queueUrl) == null ? "0" : retrievedMessages.get(queueUrl).size()+"");
-        }
-        if (hasAll || request.getAttributeNames().contains(ARN)) {
-            results.put(ARN, ARN_PREFIX + queueUrl);
-        }
-        if (hasAll || request.getAttributeNames().contains(VIS_TIMEOUT)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (hasAll || request.getAttributeNames().contains(CREATED_TIMESTAMP)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (hasAll || request.getAttributeNames().contains(MODIFIED_TIMESTAMP)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (hasAll || request.getAttributeNames().contains(POLICY)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (hasAll || request.getAttributeNames().contains(MAX_SIZE)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (hasAll || request.getAttributeNames().contains(RETENTION)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (hasAll || request.getAttributeNames().contains(MSGS_DELAYED)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (hasAll || request.getAttributeNames().contains(DELAY_SEC)) { throw new RuntimeException(NYI_EXCEPTION); }
+            final QueueState queue = getQueue(queueUrl);
+            final Map<String, String> results = new ConcurrentHashMap<String, String>();
+            final boolean hasAll = request.getAttributeNames().contains(ALL);
+            if (hasAll || request.getAttributeNames().contains(NUM_MSGS)) {
+                results.put(NUM_MSGS, queue.approximateNumberOfMessages()+"");
+            }
+            if (hasAll || request.getAttributeNames().contains(NUM_NOT_VISIBLE)) {
+                results.put(NUM_NOT_VISIBLE, queue.approximateNumberOfMessagesNotVisible()+"");
+            }
+            if (hasAll || request.getAttributeNames().contains(ARN)) {
+                results.put(ARN, ARN_PREFIX + queueUrl);
+            }
+            if (hasAll || request.getAttributeNames().contains(VIS_TIMEOUT)) {
+                results.put(VIS_TIMEOUT, queue.visibilityTimeout+"");
+            }
+            if (hasAll || request.getAttributeNames().contains(RECEIVE_WAIT)) {
+                results.put(RECEIVE_WAIT, queue.receiveWaitTime+"");
+            }
+            if (hasAll || request.getAttributeNames().contains(MSGS_DELAYED)) {
+                results.put(MSGS_DELAYED, queue.approximateNumberOfMessagesDelayed()+"");
+            }
+            if (hasAll || request.getAttributeNames().contains(DELAY_SEC)) {
+                results.put(DELAY_SEC, queue.delaySeconds+"");
+            }
+            if (hasAll || request.getAttributeNames().contains(MAX_SIZE)) {
+                results.put(MAX_SIZE, queue.maximumMessageSize+"");
+            }
+            if (hasAll || request.getAttributeNames().contains(RETENTION)) {
+                results.put(RETENTION, queue.messageRetentionPeriod+"");
+            }
+            if (hasAll || request.getAttributeNames().contains(CREATED_TIMESTAMP)) {
+                results.put(CREATED_TIMESTAMP, queue.createdTimestamp+"");
+            }
+            if (hasAll || request.getAttributeNames().contains(MODIFIED_TIMESTAMP)) {
+                results.put(MODIFIED_TIMESTAMP, queue.lastModifiedTimestamp+"");
+            }
+            // Like SQS, a queue without a policy has no Policy attribute at all
+            final String policy = queue.policy;
+            if ((hasAll || request.getAttributeNames().contains(POLICY)) && policy != null) {
+                results.put(POLICY, policy);
+            }
+            final RedrivePolicy redrive = queue.redrivePolicy;
+            if ((hasAll || request.getAttributeNames().contains(REDRIVE_POLICY)) && redrive != null) {
+                results.put(REDRIVE_POLICY, redrive.toJson());
+            }
+            // And only FIFO queues have the FIFO attributes
+            if ((hasAll || request.getAttributeNames().contains(FIFO_QUEUE)) && queue.fifo) {
+                results.put(FIFO_QUEUE, "true");
+            }
+            if ((hasAll || request.getAttributeNames().contains(CONTENT_DEDUPLICATION)) && queue.fifo) {
+                results.put(CONTENT_DEDUPLICATION, queue.contentBasedDeduplication+"");
+            }
 
-        return new GetQueueAttributesResult().withAttributes(results);
+            return new GetQueueAttributesResult().withAttributes(results);
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.GET_QUEUE_ATTRIBUTES, ex);
+        } finally {
+            metrics.completed(Operation.GET_QUEUE_ATTRIBUTES, request, start);
+        }
     }
 
     //@Override
     public void setQueueAttributes(SetQueueAttributesRequest setQueueAttributesRequest) throws AmazonServiceException, AmazonClientException {
-        if (setQueueAttributesRequest == null){ throw new AmazonClientException("Null SetQueueAttributesRequest");}
-        final String queueUrl = setQueueAttributesRequest.getQueueUrl();
-        checkURLForException(queueUrl);
-        Map<String, String> attributesMap = setQueueAttributesRequest.getAttributes();
-        for (final String attb : setQueueAttributesRequest.getAttributes().keySet()) {
-            checkStringForExceptionMarker(attb);
-            if (!attbs.contains(attb)) { throw new InvalidAttributeNameException("Invalid Attribute Name: " + attb); }
+        final long start = System.nanoTime();
+        try {
+            if (setQueueAttributesRequest == null){ throw new AmazonClientException("Null SetQueueAttributesRequest");}
+            final String queueUrl = setQueueAttributesRequest.getQueueUrl();
+            checkURLForException(queueUrl);
+            begin(Operation.SET_QUEUE_ATTRIBUTES, queueUrl);
+            Map<String, String> attributesMap = setQueueAttributesRequest.getAttributes();
+            for (final String attb : setQueueAttributesRequest.getAttributes().keySet()) {
+                checkStringForExceptionMarker(attb);
+                if (!attbs.contains(attb)) { throw new InvalidAttributeNameException("Invalid Attribute Name: " + attb); }
+            }
+
+            final QueueState queue = getQueue(queueUrl);
+            journal.lock();
+            try {
+                // Under the queue's monitor too, so concurrent changes are recorded in the order they were made
+                synchronized (queue) {
+                    final RedrivePolicy previous = queue.redrivePolicy;
+                    applyAttributes(queue, attributesMap, false);
+                    journal.queueAttributesChanged(queue);
+                    indexDeadLetterSource(queue, previous, queue.redrivePolicy);
+                }
+            } finally {
+                journal.unlock();
+            }
+            journal.commit();
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.SET_QUEUE_ATTRIBUTES, ex);
+        } finally {
+            metrics.completed(Operation.SET_QUEUE_ATTRIBUTES, setQueueAttributesRequest, start);
         }
+    }
 
-        if (attributesMap.containsKey(CREATED_TIMESTAMP)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (attributesMap.containsKey(MODIFIED_TIMESTAMP)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (attributesMap.containsKey(POLICY)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (attributesMap.containsKey(MAX_SIZE)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (attributesMap.containsKey(MSGS_DELAYED)) { throw new RuntimeException(NYI_EXCEPTION); }
-        if (attributesMap.containsKey(DELAY_SEC)) { throw new RuntimeException(NYI_EXCEPTION); }
+    /**
+     * @param creating whether the queue is being created, which is the only time FifoQueue may be given
+     */
+    private void applyAttributes(final QueueState queue, final Map<String, String> attributes, final boolean creating) {
+        for (final String attb : READ_ONLY_ATTBS) {
+            if (attributes.containsKey(attb)) { throw new InvalidAttributeNameException("Attribute cannot be set: " + attb); }
+        }
+        if (!creating && attributes.containsKey(FIFO_QUEUE)) { throw new InvalidAttributeNameException("Attribute cannot be changed: " + FIFO_QUEUE); }
+        if (!queue.fifo && attributes.containsKey(CONTENT_DEDUPLICATION)) {
+            throw new InvalidAttributeNameException("Unknown Attribute " + CONTENT_DEDUPLICATION + " for a standard queue");
+        }
+        // Parse everything before changing anything, so an invalid value leaves the queue untouched
+        final Integer visibilityTimeout = attributes.containsKey(VIS_TIMEOUT) ? parseVisibilityTimeout(attributes.get(VIS_TIMEOUT)) : null;
+        final Integer receiveWaitTime = attributes.containsKey(RECEIVE_WAIT) ? parseWaitTime(attributes.get(RECEIVE_WAIT)) : null;
+        final Integer delaySeconds = attributes.containsKey(DELAY_SEC) ? parseDelaySeconds(attributes.get(DELAY_SEC)) : null;
+        final Integer maximumMessageSize = attributes.containsKey(MAX_SIZE) ? parseMaximumMessageSize(attributes.get(MAX_SIZE)) : null;
+        final Integer retentionPeriod = attributes.containsKey(RETENTION) ? parseRetentionPeriod(attributes.get(RETENTION)) : null;
+        final Boolean contentDeduplication = attributes.containsKey(CONTENT_DEDUPLICATION)
+                ? parseBoolean(CONTENT_DEDUPLICATION, attributes.get(CONTENT_DEDUPLICATION)) : null;
+        final RedrivePolicy redrive = attributes.containsKey(REDRIVE_POLICY) ? parseRedrivePolicy(queue, attributes.get(REDRIVE_POLICY)) : null;
+        if (visibilityTimeout != null) { queue.visibilityTimeout = visibilityTimeout; }
+        if (receiveWaitTime != null) { queue.receiveWaitTime = receiveWaitTime; }
+        if (delaySeconds != null) { queue.delaySeconds = delaySeconds; }
+        if (maximumMessageSize != null) { queue.maximumMessageSize = maximumMessageSize; }
+        if (retentionPeriod != null && retentionPeriod != queue.messageRetentionPeriod) {
+            queue.messageRetentionPeriod = retentionPeriod;
+            queue.retention.periodChanged();
+        }
+        if (contentDeduplication != null) { queue.contentBasedDeduplication = contentDeduplication; }
+        // An empty policy removes it, as for Policy
+        if (attributes.containsKey(REDRIVE_POLICY)) { queue.redrivePolicy = redrive; }
+        // An empty policy removes the queue's policy, as in SQS
+        if (attributes.containsKey(POLICY)) { queue.policy = StringUtils.trimToNull(attributes.get(POLICY)); }
+        queue.lastModifiedTimestamp = System.currentTimeMillis() / 1000;
     }
 
 
@@ -286,13 +976,86 @@ public class AmazonSQSMock implements AmazonSQS {
     public void setEndpoint(String endpoint) throws IllegalArgumentException { throw new RuntimeException(NYI_EXCEPTION); }
 
     //@Override
-    public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(ChangeMessageVisibilityBatchRequest changeMessageVisibilityBatchRequest) throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+    public ChangeMessageVisibilityBatchResult changeMessageVisibilityBatch(final ChangeMessageVisibilityBatchRequest request) throws AmazonServiceException, AmazonClientException {
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null ChangeMessageVisibilityBatchRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            final Faults.Profile faultProfile = begin(Operation.CHANGE_MESSAGE_VISIBILITY_BATCH, queueUrl);
+            final QueueState queue = getQueue(queueUrl);
+            checkBatchSize(request.getEntries());
+            final Set<String> ids = new HashSet<String>();
+            for (final ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) { checkBatchId(ids, entry.getId()); }
+
+            final ChangeMessageVisibilityBatchResult result = new ChangeMessageVisibilityBatchResult();
+            journal.lock();
+            try {
+                for (final ChangeMessageVisibilityBatchRequestEntry entry : request.getEntries()) {
+                    try {
+                        if (faultProfile != null) { faultProfile.beforeEntry(); }
+                        changeVisibilityLocked(queue, entry.getReceiptHandle(), entry.getVisibilityTimeout());
+                        result.withSuccessful(new ChangeMessageVisibilityBatchResultEntry().withId(entry.getId()));
+                    } catch (AmazonServiceException ex) {
+                        result.withFailed(makeErrorEntry(entry.getId(), ex));
+                    }
+                }
+            } finally {
+                journal.unlock();
+            }
+            journal.commit();
+            return result;
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.CHANGE_MESSAGE_VISIBILITY_BATCH, ex);
+        } finally {
+            metrics.completed(Operation.CHANGE_MESSAGE_VISIBILITY_BATCH, request, start);
+        }
     }
 
     //@Override
-    public void changeMessageVisibility(ChangeMessageVisibilityRequest changeMessageVisibilityRequest) throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+    public void changeMessageVisibility(final ChangeMessageVisibilityRequest request) throws AmazonServiceException, AmazonClientException {
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null ChangeMessageVisibilityRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            begin(Operation.CHANGE_MESSAGE_VISIBILITY, queueUrl);
+            changeVisibility(getQueue(queueUrl), request.getReceiptHandle(), request.getVisibilityTimeout());
+            journal.commit();
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.CHANGE_MESSAGE_VISIBILITY, ex);
+        } finally {
+            metrics.completed(Operation.CHANGE_MESSAGE_VISIBILITY, request, start);
+        }
+    }
+
+    private void changeVisibility(final QueueState queue, final String receiptHandle, final Integer visibilityTimeout) {
+        journal.lock();
+        try {
+            changeVisibilityLocked(queue, receiptHandle, visibilityTimeout);
+        } finally {
+            journal.unlock();
+        }
+    }
+
+    /**
+     * Restarts the visibility timeout of the in-flight message the receipt handle names. Must hold the journal lock.
+     */
+    private void changeVisibilityLocked(final QueueState queue, final String receiptHandle, final Integer visibilityTimeout) {
+        checkStringForExceptionMarker(receiptHandle);
+        final int timeout = checkVisibilityTimeout(visibilityTimeout);
+        final InFlightMessage current = queue.inFlight.get(receiptHandle);
+        if (current == null) { throw new ReceiptHandleIsInvalidException("Reciept Handle Not Found: " + receiptHandle); }
+        // Losing either race below means the message was deleted or became visible in the meantime
+        if (timeout == 0) {
+            if (!current.releaseLocked()) { throw new MessageNotInflightException("Message Not In Flight: " + receiptHandle); }
+            return;
+        }
+        final InFlightMessage renewed = current.renew(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout));
+        if (!queue.inFlight.replace(current, renewed)) { throw new MessageNotInflightException("Message Not In Flight: " + receiptHandle); }
+        current.cancel();
+        timer.schedule(renewed, timeout, TimeUnit.SECONDS);
+        journal.visibilityChanged(queue, renewed.message.idNumber(), renewed.visibleAt);
     }
 
     //@Override
@@ -301,13 +1064,120 @@ public class AmazonSQSMock implements AmazonSQS {
     }
 
     //@Override
-    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest sendMessageBatchRequest) throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+    public SendMessageBatchResult sendMessageBatch(final SendMessageBatchRequest request) throws AmazonServiceException, AmazonClientException {
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null SendMessageBatchRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            final Faults.Profile faultProfile = begin(Operation.SEND_MESSAGE_BATCH, queueUrl);
+            final QueueState queue = getQueue(queueUrl);
+            checkBatchSize(request.getEntries());
+
+            // Validate and build everything first, so the whole batch is appended (and consumers woken) at once
+            final Set<String> ids = new HashSet<String>();
+            final List<StoredMessage> accepted = new ArrayList<StoredMessage>(request.getEntries().size());
+            final List<StoredMessage> delayed = new ArrayList<StoredMessage>(0);
+            final List<Integer> delays = new ArrayList<Integer>(0);
+            final List<String> claimed = new ArrayList<String>(0);
+            int deduplicated = 0;
+            for (final SendMessageBatchRequestEntry entry : request.getEntries()) { checkBatchId(ids, entry.getId()); }
+            final SendMessageBatchResult result = new SendMessageBatchResult();
+            try {
+                for (final SendMessageBatchRequestEntry entry : request.getEntries()) {
+                    try {
+                        if (faultProfile != null) { faultProfile.beforeEntry(); }
+                        checkStringForExceptionMarker(entry.getMessageBody());
+                        final String deduplicationId = queue.fifo
+                                ? checkFifoMessage(queue, entry.getMessageBody(), entry.getMessageAttributes(), entry.getDelaySeconds()) : null;
+                        final int delay = entry.getDelaySeconds() == null ? queue.delaySeconds : checkDelaySeconds(entry.getDelaySeconds());
+                        final StoredMessage msg = makeMessage(queue, entry.getMessageBody(), entry.getMessageAttributes(), start);
+                        memory.reserve(queue, msg.size());
+                        final long original = deduplicationId == null ? -1 : queue.deduplication.claim(deduplicationId, msg.idNumber(), start);
+                        if (original >= 0) {
+                            memory.release(queue, msg.size());
+                            deduplicated++;
+                        } else if (delay > 0) {
+                            delayed.add(msg);
+                            delays.add(delay);
+                        } else {
+                            accepted.add(msg);
+                        }
+                        if (original < 0 && deduplicationId != null) { claimed.add(deduplicationId); }
+                        result.withSuccessful(new SendMessageBatchResultEntry().withId(entry.getId())
+                                .withMessageId(original >= 0 ? MESSAGE_ID_PREFIX + original : msg.messageId())
+                                .withMD5OfMessageBody(msg.md5OfBody()).withMD5OfMessageAttributes(msg.md5OfMessageAttributes()));
+                    } catch (AmazonServiceException ex) {
+                        result.withFailed(makeErrorEntry(entry.getId(), ex));
+                    }
+                }
+                journal.lock();
+                try {
+                    for (final StoredMessage msg : accepted) { journal.sent(queue, msg, 0); }
+                    final long now = System.currentTimeMillis();
+                    for (int ix = 0; ix < delayed.size(); ix++) {
+                        journal.sent(queue, delayed.get(ix), now + TimeUnit.SECONDS.toMillis(delays.get(ix)));
+                    }
+                    queue.visible.addAll(accepted);
+                    queue.delayed.addAll(delayed, delays);
+                } finally {
+                    journal.unlock();
+                }
+            } catch (RuntimeException ex) {
+                // The whole batch fails (e.g. a forced client exception, or a journal that could not be
+                // written), so nothing built so far is stored
+                for (final StoredMessage msg : accepted) { memory.release(queue, msg.size()); }
+                for (final StoredMessage msg : delayed) { memory.release(queue, msg.size()); }
+                for (final String deduplicationId : claimed) { queue.deduplication.release(deduplicationId); }
+                throw ex;
+            }
+            queue.stats.sent.add(accepted.size() + delayed.size());
+            queue.stats.deduplicated.add(deduplicated);
+            journal.commit();
+            return result;
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.SEND_MESSAGE_BATCH, ex);
+        } finally {
+            metrics.completed(Operation.SEND_MESSAGE_BATCH, request, start);
+        }
     }
 
     //@Override
-    public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest deleteMessageBatchRequest) throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+    public DeleteMessageBatchResult deleteMessageBatch(final DeleteMessageBatchRequest request) throws AmazonServiceException, AmazonClientException {
+        final long start = System.nanoTime();
+        try {
+            if (request == null) { throw new AmazonClientException("Null DeleteMessageBatchRequest"); }
+            final String queueUrl = request.getQueueUrl();
+            checkURLForException(queueUrl);
+            final Faults.Profile faultProfile = begin(Operation.DELETE_MESSAGE_BATCH, queueUrl);
+            final QueueState queue = getQueue(queueUrl);
+            checkBatchSize(request.getEntries());
+            final Set<String> ids = new HashSet<String>();
+            for (final DeleteMessageBatchRequestEntry entry : request.getEntries()) { checkBatchId(ids, entry.getId()); }
+
+            final DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+            journal.lock();
+            try {
+                for (final DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+                    try {
+                        if (faultProfile != null) { faultProfile.beforeEntry(); }
+                        checkStringForExceptionMarker(entry.getReceiptHandle());
+                        deleteLocked(queue, entry.getReceiptHandle());
+                        result.withSuccessful(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+                    } catch (AmazonServiceException ex) {
+                        result.withFailed(makeErrorEntry(entry.getId(), ex));
+                    }
+                }
+            } finally {
+                journal.unlock();
+            }
+            journal.commit();
+            return result;
+        } catch (RuntimeException ex) {
+            throw metrics.failed(Operation.DELETE_MESSAGE_BATCH, ex);
+        } finally {
+            metrics.completed(Operation.DELETE_MESSAGE_BATCH, request, start);
+        }
     }
 
     //@Override
@@ -316,58 +1186,288 @@ public class AmazonSQSMock implements AmazonSQS {
     }
 
 
+    /**
+     * Stops the background timer thread; in-flight messages will no longer return to their queues.
+     * A durable mock also writes a final snapshot and stops recording changes. Every call made to
+     * the mock afterwards fails with an AmazonClientException, as it would on a shut down client.
+     */
     //@Override
     public void shutdown() {
-        throw new RuntimeException(NYI_EXCEPTION);
+        shutDown = true;
+        try {
+            journal.close();
+        } finally {
+            timer.shutdown();
+            unregisterMBean();
+        }
+    }
+
+    private synchronized void unregisterMBean() {
+        if (mbeanName == null) { return; }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException ex) {
+            // Unregistered by someone else already
+        }
+        mbeanName = null;
     }
 
     //@Override
     public ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest request) {
-        throw new RuntimeException(NYI_EXCEPTION);
+        // Only the last few calls are remembered, as the SDK's own cache does
+        return metrics.responseMetadata(request);
+    }
+
+    /**
+     * Fails the call if the mock has been shut down, then applies the fault profile that covers it.
+     *
+     * @return the profile applied, for batch calls to apply to each entry, or null
+     */
+    private Faults.Profile begin(final Operation op, final String queueUrl) {
+        if (shutDown) { throw new AmazonClientException("The mock has been shut down"); }
+        return faults.apply(op, queueUrl);
     }
 
-    private static void checkURLForException(final String queueUrl) {
+    private void checkURLForException(final String queueUrl) {
         checkStringForExceptionMarker(queueUrl);
     }
 
-    private static void checkStringForExceptionMarker(final String str) {
-        final String src = StringUtils.isBlank(str) ? "" : str.toLowerCase();
-        if (src.contains(MARKER_CLIENT_EXCEPTION)) {
+    private void checkStringForExceptionMarker(final String str) {
+        if (!exceptionMarkersEnabled || str == null) { return; }
+        if (containsIgnoreCase(str, MARKER_CLIENT_EXCEPTION)) {
             throw new AmazonClientException("Forced AmazonClientException");
         }
-        if (src.contains(MARKER_SERVICE_EXCEPTION)) {
+        if (containsIgnoreCase(str, MARKER_SERVICE_EXCEPTION)) {
             throw new AmazonServiceException("Forced AmazonServiceException");
         }
     }
 
-    private static String makeMD5(final String input) {
+    /**
+     * Case-insensitive substring search that scans in place, rather than lower-casing
+     * (and so copying) what may be a 256KB message body. The marker must be lower case.
+     */
+    private static boolean containsIgnoreCase(final String str, final String marker) {
+        final int len = marker.length();
+        final char first = marker.charAt(0);
+        final char firstUpper = Character.toUpperCase(first);
+        for (int ix = 0, last = str.length() - len; ix <= last; ix++) {
+            final char ch = str.charAt(ix);
+            if ((ch == first || ch == firstUpper) && str.regionMatches(true, ix, marker, 0, len)) { return true; }
+        }
+        return false;
+    }
+
+    private QueueState getQueue(final String queueUrl) {
+        final QueueState queue = queueUrl == null ? null : allQueues.get(queueUrl);
+        if (queue == null) { throw queueNotFound(queueUrl); }
+        return queue;
+    }
+
+    private static AmazonServiceException queueNotFound(final String queueUrl) {
+        // Still a plain AmazonServiceException, but carrying the code SQS sends, so it survives the wire
+        final AmazonServiceException ex = new AmazonServiceException("Queue Not Found: " + queueUrl);
+        ex.setErrorCode(ErrorCodes.NON_EXISTENT_QUEUE);
+        ex.setErrorType(AmazonServiceException.ErrorType.Client);
+        ex.setStatusCode(400);
+        return ex;
+    }
+
+    /**
+     * @return whether the queue being created is FIFO, as its FifoQueue attribute says and its name must agree
+     */
+    private static boolean isFifo(final String queueName, final Map<String, String> attributes) {
+        final boolean fifo = attributes != null && attributes.containsKey(FIFO_QUEUE) && parseBoolean(FIFO_QUEUE, attributes.get(FIFO_QUEUE));
+        if (fifo && !queueName.endsWith(FIFO_SUFFIX)) {
+            throw invalidParameter("The name of a FIFO queue must end with the " + FIFO_SUFFIX + " suffix: " + queueName);
+        }
+        if (!fifo && queueName.endsWith(FIFO_SUFFIX)) {
+            throw invalidParameter("Only a FIFO queue's name may end with " + FIFO_SUFFIX + "; set " + FIFO_QUEUE + " to true: " + queueName);
+        }
+        return fifo;
+    }
+
+    /**
+     * Checks what a FIFO queue needs of a message: a group, no delay of its own, and a deduplication
+     * id unless the queue derives them from bodies.
+     *
+     * @return the message's deduplication id
+     */
+    private static String checkFifoMessage(final QueueState queue, final String body, final Map<String, MessageAttributeValue> attributes,
+                                           final Integer delaySeconds) {
+        if (delaySeconds != null) {
+            throw invalidParameter("Value " + delaySeconds + " for parameter " + DELAY_SEC
+                    + " is invalid. Reason: The request include parameter that is not valid for this queue type.");
+        }
+        if (fifoId(attributes, MESSAGE_GROUP_ID) == null) {
+            final AmazonServiceException ex = new AmazonServiceException("The request must contain the parameter " + MESSAGE_GROUP_ID + ".");
+            ex.setErrorCode(ErrorCodes.MISSING_PARAMETER);
+            ex.setErrorType(AmazonServiceException.ErrorType.Client);
+            ex.setStatusCode(400);
+            throw ex;
+        }
+        final String deduplicationId = fifoId(attributes, MESSAGE_DEDUPLICATION_ID);
+        if (deduplicationId != null) { return deduplicationId; }
+        if (!queue.contentBasedDeduplication) {
+            throw invalidParameter("The queue should either have " + CONTENT_DEDUPLICATION + " enabled or "
+                    + MESSAGE_DEDUPLICATION_ID + " provided explicitly");
+        }
+        return DigestUtils.sha256Hex(StringUtils.defaultString(body));
+    }
+
+    /**
+     * @return the named group or deduplication id of a message, or null if it has none
+     */
+    private static String fifoId(final Map<String, MessageAttributeValue> attributes, final String name) {
+        final MessageAttributeValue value = attributes == null ? null : attributes.get(name);
+        if (value == null) { return null; }
+        final String id = value.getStringValue();
+        if (!StringUtils.startsWith(value.getDataType(), "String") || id == null || id.isEmpty() || id.length() > MAX_FIFO_ID_LENGTH) {
+            throw invalidParameter(name + " must be a String of 1 to " + MAX_FIFO_ID_LENGTH + " characters: " + id);
+        }
+        for (int ix = 0; ix < id.length(); ix++) {
+            final char ch = id.charAt(ix);
+            if (ch < '!' || ch > '~') { throw invalidParameter(name + " may only contain alphanumeric characters and punctuation: " + id); }
+        }
+        return id;
+    }
+
+    static AmazonServiceException invalidParameter(final String message) {
+        final AmazonServiceException ex = new AmazonServiceException(message);
+        ex.setErrorCode(ErrorCodes.INVALID_PARAMETER_VALUE);
+        ex.setErrorType(AmazonServiceException.ErrorType.Client);
+        ex.setStatusCode(400);
+        return ex;
+    }
+
+    /**
+     * Parses a RedrivePolicy for the queue; an empty one removes the policy, and gives null.
+     */
+    private RedrivePolicy parseRedrivePolicy(final QueueState queue, final String value) {
+        if (StringUtils.isEmpty(value)) { return null; }
+        final RedrivePolicy redrive = RedrivePolicy.parse(value);
+        final QueueState target = allQueues.get(redrive.deadLetterTargetUrl);
+        if (target == null) { throw RedrivePolicy.invalid(value, "Dead letter target does not exist"); }
+        if (target.url.equals(queue.url)) { throw RedrivePolicy.invalid(value, "Dead letter target cannot be the queue itself"); }
+        if (target.fifo != queue.fifo) {
+            throw RedrivePolicy.invalid(value, "Dead-letter queue must be the same type of queue as the source");
+        }
+        return redrive;
+    }
+
+    /**
+     * Keeps deadLetterSources in step with a change of the queue's RedrivePolicy.
+     */
+    private void indexDeadLetterSource(final QueueState queue, final RedrivePolicy previous, final RedrivePolicy current) {
+        if (previous != null) {
+            final Set<String> sources = deadLetterSources.get(previous.deadLetterTargetUrl);
+            if (sources != null) { sources.remove(queue.url); }
+        }
+        if (current != null) {
+            Set<String> sources = deadLetterSources.get(current.deadLetterTargetUrl);
+            if (sources == null) {
+                final Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                sources = deadLetterSources.putIfAbsent(current.deadLetterTargetUrl, created);
+                if (sources == null) { sources = created; }
+            }
+            sources.add(queue.url);
+        }
+    }
+
+    private static boolean parseBoolean(final String name, final String value) {
+        final String trimmed = StringUtils.trim(value);
+        if ("true".equalsIgnoreCase(trimmed)) { return true; }
+        if ("false".equalsIgnoreCase(trimmed)) { return false; }
+        throw new AmazonServiceException("Invalid value for " + name + ": " + value);
+    }
+
+    private static int parseVisibilityTimeout(final String value) {
         try {
-            return new String(Md5Utils.computeMD5Hash(StringUtils.defaultString(input).getBytes()));
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
+            return checkVisibilityTimeout(Integer.valueOf(StringUtils.trim(value)));
+        } catch (NumberFormatException ex) {
+            throw new AmazonServiceException("Invalid value for " + VIS_TIMEOUT + ": " + value);
         }
     }
 
-    public void setRegion(Region region) throws IllegalArgumentException {
+    private static int checkVisibilityTimeout(final Integer timeout) {
+        if (timeout == null || timeout < 0 || timeout > MAX_VISIBILITY_TIMEOUT) {
+            throw new AmazonServiceException(VIS_TIMEOUT + " must be a value between [0," + MAX_VISIBILITY_TIMEOUT + "]");
+        }
+        return timeout;
     }
 
-    public void purgeQueue(PurgeQueueRequest purgeQueueRequest)
-            throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+    private static int parseWaitTime(final String value) {
+        try {
+            return checkWaitTime(Integer.valueOf(StringUtils.trim(value)));
+        } catch (NumberFormatException ex) {
+            throw new AmazonServiceException("Invalid value for " + RECEIVE_WAIT + ": " + value);
+        }
+    }
 
+    private static int checkWaitTime(final Integer waitTime) {
+        if (waitTime == null || waitTime < 0 || waitTime > MAX_WAIT_TIME_SECONDS) {
+            throw new AmazonServiceException("WaitTimeSeconds must be a value between [0," + MAX_WAIT_TIME_SECONDS + "]");
+        }
+        return waitTime;
     }
 
-    public ListDeadLetterSourceQueuesResult listDeadLetterSourceQueues(
-            ListDeadLetterSourceQueuesRequest listDeadLetterSourceQueuesRequest)
-            throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+    private static int parseDelaySeconds(final String value) {
+        try {
+            return checkDelaySeconds(Integer.valueOf(StringUtils.trim(value)));
+        } catch (NumberFormatException ex) {
+            throw new AmazonServiceException("Invalid value for " + DELAY_SEC + ": " + value);
+        }
+    }
 
+    private static int checkDelaySeconds(final Integer delaySeconds) {
+        if (delaySeconds == null || delaySeconds < 0 || delaySeconds > MAX_DELAY_SECONDS) {
+            throw new AmazonServiceException(DELAY_SEC + " must be a value between [0," + MAX_DELAY_SECONDS + "]");
+        }
+        return delaySeconds;
+    }
+
+    private static int parseMaximumMessageSize(final String value) {
+        try {
+            final int size = Integer.parseInt(StringUtils.trim(value));
+            if (size >= MIN_MESSAGE_SIZE && size <= MAX_MESSAGE_SIZE) { return size; }
+        } catch (NumberFormatException ex) {
+            // Reported below
+        }
+        throw new AmazonServiceException(MAX_SIZE + " must be a value between [" + MIN_MESSAGE_SIZE + "," + MAX_MESSAGE_SIZE + "]: " + value);
+    }
+
+    private static int parseRetentionPeriod(final String value) {
+        try {
+            final int period = Integer.parseInt(StringUtils.trim(value));
+            if (period >= MIN_RETENTION_PERIOD && period <= MAX_RETENTION_PERIOD) { return period; }
+        } catch (NumberFormatException ex) {
+            // Reported below
+        }
+        throw new AmazonServiceException(RETENTION + " must be a value between [" + MIN_RETENTION_PERIOD + "," + MAX_RETENTION_PERIOD + "]: " + value);
+    }
+
+    private static void checkBatchSize(final List<?> entries) {
+        if (entries == null || entries.isEmpty()) { throw new EmptyBatchRequestException("There should be at least one entry in the batch request"); }
+        if (entries.size() > MAX_BATCH_SIZE) { throw new TooManyEntriesInBatchRequestException("Maximum number of entries per request are " + MAX_BATCH_SIZE + ": " + entries.size()); }
+    }
+
+    private static void checkBatchId(final Set<String> ids, final String id) {
+        if (id == null || !BATCH_ID_PATTERN.matcher(id).matches()) { throw new InvalidBatchEntryIdException("Invalid batch entry id: " + id); }
+        if (!ids.add(id)) { throw new BatchEntryIdsNotDistinctException("Batch entry ids must be distinct: " + id); }
+    }
+
+    private static BatchResultErrorEntry makeErrorEntry(final String id, final AmazonServiceException ex) {
+        return new BatchResultErrorEntry().withId(id).withSenderFault(ex.getErrorType() != AmazonServiceException.ErrorType.Service)
+                .withCode(ErrorCodes.of(ex)).withMessage(ex.getErrorMessage());
+    }
+
+
+    public void setRegion(Region region) throws IllegalArgumentException {
     }
 
     public void setQueueAttributes(String queueUrl,
             Map<String, String> attributes) throws AmazonServiceException,
             AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        setQueueAttributes(new SetQueueAttributesRequest(queueUrl, attributes));
 
     }
 
@@ -375,20 +1475,18 @@ public class AmazonSQSMock implements AmazonSQS {
             String queueUrl,
             List<ChangeMessageVisibilityBatchRequestEntry> entries)
             throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
-
+        return changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queueUrl, entries));
     }
 
     public void changeMessageVisibility(String queueUrl, String receiptHandle,
             Integer visibilityTimeout) throws AmazonServiceException,
             AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
-
+        changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, receiptHandle, visibilityTimeout));
     }
 
     public GetQueueUrlResult getQueueUrl(String queueName)
             throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        return getQueueUrl(new GetQueueUrlRequest(queueName));
 
     }
 
@@ -401,51 +1499,52 @@ public class AmazonSQSMock implements AmazonSQS {
     public GetQueueAttributesResult getQueueAttributes(String queueUrl,
             List<String> attributeNames) throws AmazonServiceException,
             AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        return getQueueAttributes(new GetQueueAttributesRequest(queueUrl, attributeNames));
 
     }
 
     public SendMessageBatchResult sendMessageBatch(String queueUrl,
             List<SendMessageBatchRequestEntry> entries)
             throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        return sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries));
 
     }
 
     public void deleteQueue(String queueUrl) throws AmazonServiceException,
             AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        deleteQueue(new DeleteQueueRequest(queueUrl));
 
     }
 
     public SendMessageResult sendMessage(String queueUrl, String messageBody)
             throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        return sendMessage(new SendMessageRequest(queueUrl, messageBody));
 
     }
 
     public ReceiveMessageResult receiveMessage(String queueUrl)
             throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        // One message, as SQS defaults to when MaxNumberOfMessages is left out
+        return receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1));
 
     }
 
     public ListQueuesResult listQueues(String queueNamePrefix)
             throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        return listQueues(new ListQueuesRequest(queueNamePrefix));
 
     }
 
     public DeleteMessageBatchResult deleteMessageBatch(String queueUrl,
             List<DeleteMessageBatchRequestEntry> entries)
             throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        return deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
 
     }
 
     public CreateQueueResult createQueue(String queueName)
             throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        return createQueue(new CreateQueueRequest(queueName));
 
     }
 
@@ -458,7 +1557,7 @@ public class AmazonSQSMock implements AmazonSQS {
 
     public void deleteMessage(String queueUrl, String receiptHandle)
             throws AmazonServiceException, AmazonClientException {
-        throw new RuntimeException(NYI_EXCEPTION);
+        deleteMessage(new DeleteMessageRequest(queueUrl, receiptHandle));
 
     }
 
@@ -0,0 +1,19 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.List;
+
+/**
+ * The management interface of a mock registered with {@link AmazonSQSMock#registerMBean(String)},
+ * as seen from JConsole, VisualVM or any other JMX client. Every read takes a fresh
+ * {@link MetricsSnapshot}.
+ */
+public interface AmazonSQSMockMXBean {
+
+    List<OperationMetrics> getOperations();
+
+    List<QueueMetrics> getQueues();
+
+    long getStoredBytes();
+
+    int getQueueCount();
+}
@@ -0,0 +1,555 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+
+/**
+ * Serves an {@link AmazonSQS} engine, normally an {@link AmazonSQSMock}, over HTTP using the SQS
+ * query protocol, so that other processes and non-Java clients can share one mock. Point a client
+ * at {@link #getEndpoint()}:
+ *
+ * <pre>
+ *     AmazonSQSMockServer server = new AmazonSQSMockServer(new AmazonSQSMock(), 9324);
+ *     server.start();
+ *     AmazonSQSClient client = new AmazonSQSClient(new BasicAWSCredentials("x", "x"));
+ *     client.setEndpoint(server.getEndpoint());
+ * </pre>
+ *
+ * An acceptor thread hands connections out to a few NIO event loops. Connections are kept alive
+ * and may pipeline requests; each response is encoded straight into bytes on the event loop and
+ * responses go back in request order. A receive that has to wait for messages holds no thread:
+ * it waits among the queue's receivers, and whichever thread ends the wait hands its response
+ * back to the connection's event loop. Only calls that may block leave the event loop, for a pool
+ * of polling threads: every call while the mock has a {@link FaultProfile}, so that its delays
+ * hold up no other connection, and a receive that may wait on an engine other than the mock.
+ * Requests are not authenticated.
+ */
+public class AmazonSQSMockServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    // A batch may carry 256KB of messages, which form encoding can triple
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+    private static final int MAX_PIPELINED = 256;
+    private static final int MAX_GATHER = 16;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(UTF_8);
+
+    private final QueryProtocol protocol;
+    private final InetSocketAddress address;
+    private final int loopCount;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private Thread acceptor;
+    private ExecutorService pollers;
+    private volatile boolean running = false;
+
+    /**
+     * Listens on the loopback interface.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     */
+    public AmazonSQSMockServer(final AmazonSQS engine, final int port) {
+        this(engine, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), Runtime.getRuntime().availableProcessors());
+    }
+
+    public AmazonSQSMockServer(final AmazonSQS engine, final InetSocketAddress address, final int eventLoops) {
+        if (engine == null) { throw new IllegalArgumentException("Null engine"); }
+        if (eventLoops < 1) { throw new IllegalArgumentException("eventLoops must be at least 1: " + eventLoops); }
+        this.protocol = new QueryProtocol(engine);
+        this.address = address;
+        this.loopCount = eventLoops;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) { return; }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address, 1024);
+        pollers = Executors.newCachedThreadPool(daemonThreads("mock-sqs-server-poller-"));
+        loops = new EventLoop[loopCount];
+        running = true;
+        final ThreadFactory loopThreads = daemonThreads("mock-sqs-server-loop-");
+        for (int ix = 0; ix < loops.length; ix++) {
+            loops[ix] = new EventLoop();
+            loopThreads.newThread(loops[ix]).start();
+        }
+        acceptor = daemonThreads("mock-sqs-server-acceptor-").newThread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+        acceptor.start();
+    }
+
+    /**
+     * Closes the listening socket and every connection. Waiting receives are abandoned.
+     */
+    public synchronized void stop() {
+        if (!running) { return; }
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ex) {
+            // Closing anyway
+        }
+        for (final EventLoop loop : loops) { loop.selector.wakeup(); }
+        pollers.shutdownNow();
+        protocol.cancelWaiting();
+    }
+
+    /**
+     * @return the port being listened on, which is only known for port 0 once started
+     */
+    public int getPort() {
+        final ServerSocketChannel channel = serverChannel;
+        return channel == null ? address.getPort() : channel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the URL to hand to a client's setEndpoint
+     */
+    public String getEndpoint() {
+        final InetAddress host = address.getAddress();
+        final String name = host == null || host.isAnyLocalAddress() ? "localhost" : host.getHostAddress();
+        return "http://" + (name.indexOf(':') >= 0 ? "[" + name + "]" : name) + ":" + getPort();
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next++ % loops.length].register(channel);
+            } catch (IOException ex) {
+                // Either stop() closed the server socket, or one accept failed and we carry on
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * One selector thread and the connections assigned to it. Other threads only ever talk to a
+     * loop through its task queue.
+     */
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        // Reused for every response encoded on this loop
+        final ResponseBuffer body = new ResponseBuffer(4096);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(final SocketChannel channel) {
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        final Connection conn = new Connection(EventLoop.this, channel);
+                        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                    } catch (ClosedChannelException ex) {
+                        // Gone before it was registered
+                    }
+                }
+            });
+        }
+
+        void execute(final Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) { task.run(); }
+                    for (final SelectionKey key : selector.selectedKeys()) {
+                        final Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) { conn.flush(); }
+                            if (key.isValid() && key.isReadable()) { conn.read(); }
+                        } catch (IOException ex) {
+                            conn.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException ex) {
+                // The selector itself failed; drop this loop's connections
+            } finally {
+                for (final SelectionKey key : selector.keys()) { ((Connection) key.attachment()).close(); }
+                try {
+                    selector.close();
+                } catch (IOException ex) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * A response slot, filled in when the response is ready; slots are written in request order.
+     */
+    private static final class Response {
+        ByteBuffer bytes;
+        boolean close;
+    }
+
+    /**
+     * The state of one client connection. Only ever touched by its event loop.
+     */
+    private final class Connection {
+        final EventLoop loop;
+        final SocketChannel channel;
+        final ArrayDeque<Response> responses = new ArrayDeque<Response>();
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        SelectionKey key;
+        byte[] in = new byte[READ_BUFFER_SIZE];
+        int start = 0;
+        int end = 0;
+        boolean closing = false;
+        // Set when parsing stopped at the pipeline limit with requests still buffered
+        boolean heldBack = false;
+
+        // The request whose body is still arriving, if any
+        int bodyLength = -1;
+        String target;
+        String host;
+        boolean keepAlive;
+        boolean continueSent;
+
+        Connection(final EventLoop loop, final SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (end == in.length) { compactOrGrow(); }
+            final int count = channel.read(ByteBuffer.wrap(in, end, in.length - end));
+            if (count < 0) {
+                close();
+                return;
+            }
+            end += count;
+            parse();
+            flush();
+        }
+
+        /**
+         * Handles every complete request in the buffer, until the pipeline limit is reached.
+         */
+        void parse() {
+            while (!closing) {
+                if (responses.size() >= MAX_PIPELINED) {
+                    heldBack = true;
+                    return;
+                }
+                if (bodyLength < 0 && !parseHead()) { return; }
+                if (closing) { return; }
+                if (end - start < bodyLength) {
+                    if (bodyLength > in.length - start) { compactOrGrow(); }
+                    return;
+                }
+                final Map<String, String> params = new HashMap<String, String>();
+                final int query = target.indexOf('?');
+                final String path = query < 0 ? target : target.substring(0, query);
+                if (query >= 0) {
+                    final byte[] bytes = target.getBytes(UTF_8);
+                    decodeForm(bytes, query + 1, bytes.length, params);
+                }
+                decodeForm(in, start, start + bodyLength, params);
+                start += bodyLength;
+                bodyLength = -1;
+                dispatch(new QueryProtocol.Call(host, path, params), keepAlive);
+            }
+        }
+
+        /**
+         * Parses the request line and headers, if they have all arrived.
+         *
+         * @return false if more bytes are needed
+         */
+        boolean parseHead() {
+            final int headEnd = indexOfBlankLine();
+            if (headEnd < 0) {
+                if (end - start > MAX_HEADER_SIZE) { reject(431, "Request header too large"); }
+                return false;
+            }
+            final String head = new String(in, start, headEnd - start, UTF_8);
+            start = headEnd + 4;
+            final String[] lines = head.split("\r\n");
+            final String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                reject(400, "Malformed request line");
+                return true;
+            }
+            target = requestLine[1];
+            host = "localhost:" + getPort();
+            keepAlive = !"HTTP/1.0".equals(requestLine[2]);
+            bodyLength = 0;
+            continueSent = false;
+            boolean expectContinue = false;
+            for (int ix = 1; ix < lines.length; ix++) {
+                final int colon = lines[ix].indexOf(':');
+                if (colon <= 0) { continue; }
+                final String name = lines[ix].substring(0, colon).trim();
+                final String value = lines[ix].substring(colon + 1).trim();
+                if ("Host".equalsIgnoreCase(name)) {
+                    host = value;
+                } else if ("Content-Length".equalsIgnoreCase(name)) {
+                    try {
+                        bodyLength = Integer.parseInt(value);
+                    } catch (NumberFormatException ex) {
+                        bodyLength = -2;
+                    }
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    if ("close".equalsIgnoreCase(value)) { keepAlive = false; }
+                    if ("keep-alive".equalsIgnoreCase(value)) { keepAlive = true; }
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name) && !"identity".equalsIgnoreCase(value)) {
+                    reject(501, "Transfer-Encoding " + value + " is not supported; send a Content-Length");
+                    return true;
+                } else if ("Expect".equalsIgnoreCase(name) && "100-continue".equalsIgnoreCase(value)) {
+                    expectContinue = true;
+                }
+            }
+            if (bodyLength < 0) {
+                reject(400, "Invalid Content-Length");
+            } else if (bodyLength > MAX_BODY_SIZE) {
+                reject(413, "Request body too large");
+            } else if (expectContinue && end - start < bodyLength) {
+                final Response response = new Response();
+                response.bytes = ByteBuffer.wrap(CONTINUE);
+                responses.add(response);
+                continueSent = true;
+            }
+            return true;
+        }
+
+        void dispatch(final QueryProtocol.Call call, final boolean keepAlive) {
+            final Response response = new Response();
+            response.close = !keepAlive;
+            responses.add(response);
+            if (!keepAlive) { closing = true; }
+            loop.body.reset();
+            final int status = protocol.handle(call, loop.body, false, new QueryProtocol.Responder() {
+                public void respond(final int status, final ResponseBuffer body) {
+                    answer(response, status, body);
+                }
+            });
+            if (status == QueryProtocol.PENDING) { return; }
+            if (status != QueryProtocol.WOULD_BLOCK) {
+                response.bytes = encode(status, loop.body, response.close);
+                return;
+            }
+            // A call a fault profile may delay, or a long poll on another engine: run it on a polling thread
+            pollers.execute(new Runnable() {
+                public void run() {
+                    final ResponseBuffer body = new ResponseBuffer(1024);
+                    answer(response, protocol.handle(call, body, true, null), body);
+                }
+            });
+        }
+
+        /**
+         * Fills in a response from another thread, then comes back to this loop to send it.
+         */
+        void answer(final Response response, final int status, final ResponseBuffer body) {
+            final ByteBuffer bytes = encode(status, body, response.close);
+            loop.execute(new Runnable() {
+                public void run() {
+                    response.bytes = bytes;
+                    try {
+                        flush();
+                    } catch (IOException ex) {
+                        close();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Writes out every ready response at the head of the queue, in one gathering write.
+         */
+        void flush() throws IOException {
+            if (!channel.isOpen()) { return; }
+            while (true) {
+                int count = 0;
+                for (final Response response : responses) {
+                    if (response.bytes == null || count == gather.length) { break; }
+                    gather[count++] = response.bytes;
+                }
+                if (count == 0) { break; }
+                channel.write(gather, 0, count);
+                boolean blocked = false;
+                for (int ix = 0; ix < count; ix++) {
+                    if (gather[ix].hasRemaining()) {
+                        blocked = true;
+                        break;
+                    }
+                    final Response done = responses.poll();
+                    if (done.close) {
+                        close();
+                        return;
+                    }
+                }
+                Arrays.fill(gather, null);
+                if (blocked) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            // Caught up: pick up requests held back by the pipeline limit, and stop reading while at it
+            if (heldBack && responses.size() < MAX_PIPELINED) {
+                heldBack = false;
+                parse();
+                flush();
+                return;
+            }
+            key.interestOps(closing || heldBack ? 0 : SelectionKey.OP_READ);
+        }
+
+        void reject(final int status, final String message) {
+            final ResponseBuffer body = new ResponseBuffer(256);
+            body.ascii("<ErrorResponse><Error><Type>Sender</Type>")
+                    .element("Code", "InvalidRequest").element("Message", message)
+                    .ascii("</Error></ErrorResponse>");
+            final Response response = new Response();
+            response.bytes = encode(status, body, true);
+            response.close = true;
+            responses.add(response);
+            closing = true;
+        }
+
+        int indexOfBlankLine() {
+            for (int ix = start; ix + 3 < end; ix++) {
+                if (in[ix] == '\r' && in[ix + 1] == '\n' && in[ix + 2] == '\r' && in[ix + 3] == '\n') { return ix; }
+            }
+            return -1;
+        }
+
+        /**
+         * Makes room at the end of the buffer: moves unparsed bytes to the front, and grows if that is not enough.
+         */
+        void compactOrGrow() {
+            final int needed = Math.max(READ_BUFFER_SIZE, bodyLength > 0 ? bodyLength + READ_BUFFER_SIZE : 0);
+            if (start > 0) {
+                System.arraycopy(in, start, in, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (in.length - end < READ_BUFFER_SIZE / 4 || in.length < needed) {
+                in = Arrays.copyOf(in, Math.max(in.length * 2, needed));
+            }
+        }
+
+        void close() {
+            if (key != null) { key.cancel(); }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private static ByteBuffer encode(final int status, final ResponseBuffer body, final boolean close) {
+        final ResponseBuffer out = new ResponseBuffer(body.length() + 128);
+        out.ascii("HTTP/1.1 ").ascii(status).ascii(" ").ascii(reason(status))
+                .ascii("\r\nContent-Type: text/xml\r\nContent-Length: ").ascii(body.length())
+                .ascii(close ? "\r\nConnection: close\r\n\r\n" : "\r\n\r\n")
+                .bytes(body);
+        return out.wrap();
+    }
+
+    private static String reason(final int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 413: return "Request Entity Too Large";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "Status " + status;
+        }
+    }
+
+    /**
+     * Decodes application/x-www-form-urlencoded name=value pairs from bytes[from, to) into params.
+     */
+    static void decodeForm(final byte[] bytes, final int from, final int to, final Map<String, String> params) {
+        final byte[] scratch = new byte[to - from];
+        int pos = from;
+        while (pos < to) {
+            int amp = pos;
+            while (amp < to && bytes[amp] != '&') { amp++; }
+            int eq = pos;
+            while (eq < amp && bytes[eq] != '=') { eq++; }
+            if (eq > pos) {
+                final String name = decode(bytes, pos, eq, scratch);
+                params.put(name, eq < amp ? decode(bytes, eq + 1, amp, scratch) : "");
+            }
+            pos = amp + 1;
+        }
+    }
+
+    private static String decode(final byte[] bytes, final int from, final int to, final byte[] scratch) {
+        int len = 0;
+        for (int ix = from; ix < to; ix++) {
+            final byte b = bytes[ix];
+            if (b == '+') {
+                scratch[len++] = ' ';
+            } else if (b == '%' && ix + 2 < to && hex(bytes[ix + 1]) >= 0 && hex(bytes[ix + 2]) >= 0) {
+                scratch[len++] = (byte) ((hex(bytes[ix + 1]) << 4) | hex(bytes[ix + 2]));
+                ix += 2;
+            } else {
+                scratch[len++] = b;
+            }
+        }
+        return new String(scratch, 0, len, UTF_8);
+    }
+
+    private static int hex(final byte b) {
+        if (b >= '0' && b <= '9') { return b - '0'; }
+        if (b >= 'a' && b <= 'f') { return b - 'a' + 10; }
+        if (b >= 'A' && b <= 'F') { return b - 'A' + 10; }
+        return -1;
+    }
+}
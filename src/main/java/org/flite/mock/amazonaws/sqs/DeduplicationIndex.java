@@ -0,0 +1,67 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The deduplication ids a FIFO queue has been sent in the last five minutes, each with the message
+ * it was first sent with.
+ *
+ * Ids are hashed for lookup, and also queued in the order they arrived. Every id is kept for the
+ * same interval, so that is also the order they expire in: expiring is a matter of dropping entries
+ * from the head of the queue as new ids come in, and both a check and the expiry it triggers are
+ * O(1) however fast messages are sent. Only the id and a message number are kept per entry, never
+ * the message itself.
+ */
+final class DeduplicationIndex {
+
+    static final long INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private static final class Entry {
+        final String id;
+        final long idNumber;
+        final long expiresAt;
+
+        Entry(final String id, final long idNumber, final long expiresAt) {
+            this.id = id;
+            this.idNumber = idNumber;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final ArrayDeque<Entry> arrivals = new ArrayDeque<Entry>();
+
+    /**
+     * Records the deduplication id as sent with the given message, unless it was already sent within the interval.
+     *
+     * @return the id number of the message it was first sent with, or -1 if it is new
+     */
+    synchronized long claim(final String id, final long idNumber, final long nowNanos) {
+        expire(nowNanos);
+        final Entry existing = entries.get(id);
+        if (existing != null) { return existing.idNumber; }
+        final Entry entry = new Entry(id, idNumber, nowNanos + INTERVAL_NANOS);
+        entries.put(id, entry);
+        arrivals.addLast(entry);
+        return -1;
+    }
+
+    /**
+     * Forgets an id this caller claimed, for a message that ended up not being sent after all.
+     */
+    synchronized void release(final String id) {
+        entries.remove(id);
+    }
+
+    private void expire(final long nowNanos) {
+        Entry head;
+        while ((head = arrivals.peekFirst()) != null && head.expiresAt - nowNanos <= 0) {
+            arrivals.pollFirst();
+            // Unless it was released and claimed again since
+            if (entries.get(head.id) == head) { entries.remove(head.id); }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Staging area for the delayed messages of one queue.
+ *
+ * Messages wait in a heap ordered by due time. Only the earliest due time is ever on the timer
+ * wheel, as a single promotion; when it fires, everything that has come due moves to the
+ * visible store in one bulk append and the next promotion is scheduled. There is no timer
+ * per message, and the delayed count is a counter rather than a walk of the heap.
+ */
+class DelayedMessages {
+
+    static final class Entry implements Comparable<Entry> {
+        final long due;
+        final long seq;
+        final StoredMessage message;
+
+        Entry(final long due, final long seq, final StoredMessage message) {
+            this.due = due;
+            this.seq = seq;
+            this.message = message;
+        }
+
+        public int compareTo(final Entry other) {
+            // Messages due at the same instant keep their send order
+            if (due != other.due) { return due < other.due ? -1 : 1; }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    private final class Promotion extends TimerWheel.Timeout {
+        final long due;
+
+        Promotion(final long due) {
+            this.due = due;
+        }
+
+        @Override
+        protected void expire() {
+            promoteDue(this);
+        }
+    }
+
+    private final QueueState queue;
+    private final TimerWheel timer;
+    private PriorityQueue<Entry> heap = new PriorityQueue<Entry>();
+    private final AtomicInteger size = new AtomicInteger();
+    private long seq = 0;
+    private Promotion scheduled;
+
+    DelayedMessages(final QueueState queue, final TimerWheel timer) {
+        this.queue = queue;
+        this.timer = timer;
+    }
+
+    void add(final StoredMessage msg, final int delaySeconds) {
+        final long now = System.nanoTime();
+        synchronized (this) {
+            stage(msg, now + TimeUnit.SECONDS.toNanos(delaySeconds));
+            reschedule(now);
+        }
+    }
+
+    /**
+     * Stages several messages under one lock; delaySeconds runs parallel to msgs.
+     */
+    void addAll(final List<StoredMessage> msgs, final List<Integer> delaySeconds) {
+        if (msgs.isEmpty()) { return; }
+        final long now = System.nanoTime();
+        synchronized (this) {
+            for (int ix = 0; ix < msgs.size(); ix++) {
+                stage(msgs.get(ix), now + TimeUnit.SECONDS.toNanos(delaySeconds.get(ix)));
+            }
+            reschedule(now);
+        }
+    }
+
+    /**
+     * Stages a message recovered from disk, due after the given number of milliseconds.
+     */
+    void restore(final StoredMessage msg, final long delayMillis) {
+        final long now = System.nanoTime();
+        synchronized (this) {
+            stage(msg, now + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+            reschedule(now);
+        }
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return everything staged, in due order
+     */
+    synchronized List<Entry> entries() {
+        final List<Entry> entries = new ArrayList<Entry>(heap);
+        Collections.sort(entries);
+        return entries;
+    }
+
+    /**
+     * Drops everything staged, e.g. when the queue is deleted.
+     *
+     * @return the messages dropped
+     */
+    synchronized List<StoredMessage> clear() {
+        final List<StoredMessage> dropped = new ArrayList<StoredMessage>(heap.size());
+        for (final Entry entry : heap) { dropped.add(entry.message); }
+        heap.clear();
+        size.set(0);
+        if (scheduled != null) {
+            scheduled.cancel();
+            scheduled = null;
+        }
+        return dropped;
+    }
+
+    /**
+     * Drops everything staged by swapping in an empty heap, as when the queue is purged.
+     */
+    synchronized void purge() {
+        heap = new PriorityQueue<Entry>();
+        size.set(0);
+        if (scheduled != null) {
+            scheduled.cancel();
+            scheduled = null;
+        }
+    }
+
+    private void stage(final StoredMessage msg, final long due) {
+        heap.add(new Entry(due, seq++, msg));
+        size.incrementAndGet();
+    }
+
+    /**
+     * Makes sure a promotion is scheduled for the earliest due time. Must hold the lock.
+     */
+    private void reschedule(final long now) {
+        final Entry first = heap.peek();
+        if (first == null || (scheduled != null && scheduled.due <= first.due)) { return; }
+        if (scheduled != null) { scheduled.cancel(); }
+        scheduled = new Promotion(first.due);
+        timer.schedule(scheduled, first.due - now, TimeUnit.NANOSECONDS);
+    }
+
+    private void promoteDue(final Promotion promotion) {
+        final List<StoredMessage> due = new ArrayList<StoredMessage>();
+        // No record needed: recovery works out from the due time that the message is visible
+        queue.journal.lock();
+        try {
+            synchronized (this) {
+                if (scheduled != promotion) { return; }
+                scheduled = null;
+                final long now = System.nanoTime();
+                while (!heap.isEmpty() && heap.peek().due <= now) { due.add(heap.poll().message); }
+                size.addAndGet(-due.size());
+                reschedule(now);
+            }
+            if (queue.isDeleted()) { return; }
+            // A delay can outlast a short retention period
+            final long nowMillis = System.currentTimeMillis();
+            for (final Iterator<StoredMessage> it = due.iterator(); it.hasNext(); ) {
+                final StoredMessage msg = it.next();
+                if (queue.retention.isExpired(msg, nowMillis)) {
+                    it.remove();
+                    queue.retention.drop(msg);
+                }
+            }
+            queue.visible.addAll(due);
+        } finally {
+            queue.journal.unlock();
+        }
+    }
+}
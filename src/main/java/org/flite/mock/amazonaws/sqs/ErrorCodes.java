@@ -0,0 +1,52 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * The error codes SQS puts on the wire for each of the modelled exceptions, used for batch
+ * result error entries and by the HTTP frontend.
+ */
+final class ErrorCodes {
+
+    static final String NON_EXISTENT_QUEUE = "AWS.SimpleQueueService.NonExistentQueue";
+    static final String UNSUPPORTED_OPERATION = "AWS.SimpleQueueService.UnsupportedOperation";
+    static final String INVALID_PARAMETER_VALUE = "InvalidParameterValue";
+    static final String MISSING_PARAMETER = "MissingParameter";
+    static final String INTERNAL_ERROR = "InternalError";
+    // Not what SQS sends when it throttles, but what this SDK's retry policy recognises as throttling
+    static final String THROTTLING = "ThrottlingException";
+
+    private static final Map<String, String> BY_EXCEPTION = new HashMap<String, String>();
+    static {
+        BY_EXCEPTION.put("QueueDoesNotExistException", NON_EXISTENT_QUEUE);
+        BY_EXCEPTION.put("ReceiptHandleIsInvalidException", "ReceiptHandleIsInvalid");
+        BY_EXCEPTION.put("MessageNotInflightException", "AWS.SimpleQueueService.MessageNotInflight");
+        BY_EXCEPTION.put("InvalidAttributeNameException", "InvalidAttributeName");
+        BY_EXCEPTION.put("InvalidIdFormatException", "InvalidIdFormat");
+        BY_EXCEPTION.put("InvalidMessageContentsException", "InvalidMessageContents");
+        BY_EXCEPTION.put("OverLimitException", "OverLimit");
+        BY_EXCEPTION.put("EmptyBatchRequestException", "AWS.SimpleQueueService.EmptyBatchRequest");
+        BY_EXCEPTION.put("TooManyEntriesInBatchRequestException", "AWS.SimpleQueueService.TooManyEntriesInBatchRequest");
+        BY_EXCEPTION.put("BatchEntryIdsNotDistinctException", "AWS.SimpleQueueService.BatchEntryIdsNotDistinct");
+        BY_EXCEPTION.put("InvalidBatchEntryIdException", "AWS.SimpleQueueService.InvalidBatchEntryId");
+        BY_EXCEPTION.put("BatchRequestTooLongException", "AWS.SimpleQueueService.BatchRequestTooLong");
+        BY_EXCEPTION.put("PurgeQueueInProgressException", "AWS.SimpleQueueService.PurgeQueueInProgress");
+        BY_EXCEPTION.put("QueueNameExistsException", "QueueAlreadyExists");
+        BY_EXCEPTION.put("QueueDeletedRecentlyException", "AWS.SimpleQueueService.QueueDeletedRecently");
+        BY_EXCEPTION.put("UnsupportedOperationException", UNSUPPORTED_OPERATION);
+    }
+
+    private ErrorCodes() { }
+
+    /**
+     * @return the code already on the exception, else the SQS code for its type, else InvalidParameterValue
+     */
+    static String of(final AmazonServiceException ex) {
+        if (ex.getErrorCode() != null) { return ex.getErrorCode(); }
+        final String code = BY_EXCEPTION.get(ex.getClass().getSimpleName());
+        return code != null ? code : INVALID_PARAMETER_VALUE;
+    }
+}
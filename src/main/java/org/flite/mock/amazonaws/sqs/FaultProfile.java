@@ -0,0 +1,108 @@
+package org.flite.mock.amazonaws.sqs;
+
+/**
+ * How a mock should misbehave, to see how a client copes with the latency, throttling and errors
+ * of the real service: set one with {@link AmazonSQSMock#setFaultProfile(FaultProfile)}, for one
+ * action, or for one queue. Everything is off until asked for:
+ *
+ * <pre>
+ *     sqs.setFaultProfile(new FaultProfile()
+ *             .withLatency(8, 60)                  // median 8ms, p99 60ms
+ *             .withRateLimit(300, 50)              // 300 calls a second, bursts of 50
+ *             .withServerErrorRate(0.001)          // one call in a thousand fails with a 500
+ *             .withBatchEntryFailureRate(0.01));   // one batch entry in a hundred fails
+ * </pre>
+ *
+ * A profile is copied when it is set, so changing it afterwards changes nothing until it is set again.
+ */
+public final class FaultProfile {
+
+    private double medianLatencyMillis = 0;
+    private double p99LatencyMillis = 0;
+    private double callsPerSecond = 0;
+    private int burst = 0;
+    private double serverErrorRate = 0;
+    private double batchEntryFailureRate = 0;
+
+    /**
+     * Delays each call by a time drawn from a log-normal distribution, the long-tailed shape of
+     * real service latency, with the given median and 99th percentile. Equal values give a fixed
+     * delay, and 0 and 0 none.
+     */
+    public FaultProfile withLatency(final double medianMillis, final double p99Millis) {
+        if (medianMillis < 0 || p99Millis < medianMillis || (medianMillis == 0 && p99Millis > 0)) {
+            throw new IllegalArgumentException("Need 0 < median <= p99, or both 0: " + medianMillis + ", " + p99Millis);
+        }
+        this.medianLatencyMillis = medianMillis;
+        this.p99LatencyMillis = p99Millis;
+        return this;
+    }
+
+    /**
+     * Lets calls through at up to callsPerSecond, with bursts of up to burst calls after a quiet
+     * spell, as a token bucket would; the rest fail with a ThrottlingException (HTTP 400), which
+     * the SDK retries with its throttling back-off. 0 calls a second means no limit.
+     */
+    public FaultProfile withRateLimit(final double callsPerSecond, final int burst) {
+        if (callsPerSecond < 0 || (callsPerSecond > 0 && burst < 1)) {
+            throw new IllegalArgumentException("Need a rate of at least 0 and a burst of at least 1: " + callsPerSecond + ", " + burst);
+        }
+        this.callsPerSecond = callsPerSecond;
+        this.burst = burst;
+        return this;
+    }
+
+    /**
+     * Fails that fraction of calls, chosen at random, with an InternalError (HTTP 500), without
+     * doing anything; the SDK retries these.
+     */
+    public FaultProfile withServerErrorRate(final double rate) {
+        this.serverErrorRate = checkRate(rate);
+        return this;
+    }
+
+    /**
+     * Fails that fraction of the entries of batch calls, chosen at random, with an InternalError
+     * that is not the sender's fault, leaving the rest of the batch to succeed. A failed entry
+     * does nothing: a message is not sent, deleted or changed.
+     */
+    public FaultProfile withBatchEntryFailureRate(final double rate) {
+        this.batchEntryFailureRate = checkRate(rate);
+        return this;
+    }
+
+    public double getMedianLatencyMillis() {
+        return medianLatencyMillis;
+    }
+
+    public double getP99LatencyMillis() {
+        return p99LatencyMillis;
+    }
+
+    public double getCallsPerSecond() {
+        return callsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public double getServerErrorRate() {
+        return serverErrorRate;
+    }
+
+    public double getBatchEntryFailureRate() {
+        return batchEntryFailureRate;
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + medianLatencyMillis + "ms/" + p99LatencyMillis + "ms (p50/p99), rateLimit=" + callsPerSecond
+                + "/s (burst " + burst + "), serverErrorRate=" + serverErrorRate + ", batchEntryFailureRate=" + batchEntryFailureRate;
+    }
+
+    private static double checkRate(final double rate) {
+        if (rate < 0 || rate > 1) { throw new IllegalArgumentException("Need a rate between 0 and 1: " + rate); }
+        return rate;
+    }
+}
@@ -0,0 +1,175 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.flite.mock.amazonaws.sqs.Metrics.Operation;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * The fault profiles set on one mock, and what they do to each call.
+ *
+ * A call takes the profile of its queue if there is one, else that of its action, else the one
+ * set for every call. With none set, a call costs one volatile read here. Each profile set has a
+ * token bucket of its own, kept as a single theoretical arrival time (GCRA) so that taking a token
+ * is one compare-and-set and refilling costs nothing.
+ */
+final class Faults {
+
+    // The z-score of the 99th percentile of the standard normal distribution
+    private static final double P99_Z = 2.3263478740408408;
+
+    /**
+     * A {@link FaultProfile} as set: its settings, copied so that changing it later makes no
+     * difference, and the state of its token bucket.
+     */
+    static final class Profile {
+        private final double mu;
+        private final double sigma;
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final double serverErrorRate;
+        private final double batchEntryFailureRate;
+        private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+
+        Profile(final FaultProfile profile) {
+            final double median = TimeUnit.MILLISECONDS.toNanos(1) * profile.getMedianLatencyMillis();
+            final double p99 = TimeUnit.MILLISECONDS.toNanos(1) * profile.getP99LatencyMillis();
+            this.mu = median > 0 ? Math.log(median) : Double.NEGATIVE_INFINITY;
+            this.sigma = median > 0 ? (Math.log(p99) - mu) / P99_Z : 0;
+            this.intervalNanos = profile.getCallsPerSecond() > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / profile.getCallsPerSecond())) : 0;
+            this.burstNanos = intervalNanos * profile.getBurst();
+            this.serverErrorRate = profile.getServerErrorRate();
+            this.batchEntryFailureRate = profile.getBatchEntryFailureRate();
+        }
+
+        /**
+         * Delays the call, then throttles or fails it if it comes to that.
+         */
+        void before() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (mu != Double.NEGATIVE_INFINITY) { pause((long) Math.exp(mu + sigma * random.nextGaussian())); }
+            if (intervalNanos > 0 && !takeToken()) { throw throttled(); }
+            if (serverErrorRate > 0 && random.nextDouble() < serverErrorRate) { throw internalError(); }
+        }
+
+        /**
+         * Fails one entry of a batch call if it comes to that; the caller turns the exception into a failed entry.
+         */
+        void beforeEntry() {
+            if (batchEntryFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < batchEntryFailureRate) { throw internalError(); }
+        }
+
+        private boolean takeToken() {
+            while (true) {
+                final long now = System.nanoTime();
+                final long current = arrival.get();
+                // Idle time refills the bucket up to the burst, and no further
+                final long next = Math.max(current, now) + intervalNanos;
+                if (next - now > burstNanos) { return false; }
+                if (arrival.compareAndSet(current, next)) { return true; }
+            }
+        }
+
+        /**
+         * Parks rather than sleeps, as a sleep may be rounded up to the next millisecond.
+         */
+        private static void pause(final long nanos) {
+            final long deadline = System.nanoTime() + nanos;
+            for (long left = nanos; left > 0; left = deadline - System.nanoTime()) {
+                LockSupport.parkNanos(left);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new AmazonClientException("Interrupted while delayed by a fault profile");
+                }
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, Profile> byQueue = new ConcurrentHashMap<String, Profile>();
+    private final AtomicReferenceArray<Profile> byOperation = new AtomicReferenceArray<Profile>(Operation.values().length);
+    private volatile Profile all;
+    // Whether any profile is set, so that a call without one never looks further
+    private volatile boolean enabled = false;
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Applies the profile that covers the call, if any.
+     *
+     * @param queueUrl the queue the call is for, or null
+     * @return the profile applied, for batch calls to apply to each entry, or null
+     */
+    Profile apply(final Operation op, final String queueUrl) {
+        if (!enabled) { return null; }
+        Profile profile = queueUrl == null || byQueue.isEmpty() ? null : byQueue.get(queueUrl);
+        if (profile == null) { profile = byOperation.get(op.ordinal()); }
+        if (profile == null) { profile = all; }
+        if (profile != null) { profile.before(); }
+        return profile;
+    }
+
+    synchronized void setAll(final FaultProfile profile) {
+        all = profile == null ? null : new Profile(profile);
+        updateEnabled();
+    }
+
+    synchronized void setOperation(final String action, final FaultProfile profile) {
+        byOperation.set(operation(action).ordinal(), profile == null ? null : new Profile(profile));
+        updateEnabled();
+    }
+
+    synchronized void setQueue(final String queueUrl, final FaultProfile profile) {
+        if (queueUrl == null) { throw new IllegalArgumentException("Null queue URL"); }
+        if (profile == null) {
+            byQueue.remove(queueUrl);
+        } else {
+            byQueue.put(queueUrl, new Profile(profile));
+        }
+        updateEnabled();
+    }
+
+    synchronized void clear() {
+        all = null;
+        for (int ix = 0; ix < byOperation.length(); ix++) { byOperation.set(ix, null); }
+        byQueue.clear();
+        updateEnabled();
+    }
+
+    private void updateEnabled() {
+        boolean any = all != null || !byQueue.isEmpty();
+        for (int ix = 0; !any && ix < byOperation.length(); ix++) { any = byOperation.get(ix) != null; }
+        enabled = any;
+    }
+
+    private static Operation operation(final String action) {
+        for (final Operation op : Operation.values()) {
+            if (op.action.equals(action)) { return op; }
+        }
+        throw new IllegalArgumentException("Not an action the mock serves: " + action);
+    }
+
+    private static AmazonServiceException throttled() {
+        final AmazonServiceException ex = new AmazonServiceException("Rate exceeded");
+        ex.setErrorCode(ErrorCodes.THROTTLING);
+        ex.setErrorType(AmazonServiceException.ErrorType.Client);
+        ex.setStatusCode(400);
+        return ex;
+    }
+
+    private static AmazonServiceException internalError() {
+        final AmazonServiceException ex = new AmazonServiceException("We encountered an internal error. Please try again.");
+        ex.setErrorCode(ErrorCodes.INTERNAL_ERROR);
+        ex.setErrorType(AmazonServiceException.ErrorType.Service);
+        ex.setStatusCode(500);
+        return ex;
+    }
+}
@@ -0,0 +1,283 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The visible messages of a FIFO queue, kept in order per message group.
+ *
+ * A group is locked from the moment a receive takes messages from it until every one of them has
+ * been deleted or become visible again, so its messages are handed out strictly in order, one batch
+ * at a time. Groups that are unlocked and have messages wait their turn in a round-robin ready
+ * queue, so a receive takes the next ready group directly and never looks at a locked one; a group
+ * with nothing left in it is dropped, so sending to many short-lived groups costs nothing afterwards.
+ *
+ * Everything is guarded by the store's monitor. Waiters are only woken when a group becomes ready,
+ * since a message added to a locked group is not there to be received.
+ *
+ * There are no segments: a group's messages are in the order they were sent, so expiring them takes
+ * what has aged out from the head of each group, and purging swaps in an empty set of groups.
+ */
+final class FifoMessageStore extends MessageStore {
+
+    private static final class Group {
+        final String id;
+        final ArrayDeque<StoredMessage> messages = new ArrayDeque<StoredMessage>();
+        // Taken and not yet deleted, in the order they were taken
+        final List<StoredMessage> taken = new ArrayList<StoredMessage>();
+        // Those of them back from flight, which wait here for the rest so the group's order is kept
+        final List<StoredMessage> returned = new ArrayList<StoredMessage>();
+        int inFlight = 0;
+        boolean ready = false;
+
+        Group(final String id) {
+            this.id = id;
+        }
+    }
+
+    private Map<String, Group> groups = new HashMap<String, Group>();
+    private ArrayDeque<Group> ready = new ArrayDeque<Group>();
+    private volatile int size = 0;
+    private volatile int readyGroups = 0;
+
+    FifoMessageStore(final MessageRetention retention) {
+        super(retention);
+    }
+
+    /**
+     * @return the group a message was sent to; it is validated on the way in, so always present
+     */
+    static String groupOf(final StoredMessage msg) {
+        final String id = msg.stringAttribute(AmazonSQSMock.MESSAGE_GROUP_ID);
+        return id == null ? "" : id;
+    }
+
+    @Override
+    void add(final StoredMessage msg) {
+        final boolean becameReady;
+        synchronized (this) {
+            final Group group = group(groupOf(msg));
+            group.messages.addLast(msg);
+            size++;
+            becameReady = offer(group);
+        }
+        retention.schedule(msg.sentAt() + 1);
+        if (becameReady) { signalWaiters(1); }
+    }
+
+    @Override
+    void addAll(final Collection<StoredMessage> msgs) {
+        int becameReady = 0;
+        synchronized (this) {
+            for (final StoredMessage msg : msgs) {
+                final Group group = group(groupOf(msg));
+                group.messages.addLast(msg);
+                size++;
+                if (offer(group)) { becameReady++; }
+            }
+        }
+        for (final StoredMessage msg : msgs) { retention.schedule(msg.sentAt() + 1); }
+        signalWaiters(becameReady);
+    }
+
+    @Override
+    void addFirst(final StoredMessage msg) {
+        final boolean becameReady;
+        synchronized (this) {
+            final Group group = group(groupOf(msg));
+            size++;
+            if (group.inFlight > 0 && group.taken.contains(msg)) {
+                group.returned.add(msg);
+                group.inFlight--;
+                becameReady = settle(group);
+            } else {
+                group.messages.addFirst(msg);
+                becameReady = offer(group);
+            }
+        }
+        if (becameReady) { signalWaiters(1); }
+    }
+
+    @Override
+    void deleted(final StoredMessage msg) {
+        final boolean becameReady;
+        synchronized (this) {
+            final Group group = groups.get(groupOf(msg));
+            if (group == null || !group.taken.remove(msg)) { return; }
+            group.inFlight--;
+            becameReady = settle(group);
+        }
+        if (becameReady) { signalWaiters(1); }
+    }
+
+    @Override
+    synchronized void restoredInFlight(final StoredMessage msg) {
+        final Group group = group(groupOf(msg));
+        group.taken.add(msg);
+        group.inFlight++;
+    }
+
+    @Override
+    StoredMessage poll() {
+        final List<StoredMessage> one = new ArrayList<StoredMessage>(1);
+        return drainTo(one, 1) == 0 ? null : one.get(0);
+    }
+
+    /**
+     * Takes as many messages as it can from the next ready group, then the next, and so on, locking each group it takes from.
+     */
+    @Override
+    synchronized int drainTo(final List<StoredMessage> into, final int max) {
+        int taken = 0;
+        Group group;
+        while (taken < max && (group = ready.pollFirst()) != null) {
+            group.ready = false;
+            readyGroups--;
+            // Everything it had may have expired since it was queued
+            if (group.messages.isEmpty()) {
+                groups.remove(group.id);
+                continue;
+            }
+            StoredMessage msg;
+            while (taken < max && (msg = group.messages.pollFirst()) != null) {
+                into.add(msg);
+                group.taken.add(msg);
+                group.inFlight++;
+                taken++;
+            }
+        }
+        size -= taken;
+        return taken;
+    }
+
+    /**
+     * @return the longest-waiting message at the head of a group, or null if there are none
+     */
+    @Override
+    synchronized StoredMessage peek() {
+        StoredMessage oldest = null;
+        for (final Group group : groups.values()) {
+            final StoredMessage head = group.returned.isEmpty() ? group.messages.peekFirst() : group.returned.get(0);
+            if (head != null && (oldest == null || head.sentAt() < oldest.sentAt())) { oldest = head; }
+        }
+        return oldest;
+    }
+
+    @Override
+    boolean isEmpty() {
+        return readyGroups == 0;
+    }
+
+    /**
+     * @return a copy of the visible messages, group by group and each group in order
+     */
+    @Override
+    synchronized List<StoredMessage> snapshot() {
+        final List<StoredMessage> visible = new ArrayList<StoredMessage>(size);
+        for (final Group group : groups.values()) {
+            for (final StoredMessage msg : group.taken) {
+                if (group.returned.contains(msg)) { visible.add(msg); }
+            }
+            visible.addAll(group.messages);
+        }
+        return visible;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    /**
+     * Drops what was sent before cutoff from the head of each group, including messages back from
+     * flight that wait for the rest of their batch.
+     */
+    @Override
+    synchronized List<StoredMessage> expire(final long cutoff) {
+        final List<StoredMessage> expired = new ArrayList<StoredMessage>();
+        for (final Iterator<Group> it = groups.values().iterator(); it.hasNext(); ) {
+            final Group group = it.next();
+            for (final Iterator<StoredMessage> returned = group.returned.iterator(); returned.hasNext(); ) {
+                final StoredMessage msg = returned.next();
+                if (msg.sentAt() < cutoff) {
+                    returned.remove();
+                    group.taken.remove(msg);
+                    expired.add(msg);
+                }
+            }
+            StoredMessage head;
+            while ((head = group.messages.peekFirst()) != null && head.sentAt() < cutoff) { expired.add(group.messages.pollFirst()); }
+            // A ready group is dropped when it next comes up
+            if (group.messages.isEmpty() && group.taken.isEmpty() && !group.ready) { it.remove(); }
+        }
+        size -= expired.size();
+        return expired;
+    }
+
+    @Override
+    synchronized long expiryBound() {
+        long oldest = Long.MAX_VALUE;
+        for (final Group group : groups.values()) {
+            for (final StoredMessage msg : group.returned) { oldest = Math.min(oldest, msg.sentAt() + 1); }
+            final StoredMessage head = group.messages.peekFirst();
+            if (head != null) { oldest = Math.min(oldest, head.sentAt() + 1); }
+        }
+        return oldest;
+    }
+
+    /**
+     * Swaps in an empty set of groups.
+     */
+    @Override
+    synchronized void purge() {
+        groups = new HashMap<String, Group>();
+        ready = new ArrayDeque<Group>();
+        size = 0;
+        readyGroups = 0;
+    }
+
+    private Group group(final String id) {
+        Group group = groups.get(id);
+        if (group == null) {
+            group = new Group(id);
+            groups.put(id, group);
+        }
+        return group;
+    }
+
+    /**
+     * Queues the group to be received from, if it is unlocked, has messages and is not queued already.
+     *
+     * @return whether it was queued
+     */
+    private boolean offer(final Group group) {
+        if (group.ready || group.inFlight > 0 || group.messages.isEmpty()) { return false; }
+        group.ready = true;
+        ready.addLast(group);
+        readyGroups++;
+        return true;
+    }
+
+    /**
+     * Unlocks the group once nothing taken from it is in flight: what came back goes to its head,
+     * in the order it was taken, and the group is queued or, if empty, dropped.
+     *
+     * @return whether it was queued
+     */
+    private boolean settle(final Group group) {
+        if (group.inFlight > 0) { return false; }
+        for (int ix = group.taken.size() - 1; ix >= 0; ix--) { group.messages.addFirst(group.taken.get(ix)); }
+        group.taken.clear();
+        group.returned.clear();
+        if (group.messages.isEmpty()) {
+            groups.remove(group.id);
+            return false;
+        }
+        return offer(group);
+    }
+}
@@ -0,0 +1,466 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * A journal kept in a data directory, in the format described by {@link JournalFormat}.
+ *
+ * Changing threads encode their records into a shared in-memory buffer and move on; a single
+ * writer thread swaps the buffer out and writes it with one call, so however many threads commit
+ * at once, they share one write (and one fsync, if writes are synced). A compactor thread
+ * periodically takes a checkpoint: with changes briefly held off, it starts a new journal file
+ * and copies references to the live state, then writes that state out as a snapshot and deletes
+ * the journal files it covers. Recovery then only replays what was written since.
+ */
+final class FileJournal extends Journal {
+
+    static final long COMPACT_BYTES = 64L * 1024 * 1024;
+    static final long COMPACT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final long COMPACT_CHECK_MILLIS = 1000;
+    private static final int SNAPSHOT_CHUNK = 1024 * 1024;
+
+    /**
+     * What a checkpoint copies of one queue; the messages themselves are never changed, so
+     * they can be written out after the lock is released. Their receive counts can, so those
+     * are copied too, in the order the messages are written.
+     */
+    private static final class QueueImage {
+        final QueueState queue;
+        final JournalFormat.QueueSettings settings;
+        final List<StoredMessage> visible;
+        final List<InFlightMessage> inFlight;
+        final List<DelayedMessages.Entry> delayed;
+        final int[] receiveCounts;
+
+        QueueImage(final QueueState queue) {
+            this.queue = queue;
+            this.settings = new JournalFormat.QueueSettings(queue);
+            this.visible = queue.visible.snapshot();
+            this.inFlight = queue.inFlight.entries();
+            this.delayed = queue.delayed.entries();
+            this.receiveCounts = new int[size()];
+            int ix = 0;
+            for (final StoredMessage msg : visible) { receiveCounts[ix++] = msg.receiveCount; }
+            for (final InFlightMessage msg : inFlight) { receiveCounts[ix++] = msg.message.receiveCount; }
+            for (final DelayedMessages.Entry entry : delayed) { receiveCounts[ix++] = entry.message.receiveCount; }
+        }
+
+        int size() {
+            return visible.size() + inFlight.size() + delayed.size();
+        }
+    }
+
+    private final File directory;
+    private final boolean syncWrites;
+    private final ReentrantReadWriteLock changeLock = new ReentrantReadWriteLock();
+    // What each thread has put off until it lets go of the lock, and how many such tasks there are
+    // in all, so that an unlock with none anywhere never looks
+    private final ThreadLocal<List<Runnable>> deferred = new ThreadLocal<List<Runnable>>() {
+        @Override
+        protected List<Runnable> initialValue() {
+            return new ArrayList<Runnable>(2);
+        }
+    };
+    private final AtomicInteger deferredCount = new AtomicInteger();
+    private final ThreadLocal<JournalFormat.Encoder> encoders = new ThreadLocal<JournalFormat.Encoder>() {
+        @Override
+        protected JournalFormat.Encoder initialValue() {
+            return new JournalFormat.Encoder();
+        }
+    };
+    // The position just past the last record each thread appended
+    private final ThreadLocal<long[]> lastAppended = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private final Object bufferLock = new Object();
+    private byte[] pending = new byte[64 * 1024];
+    private byte[] spare = new byte[64 * 1024];
+    private int pendingLength = 0;
+    private long appended = 0;
+
+    private final Object fileLock = new Object();
+    private FileChannel channel;
+    private long generation;
+    private long bytesSinceSnapshot;
+    private long lastSnapshot = System.currentTimeMillis();
+
+    private final Object commitLock = new Object();
+    private volatile long flushed = 0;
+    private volatile IOException failure;
+
+    private Collection<QueueState> queues;
+    private IdGenerator ids;
+    private volatile boolean running = true;
+    private volatile boolean closed = false;
+    private final Thread writer;
+    private final Thread compactor;
+
+    /**
+     * @param generation the generation of the journal file to start, which must not exist yet
+     * @param replayedBytes how much journal recovery replayed, which counts towards the next snapshot
+     */
+    FileJournal(final File directory, final boolean syncWrites, final long generation, final long replayedBytes) throws IOException {
+        this.directory = directory;
+        this.syncWrites = syncWrites;
+        this.generation = generation;
+        this.bytesSinceSnapshot = replayedBytes;
+        this.channel = open(generation);
+        this.writer = new Thread(new Runnable() {
+            public void run() { write(); }
+        }, "mock-sqs-journal");
+        this.writer.setDaemon(true);
+        this.compactor = new Thread(new Runnable() {
+            public void run() { compact(); }
+        }, "mock-sqs-compactor");
+        this.compactor.setDaemon(true);
+    }
+
+    @Override
+    void start(final Collection<QueueState> queues, final IdGenerator ids) {
+        this.queues = queues;
+        this.ids = ids;
+        writer.start();
+        compactor.start();
+    }
+
+    @Override
+    void lock() {
+        changeLock.readLock().lock();
+    }
+
+    @Override
+    void unlock() {
+        changeLock.readLock().unlock();
+        if (deferredCount.get() > 0 && changeLock.getReadHoldCount() == 0) { runDeferred(); }
+    }
+
+    @Override
+    void runUnlocked(final Runnable task) {
+        if (changeLock.getReadHoldCount() == 0) {
+            task.run();
+            return;
+        }
+        deferred.get().add(task);
+        deferredCount.incrementAndGet();
+    }
+
+    private void runDeferred() {
+        final List<Runnable> tasks = deferred.get();
+        // A task may lock and put off more tasks of its own, which its unlock then runs
+        while (!tasks.isEmpty()) {
+            final List<Runnable> batch = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            deferredCount.addAndGet(-batch.size());
+            for (final Runnable task : batch) { task.run(); }
+        }
+    }
+
+    @Override
+    void commit() {
+        final long position = lastAppended.get()[0];
+        if (flushed >= position) { return; }
+        synchronized (commitLock) {
+            while (flushed < position && failure == null) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new AmazonClientException("Interrupted while waiting for the journal", ex);
+                }
+            }
+        }
+        if (failure != null && flushed < position) { throw new AmazonClientException("Cannot write journal in " + directory, failure); }
+    }
+
+    @Override
+    void queueCreated(final QueueState queue) {
+        final JournalFormat.Encoder enc = encoders.get().beginRecord(JournalFormat.QUEUE_CREATED, queue.id).putString(queue.name);
+        new JournalFormat.QueueSettings(queue).writeTo(enc);
+        append(enc);
+    }
+
+    @Override
+    void queueAttributesChanged(final QueueState queue) {
+        final JournalFormat.Encoder enc = encoders.get().beginRecord(JournalFormat.QUEUE_ATTRIBUTES_CHANGED, queue.id);
+        new JournalFormat.QueueSettings(queue).writeTo(enc);
+        append(enc);
+    }
+
+    @Override
+    void queueDeleted(final QueueState queue) {
+        append(encoders.get().beginRecord(JournalFormat.QUEUE_DELETED, queue.id));
+    }
+
+    @Override
+    void queuePurged(final QueueState queue) {
+        append(encoders.get().beginRecord(JournalFormat.QUEUE_PURGED, queue.id));
+    }
+
+    @Override
+    void sent(final QueueState queue, final StoredMessage msg, final long visibleAt) {
+        append(encoders.get().beginRecord(JournalFormat.SENT, queue.id).putLong(visibleAt).putMessage(msg));
+    }
+
+    @Override
+    void received(final QueueState queue, final InFlightMessage msg) {
+        append(encoders.get().beginRecord(JournalFormat.RECEIVED, queue.id).putLong(msg.message.idNumber())
+                .putInt(msg.slot).putLong(msg.stamp).putLong(msg.visibleAt));
+    }
+
+    @Override
+    void visibilityChanged(final QueueState queue, final long idNumber, final long visibleAt) {
+        append(encoders.get().beginRecord(JournalFormat.VISIBILITY_CHANGED, queue.id).putLong(idNumber).putLong(visibleAt));
+    }
+
+    @Override
+    void deleted(final QueueState queue, final long idNumber) {
+        append(encoders.get().beginRecord(JournalFormat.DELETED, queue.id).putLong(idNumber));
+    }
+
+    /**
+     * Takes a final snapshot, so the next start has nothing to replay, and stops both threads.
+     */
+    @Override
+    void close() {
+        if (closed) { return; }
+        running = false;
+        synchronized (this) { notifyAll(); }
+        try {
+            compactor.join();
+            changeLock.writeLock().lock();
+            checkpoint(true);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            throw new AmazonClientException("Cannot write snapshot in " + directory, ex);
+        } finally {
+            synchronized (bufferLock) { bufferLock.notifyAll(); }
+        }
+    }
+
+    private void append(final JournalFormat.Encoder record) {
+        record.endRecord();
+        if (closed || failure != null) { return; }
+        synchronized (bufferLock) {
+            if (pendingLength + record.length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pendingLength + record.length, pending.length * 2));
+            }
+            System.arraycopy(record.bytes, 0, pending, pendingLength, record.length);
+            pendingLength += record.length;
+            appended += record.length;
+            lastAppended.get()[0] = appended;
+            // The writer only waits when it has caught up, so this wakes it at most once per batch
+            if (pendingLength == record.length) { bufferLock.notify(); }
+        }
+    }
+
+    private void write() {
+        while (true) {
+            synchronized (bufferLock) {
+                while (pendingLength == 0 && !closed) {
+                    try {
+                        bufferLock.wait();
+                    } catch (InterruptedException ex) {
+                        // Only closing stops the writer
+                    }
+                }
+                if (pendingLength == 0) { return; }
+            }
+            try {
+                flushPending();
+            } catch (IOException ex) {
+                fail(ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes out everything appended so far and releases the threads waiting on it.
+     */
+    private void flushPending() throws IOException {
+        synchronized (fileLock) {
+            final byte[] batch;
+            final int length;
+            final long upTo;
+            synchronized (bufferLock) {
+                batch = pending;
+                length = pendingLength;
+                upTo = appended;
+                pending = spare;
+                spare = batch;
+                pendingLength = 0;
+            }
+            if (length == 0) { return; }
+            final ByteBuffer buf = ByteBuffer.wrap(batch, 0, length);
+            while (buf.hasRemaining()) { channel.write(buf); }
+            if (syncWrites) { channel.force(false); }
+            bytesSinceSnapshot += length;
+            synchronized (commitLock) {
+                flushed = upTo;
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    private void fail(final IOException ex) {
+        synchronized (commitLock) {
+            failure = ex;
+            commitLock.notifyAll();
+        }
+    }
+
+    private void compact() {
+        while (running) {
+            synchronized (this) {
+                try {
+                    wait(COMPACT_CHECK_MILLIS);
+                } catch (InterruptedException ex) {
+                    // Only closing stops the compactor
+                }
+            }
+            final long pendingBytes;
+            synchronized (fileLock) { pendingBytes = bytesSinceSnapshot; }
+            final boolean due = pendingBytes >= COMPACT_BYTES
+                    || (pendingBytes > 0 && System.currentTimeMillis() - lastSnapshot >= COMPACT_INTERVAL_MILLIS);
+            if (!running || !due || failure != null) { continue; }
+            try {
+                // A change that blocks while locked (e.g. a completion handler that waits) must not stall
+                // everyone else behind the checkpoint for long; if so, give up and try again later
+                if (changeLock.writeLock().tryLock(COMPACT_CHECK_MILLIS, TimeUnit.MILLISECONDS)) { checkpoint(false); }
+            } catch (InterruptedException ex) {
+                // Only closing stops the compactor
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+    }
+
+    /**
+     * Starts a new journal file and writes a snapshot as of its start. Must be called holding
+     * the write lock, which it releases once it has copied the state.
+     *
+     * @param last true to close the journal rather than start a new file
+     */
+    private void checkpoint(final boolean last) throws IOException {
+        final List<QueueImage> images = new ArrayList<QueueImage>();
+        final long firstGeneration;
+        final long idBound;
+        final long nowMillis;
+        final long nowNanos;
+        try {
+            synchronized (fileLock) {
+                flushPending();
+                channel.force(true);
+                channel.close();
+                firstGeneration = ++generation;
+                bytesSinceSnapshot = 0;
+                if (last) {
+                    closed = true;
+                } else {
+                    channel = open(firstGeneration);
+                }
+            }
+            for (final QueueState queue : queues) { images.add(new QueueImage(queue)); }
+            idBound = ids.bound();
+            nowMillis = System.currentTimeMillis();
+            nowNanos = System.nanoTime();
+        } finally {
+            changeLock.writeLock().unlock();
+        }
+        writeSnapshot(images, firstGeneration, idBound, nowMillis, nowNanos);
+        lastSnapshot = nowMillis;
+        for (final long old : JournalFormat.journalGenerations(directory)) {
+            if (old < firstGeneration) { Files.deleteIfExists(JournalFormat.journalFile(directory, old).toPath()); }
+        }
+    }
+
+    private void writeSnapshot(final List<QueueImage> images, final long firstGeneration, final long idBound,
+                               final long nowMillis, final long nowNanos) throws IOException {
+        final File temp = new File(directory, JournalFormat.SNAPSHOT_TEMP_FILE);
+        final RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(0);
+            final FileChannel out = raf.getChannel();
+            final JournalFormat.Encoder enc = new JournalFormat.Encoder();
+            enc.putInt(JournalFormat.SNAPSHOT_MAGIC).putInt(JournalFormat.SNAPSHOT_VERSION)
+                    .putLong(firstGeneration).putLong(idBound).putInt(images.size());
+            for (final QueueImage image : images) {
+                enc.putSnapshotQueue(image.queue.id, image.queue.name, image.settings, image.size());
+                final long[] keys = new long[image.size()];
+                int count = 0;
+                for (final StoredMessage msg : image.visible) {
+                    enc.putSnapshotMessage(msg, 0, -1, 0, image.receiveCounts[count]);
+                    keys[count++] = msg.idNumber();
+                    if (enc.length >= SNAPSHOT_CHUNK) { drain(enc, out); }
+                }
+                for (final InFlightMessage msg : image.inFlight) {
+                    enc.putSnapshotMessage(msg.message, msg.visibleAt, msg.slot, msg.stamp, image.receiveCounts[count]);
+                    keys[count++] = msg.message.idNumber();
+                    if (enc.length >= SNAPSHOT_CHUNK) { drain(enc, out); }
+                }
+                for (final DelayedMessages.Entry entry : image.delayed) {
+                    final long visibleAt = nowMillis + TimeUnit.NANOSECONDS.toMillis(entry.due - nowNanos);
+                    enc.putSnapshotMessage(entry.message, Math.max(1, visibleAt), -1, 0, image.receiveCounts[count]);
+                    keys[count++] = entry.message.idNumber();
+                    if (enc.length >= SNAPSHOT_CHUNK) { drain(enc, out); }
+                }
+                writeIndex(keys, enc, out);
+            }
+            enc.putInt(JournalFormat.SNAPSHOT_MAGIC);
+            drain(enc, out);
+            out.force(true);
+        } finally {
+            raf.close();
+        }
+        Files.move(temp.toPath(), new File(directory, JournalFormat.SNAPSHOT_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the index recovery looks messages up in, so it never has to build one itself.
+     *
+     * @param keys the id number of each message, in the order the messages were written
+     */
+    private static void writeIndex(final long[] keys, final JournalFormat.Encoder enc, final FileChannel out) throws IOException {
+        final int[] positions = new int[keys.length];
+        for (int ix = 0; ix < positions.length; ix++) { positions[ix] = ix; }
+        JournalFormat.sortIndex(keys, positions);
+        enc.putInt(keys.length);
+        for (int ix = 0; ix < keys.length; ix++) {
+            enc.putLong(keys[ix]).putInt(positions[ix]);
+            if (enc.length >= SNAPSHOT_CHUNK) { drain(enc, out); }
+        }
+    }
+
+    private static void drain(final JournalFormat.Encoder enc, final FileChannel out) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(enc.bytes, 0, enc.length);
+        while (buf.hasRemaining()) { out.write(buf); }
+        enc.reset();
+    }
+
+    private FileChannel open(final long gen) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(JournalFormat.journalFile(directory, gen), "rw");
+        raf.setLength(0);
+        return raf.getChannel();
+    }
+}
@@ -0,0 +1,38 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message sent to this mock, held as a single byte array in the encoding described by
+ * {@link StoredMessage}; with the array's header, that is all it costs beyond its own content.
+ */
+final class HeapMessage extends StoredMessage {
+
+    private final byte[] bytes;
+
+    HeapMessage(final byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    @Override
+    long idNumber() {
+        long value = 0;
+        for (int ix = 0; ix < 8; ix++) { value = (value << 8) | (bytes[ix] & 0xff); }
+        return value;
+    }
+
+    @Override
+    ByteBuffer encoded() {
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    int size() {
+        return bytes.length;
+    }
+
+    @Override
+    void writeTo(final JournalFormat.Encoder enc) {
+        enc.putRaw(bytes);
+    }
+}
@@ -0,0 +1,42 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unique ids without a shared hot counter: each thread claims a block of ids from the
+ * shared counter and then hands them out locally, touching the shared cache line only
+ * once per block. Ids are unique per generator, but only increasing per thread.
+ */
+final class IdGenerator {
+
+    static final int BLOCK_SIZE = 1024;
+
+    private final AtomicLong nextBlock;
+    private final ThreadLocal<long[]> block = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            // { next id, end of block (exclusive) }, starting exhausted
+            return new long[2];
+        }
+    };
+
+    IdGenerator(final long start) {
+        this.nextBlock = new AtomicLong(start);
+    }
+
+    long next() {
+        final long[] ids = block.get();
+        if (ids[0] == ids[1]) {
+            ids[0] = nextBlock.getAndAdd(BLOCK_SIZE);
+            ids[1] = ids[0] + BLOCK_SIZE;
+        }
+        return ids[0]++;
+    }
+
+    /**
+     * @return a bound that every id handed out so far is below
+     */
+    long bound() {
+        return nextBlock.get();
+    }
+}
@@ -0,0 +1,85 @@
+package org.flite.mock.amazonaws.sqs;
+
+/**
+ * A received message that is currently invisible. It is its own visibility timeout, so
+ * putting a message in flight costs a single allocation and one timer-wheel insert.
+ *
+ * The queue's in-flight table is the source of truth: whoever removes this entry from its
+ * slot (delete, change of visibility, or expiry) owns the message from then on.
+ */
+class InFlightMessage extends TimerWheel.Timeout {
+
+    final String receiptHandle;
+    final StoredMessage message;
+    final int slot;
+    final long stamp;
+    // Wall-clock time, for the journal; the timer wheel works from its own clock
+    final long visibleAt;
+    private final QueueState queue;
+
+    InFlightMessage(final String receiptHandle, final StoredMessage message, final QueueState queue,
+                    final int slot, final long stamp, final long visibleAt) {
+        this.receiptHandle = receiptHandle;
+        this.message = message;
+        this.queue = queue;
+        this.slot = slot;
+        this.stamp = stamp;
+        this.visibleAt = visibleAt;
+    }
+
+    /**
+     * @return a fresh in-flight entry for the same message and receipt handle, for rescheduling
+     */
+    InFlightMessage renew(final long newVisibleAt) {
+        return new InFlightMessage(receiptHandle, message, queue, slot, stamp, newVisibleAt);
+    }
+
+    /**
+     * Makes the message visible now, if it is still in flight.
+     *
+     * @return false if it was deleted or became visible in the meantime
+     */
+    boolean release() {
+        queue.journal.lock();
+        try {
+            return releaseLocked();
+        } finally {
+            queue.journal.unlock();
+        }
+    }
+
+    /**
+     * As {@link #release()}, for a caller that already holds the journal lock.
+     */
+    boolean releaseLocked() {
+        if (!queue.inFlight.remove(this)) { return false; }
+        cancel();
+        queue.journal.visibilityChanged(queue, message.idNumber(), 0);
+        makeVisible();
+        return true;
+    }
+
+    /**
+     * Makes the message visible again, at the head of its queue, unless it has outlived the queue's retention period.
+     */
+    void makeVisible() {
+        if (queue.isDeleted()) { return; }
+        if (queue.retention.isExpired(message, System.currentTimeMillis())) {
+            queue.retention.drop(message);
+            return;
+        }
+        queue.stats.redeliveries.increment();
+        queue.visible.addFirst(message);
+    }
+
+    @Override
+    protected void expire() {
+        // No record needed: recovery works out from visibleAt that the message is visible
+        queue.journal.lock();
+        try {
+            if (queue.inFlight.remove(this)) { makeVisible(); }
+        } finally {
+            queue.journal.unlock();
+        }
+    }
+}
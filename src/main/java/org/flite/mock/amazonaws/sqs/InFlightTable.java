@@ -0,0 +1,203 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The in-flight messages of one queue, indexed by slot rather than hashed by receipt handle.
+ *
+ * A receipt handle encodes the queue id, the slot and a unique stamp, so finding the message
+ * for a handle is a parse and an array read. A handle for a different queue, or one whose slot
+ * has since been reused by another message, fails the id or stamp check without touching
+ * anything shared. Slots are claimed from a free list and grown in fixed-size chunks.
+ */
+class InFlightTable {
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final long queueId;
+    private final String handlePrefix;
+    private volatile AtomicReferenceArray<InFlightMessage>[] chunks = newChunks(1);
+    private final AtomicInteger highWater = new AtomicInteger();
+    private final Queue<Integer> freeSlots = new ConcurrentLinkedQueue<Integer>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    InFlightTable(final long queueId) {
+        this.queueId = queueId;
+        this.handlePrefix = AmazonSQSMock.RECEIPT_ID_PREFIX + queueId + "-";
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static AtomicReferenceArray<InFlightMessage>[] newChunks(final int count) {
+        final AtomicReferenceArray<InFlightMessage>[] chunks = new AtomicReferenceArray[count];
+        for (int ix = 0; ix < count; ix++) { chunks[ix] = new AtomicReferenceArray<InFlightMessage>(CHUNK_SIZE); }
+        return chunks;
+    }
+
+    /**
+     * @return a receipt handle that will find the given slot, as long as the stamp still matches
+     */
+    String receiptHandle(final int slot, final long stamp) {
+        return handlePrefix + slot + "-" + stamp;
+    }
+
+    /**
+     * @return a free slot, which the caller must fill with {@link #put}
+     */
+    int claimSlot() {
+        final Integer free = freeSlots.poll();
+        final int slot = free != null ? free : highWater.getAndIncrement();
+        if ((slot >>> CHUNK_BITS) >= chunks.length) { grow(slot >>> CHUNK_BITS); }
+        return slot;
+    }
+
+    void put(final InFlightMessage msg) {
+        chunk(msg.slot).set(msg.slot & CHUNK_MASK, msg);
+        size.incrementAndGet();
+    }
+
+    /**
+     * @return the in-flight message for the handle, or null if it is malformed, belongs to
+     * another queue, or is stale
+     */
+    InFlightMessage get(final String receiptHandle) {
+        if (receiptHandle == null || !receiptHandle.startsWith(handlePrefix)) { return null; }
+        final int start = handlePrefix.length();
+        final int dash = receiptHandle.indexOf('-', start);
+        if (dash < 0) { return null; }
+        final long slot = parse(receiptHandle, start, dash);
+        final long stamp = parse(receiptHandle, dash + 1, receiptHandle.length());
+        final AtomicReferenceArray<InFlightMessage>[] current = chunks;
+        if (slot < 0 || stamp < 0 || (slot >>> CHUNK_BITS) >= current.length) { return null; }
+        final InFlightMessage msg = current[(int) slot >>> CHUNK_BITS].get((int) slot & CHUNK_MASK);
+        return msg != null && msg.stamp == stamp ? msg : null;
+    }
+
+    /**
+     * Removes the message for the handle, if it is still in flight.
+     */
+    InFlightMessage remove(final String receiptHandle) {
+        while (true) {
+            final InFlightMessage msg = get(receiptHandle);
+            if (msg == null || remove(msg)) { return msg; }
+            // Lost a race with a change of visibility; look again
+        }
+    }
+
+    /**
+     * @return true if this call removed exactly this entry
+     */
+    boolean remove(final InFlightMessage msg) {
+        if (!holds(msg) || !chunk(msg.slot).compareAndSet(msg.slot & CHUNK_MASK, msg, null)) { return false; }
+        size.decrementAndGet();
+        freeSlots.add(msg.slot);
+        return true;
+    }
+
+    /**
+     * Swaps in a renewed entry for the same slot.
+     *
+     * @return false if current is no longer in flight
+     */
+    boolean replace(final InFlightMessage current, final InFlightMessage renewed) {
+        return holds(current) && chunk(current.slot).compareAndSet(current.slot & CHUNK_MASK, current, renewed);
+    }
+
+    /**
+     * @return false if the message's slot is beyond this table, as when it was put in flight before a purge
+     */
+    private boolean holds(final InFlightMessage msg) {
+        return (msg.slot >>> CHUNK_BITS) < chunks.length;
+    }
+
+    int size() {
+        return Math.max(0, size.get());
+    }
+
+    /**
+     * Puts a message recovered from disk back in the slot it was in, so its receipt handle still works.
+     * Once everything is restored, {@link #restoreFreeSlots()} must be called before claiming slots.
+     *
+     * @return false if the slot is already taken
+     */
+    boolean restore(final InFlightMessage msg) {
+        if ((msg.slot >>> CHUNK_BITS) >= chunks.length) { grow(msg.slot >>> CHUNK_BITS); }
+        if (!chunk(msg.slot).compareAndSet(msg.slot & CHUNK_MASK, null, msg)) { return false; }
+        size.incrementAndGet();
+        if (msg.slot >= highWater.get()) { highWater.set(msg.slot + 1); }
+        return true;
+    }
+
+    /**
+     * Makes the slots that restoring left empty claimable.
+     */
+    void restoreFreeSlots() {
+        final AtomicReferenceArray<InFlightMessage>[] current = chunks;
+        for (int slot = 0, limit = highWater.get(); slot < limit; slot++) {
+            if (current[slot >>> CHUNK_BITS].get(slot & CHUNK_MASK) == null) { freeSlots.add(slot); }
+        }
+    }
+
+    /**
+     * @return everything currently in flight; only consistent if nothing is changing the table
+     */
+    List<InFlightMessage> entries() {
+        final List<InFlightMessage> entries = new ArrayList<InFlightMessage>(size());
+        final AtomicReferenceArray<InFlightMessage>[] current = chunks;
+        final int limit = Math.min(highWater.get(), current.length * CHUNK_SIZE);
+        for (int slot = 0; slot < limit; slot++) {
+            final InFlightMessage msg = current[slot >>> CHUNK_BITS].get(slot & CHUNK_MASK);
+            if (msg != null) { entries.add(msg); }
+        }
+        return entries;
+    }
+
+    /**
+     * Removes and returns everything currently in flight.
+     */
+    List<InFlightMessage> clear() {
+        final List<InFlightMessage> removed = new ArrayList<InFlightMessage>();
+        final AtomicReferenceArray<InFlightMessage>[] current = chunks;
+        final int limit = Math.min(highWater.get(), current.length * CHUNK_SIZE);
+        for (int slot = 0; slot < limit; slot++) {
+            final InFlightMessage msg = current[slot >>> CHUNK_BITS].get(slot & CHUNK_MASK);
+            if (msg != null && remove(msg)) { removed.add(msg); }
+        }
+        return removed;
+    }
+
+    private AtomicReferenceArray<InFlightMessage> chunk(final int slot) {
+        return chunks[slot >>> CHUNK_BITS];
+    }
+
+    private synchronized void grow(final int chunkIndex) {
+        final AtomicReferenceArray<InFlightMessage>[] current = chunks;
+        if (chunkIndex < current.length) { return; }
+        final AtomicReferenceArray<InFlightMessage>[] next = Arrays.copyOf(current, Math.max(chunkIndex + 1, current.length * 2));
+        for (int ix = current.length; ix < next.length; ix++) { next[ix] = new AtomicReferenceArray<InFlightMessage>(CHUNK_SIZE); }
+        chunks = next;
+    }
+
+    /**
+     * Parses a non-negative decimal number in place.
+     *
+     * @return the number, or -1 if the range is empty, not all digits, or overflows
+     */
+    private static long parse(final String str, final int from, final int to) {
+        if (from >= to || to - from > 18) { return -1; }
+        long value = 0;
+        for (int ix = from; ix < to; ix++) {
+            final char ch = str.charAt(ix);
+            if (ch < '0' || ch > '9') { return -1; }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,66 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.Collection;
+
+/**
+ * Where the mock records the changes it makes, so a durable mock can rebuild its state after
+ * a restart. This base class records nothing, and is what an in-memory mock uses.
+ *
+ * Every change is made and recorded while holding {@link #lock()}, so that a snapshot taken
+ * between changes sees each message in exactly one place. Waiting for the record to reach the
+ * file, with {@link #commit()}, happens after unlocking. Anything that must not run under the
+ * lock, such as a caller's async handler, is put off with {@link #runUnlocked(Runnable)}.
+ */
+class Journal {
+
+    static final Journal NONE = new Journal();
+
+    /**
+     * Starts recording; queues is a live view of the mock's queues, for taking snapshots.
+     */
+    void start(final Collection<QueueState> queues, final IdGenerator ids) { }
+
+    void lock() { }
+
+    void unlock() { }
+
+    /**
+     * Runs the task now if this thread holds no lock, or else once it has let go of it. Nothing
+     * is ever locked here, so the task always runs at once.
+     */
+    void runUnlocked(final Runnable task) {
+        task.run();
+    }
+
+    /**
+     * Waits until everything this thread has recorded is written out.
+     */
+    void commit() { }
+
+    void queueCreated(final QueueState queue) { }
+
+    void queueAttributesChanged(final QueueState queue) { }
+
+    void queueDeleted(final QueueState queue) { }
+
+    void queuePurged(final QueueState queue) { }
+
+    /**
+     * @param visibleAt the wall-clock time a delayed message becomes visible, or 0 if it is visible now
+     */
+    void sent(final QueueState queue, final StoredMessage msg, final long visibleAt) { }
+
+    void received(final QueueState queue, final InFlightMessage msg) { }
+
+    /**
+     * @param visibleAt the wall-clock time the message becomes visible again, or 0 if it is visible now
+     */
+    void visibilityChanged(final QueueState queue, final long idNumber, final long visibleAt) { }
+
+    void deleted(final QueueState queue, final long idNumber) { }
+
+    /**
+     * Stops recording, leaving everything on disk.
+     */
+    void close() { }
+}
@@ -0,0 +1,733 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The on-disk format of a durable mock, and recovery from it.
+ *
+ * A data directory holds at most one snapshot, snapshot.dat, and a run of journal files,
+ * journal-N.log. The snapshot is the complete state as of the start of journal generation G;
+ * recovery maps it into memory, then replays journals G, G+1, ... over it. Messages are written
+ * in the encoding they are held in (see StoredMessage), and recovery leaves them in the mapped files
+ * (see MappedMessage). Records refer to messages by the number their id ends in.
+ * Each journal record is framed as [length][crc32][type][fields], so a record torn by a crash
+ * fails its check and ends the replay of that file. Timestamps are wall-clock milliseconds, since
+ * System.nanoTime() means nothing across a restart.
+ */
+final class JournalFormat {
+
+    static final String SNAPSHOT_FILE = "snapshot.dat";
+    static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+    static final String JOURNAL_PREFIX = "journal-";
+    static final String JOURNAL_SUFFIX = ".log";
+
+    static final int SNAPSHOT_MAGIC = 0x4d535153;
+    static final int SNAPSHOT_VERSION = 5;
+    static final int SNAPSHOT_HEADER_SIZE = 28;
+    // Each message is [length][visibleAt][slot][stamp][receive count][message], so it can be skipped without decoding
+    static final int SNAPSHOT_MESSAGE_PREFIX_SIZE = 8 + 4 + 8 + 4;
+    // Each queue's messages are followed by [count][id number][position]..., sorted by id number
+    static final int SNAPSHOT_INDEX_ENTRY_SIZE = 8 + 4;
+    static final int RECORD_HEADER_SIZE = 8;
+
+    static final byte QUEUE_CREATED = 1;
+    static final byte QUEUE_ATTRIBUTES_CHANGED = 2;
+    static final byte QUEUE_DELETED = 3;
+    static final byte SENT = 4;
+    static final byte RECEIVED = 5;
+    static final byte VISIBILITY_CHANGED = 6;
+    static final byte DELETED = 7;
+    static final byte QUEUE_PURGED = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private JournalFormat() { }
+
+    /**
+     * A growable buffer that records and snapshot entries are encoded into.
+     */
+    static final class Encoder {
+        private final CRC32 crc = new CRC32();
+        byte[] bytes = new byte[1024];
+        int length = 0;
+
+        Encoder reset() {
+            length = 0;
+            return this;
+        }
+
+        Encoder putByte(final byte value) {
+            ensure(1);
+            bytes[length++] = value;
+            return this;
+        }
+
+        Encoder putInt(final int value) {
+            ensure(4);
+            bytes[length++] = (byte) (value >>> 24);
+            bytes[length++] = (byte) (value >>> 16);
+            bytes[length++] = (byte) (value >>> 8);
+            bytes[length++] = (byte) value;
+            return this;
+        }
+
+        Encoder putLong(final long value) {
+            putInt((int) (value >>> 32));
+            return putInt((int) value);
+        }
+
+        /**
+         * Writes a length-prefixed byte string; null is written as length -1.
+         */
+        Encoder putBytes(final byte[] value) {
+            if (value == null) { return putInt(-1); }
+            putInt(value.length);
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, length, value.length);
+            length += value.length;
+            return this;
+        }
+
+        Encoder putRaw(final byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, length, value.length);
+            length += value.length;
+            return this;
+        }
+
+        /**
+         * Copies the remaining bytes of value, without a length prefix.
+         */
+        Encoder putRaw(final ByteBuffer value) {
+            final int size = value.remaining();
+            ensure(size);
+            value.get(bytes, length, size);
+            length += size;
+            return this;
+        }
+
+        Encoder putString(final String value) {
+            return putBytes(value == null ? null : value.getBytes(UTF_8));
+        }
+
+        Encoder putBuffer(final ByteBuffer value) {
+            if (value == null) { return putInt(-1); }
+            // Work on a duplicate so the caller's position is left alone
+            final ByteBuffer src = value.duplicate();
+            src.rewind();
+            final byte[] raw = new byte[src.remaining()];
+            src.get(raw);
+            return putBytes(raw);
+        }
+
+        Encoder putMessage(final StoredMessage msg) {
+            msg.writeTo(this);
+            return this;
+        }
+
+        /**
+         * Starts a journal record, leaving room for its header.
+         */
+        Encoder beginRecord(final byte type, final long queueId) {
+            length = RECORD_HEADER_SIZE;
+            return putByte(type).putLong(queueId);
+        }
+
+        /**
+         * Fills in the header of the record begun by {@link #beginRecord}.
+         */
+        Encoder endRecord() {
+            crc.reset();
+            crc.update(bytes, RECORD_HEADER_SIZE, length - RECORD_HEADER_SIZE);
+            setInt(0, length - RECORD_HEADER_SIZE);
+            setInt(4, (int) crc.getValue());
+            return this;
+        }
+
+        /**
+         * Writes a snapshot entry for a message, prefixed with its length so recovery can skip it.
+         */
+        Encoder putSnapshotMessage(final StoredMessage msg, final long visibleAt, final int slot, final long stamp,
+                                   final int receiveCount) {
+            final int start = length;
+            putInt(0).putLong(visibleAt).putInt(slot).putLong(stamp).putInt(receiveCount).putMessage(msg);
+            setInt(start, length - start - 4);
+            return this;
+        }
+
+        /**
+         * Writes the header of a queue in a snapshot, [length][id][name][settings][message count],
+         * prefixed with its length since a policy makes it any size.
+         */
+        Encoder putSnapshotQueue(final long id, final String name, final QueueSettings settings, final int count) {
+            final int start = length;
+            putInt(0).putLong(id).putString(name);
+            settings.writeTo(this);
+            putInt(count);
+            setInt(start, length - start - 4);
+            return this;
+        }
+
+        /**
+         * Overwrites four bytes already written.
+         */
+        private void setInt(final int at, final int value) {
+            final int end = length;
+            length = at;
+            putInt(value);
+            length = end;
+        }
+
+        private void ensure(final int extra) {
+            if (length + extra > bytes.length) { bytes = Arrays.copyOf(bytes, Math.max(length + extra, bytes.length * 2)); }
+        }
+    }
+
+    /**
+     * Reads what an Encoder wrote, from a heap or memory-mapped buffer.
+     */
+    static final class Decoder {
+        private final ByteBuffer buf;
+
+        Decoder(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        byte getByte() {
+            return buf.get();
+        }
+
+        int getInt() {
+            return buf.getInt();
+        }
+
+        long getLong() {
+            return buf.getLong();
+        }
+
+        int position() {
+            return buf.position();
+        }
+
+        byte[] getBytes() {
+            final int len = buf.getInt();
+            if (len < 0) { return null; }
+            final byte[] value = new byte[len];
+            buf.get(value);
+            return value;
+        }
+
+        String getString() {
+            final byte[] value = getBytes();
+            return value == null ? null : new String(value, UTF_8);
+        }
+    }
+
+    /**
+     * A file read through a window of memory-mapped regions, so files over 2GB can be read too.
+     */
+    private static final class MappedFile {
+        private static final long REGION_SIZE = 1L << 30;
+
+        private final FileChannel channel;
+        final long size;
+        private long regionStart = 0;
+        ByteBuffer region = ByteBuffer.allocate(0);
+        Decoder in = new Decoder(region);
+
+        MappedFile(final FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        long position() {
+            return regionStart + region.position();
+        }
+
+        long remaining() {
+            return size - position();
+        }
+
+        /**
+         * Maps a new region if the next bytes are not all in the current one.
+         */
+        void ensure(final int bytes) throws IOException {
+            if (region.remaining() >= bytes) { return; }
+            final long position = position();
+            if (bytes > size - position) { throw new EOFException("Unexpected end of file at " + position); }
+            region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, Math.max(REGION_SIZE, bytes)));
+            regionStart = position;
+            in = new Decoder(region);
+        }
+
+        void skip(final int bytes) {
+            region.position(region.position() + bytes);
+        }
+    }
+
+    /**
+     * A message as last recorded: visible from visibleAt on, and in flight until then if it has a slot.
+     */
+    static final class RecoveredMessage {
+        final MappedMessage message;
+        long visibleAt;
+        int slot = -1;
+        long stamp;
+        int receiveCount = 0;
+        boolean removed = false;
+
+        RecoveredMessage(final MappedMessage message, final long visibleAt) {
+            this.message = message;
+            this.visibleAt = visibleAt;
+        }
+    }
+
+    /**
+     * The settings of a queue, as its records and snapshot entry carry them.
+     */
+    static final class QueueSettings {
+        final int visibilityTimeout;
+        final int receiveWaitTime;
+        final int delaySeconds;
+        final int maximumMessageSize;
+        final int messageRetentionPeriod;
+        final long createdTimestamp;
+        final long lastModifiedTimestamp;
+        final String policy;
+        final boolean fifo;
+        final boolean contentBasedDeduplication;
+        final String redrivePolicy;
+
+        /**
+         * Copies the queue's current settings; the caller holds off changes to them.
+         */
+        QueueSettings(final QueueState queue) {
+            this.visibilityTimeout = queue.visibilityTimeout;
+            this.receiveWaitTime = queue.receiveWaitTime;
+            this.delaySeconds = queue.delaySeconds;
+            this.maximumMessageSize = queue.maximumMessageSize;
+            this.messageRetentionPeriod = queue.messageRetentionPeriod;
+            this.createdTimestamp = queue.createdTimestamp;
+            this.lastModifiedTimestamp = queue.lastModifiedTimestamp;
+            this.policy = queue.policy;
+            this.fifo = queue.fifo;
+            this.contentBasedDeduplication = queue.contentBasedDeduplication;
+            final RedrivePolicy redrive = queue.redrivePolicy;
+            this.redrivePolicy = redrive == null ? null : redrive.toJson();
+        }
+
+        QueueSettings(final Decoder in) {
+            this.visibilityTimeout = in.getInt();
+            this.receiveWaitTime = in.getInt();
+            this.delaySeconds = in.getInt();
+            this.maximumMessageSize = in.getInt();
+            this.messageRetentionPeriod = in.getInt();
+            this.createdTimestamp = in.getLong();
+            this.lastModifiedTimestamp = in.getLong();
+            this.policy = in.getString();
+            this.fifo = in.getByte() != 0;
+            this.contentBasedDeduplication = in.getByte() != 0;
+            this.redrivePolicy = in.getString();
+        }
+
+        void writeTo(final Encoder enc) {
+            enc.putInt(visibilityTimeout).putInt(receiveWaitTime).putInt(delaySeconds).putInt(maximumMessageSize)
+                    .putInt(messageRetentionPeriod).putLong(createdTimestamp).putLong(lastModifiedTimestamp).putString(policy)
+                    .putByte((byte) (fifo ? 1 : 0)).putByte((byte) (contentBasedDeduplication ? 1 : 0)).putString(redrivePolicy);
+        }
+
+        /**
+         * Restores the settings that can change; whether the queue is FIFO is fixed when it is constructed.
+         */
+        void applyTo(final QueueState queue) {
+            queue.visibilityTimeout = visibilityTimeout;
+            queue.receiveWaitTime = receiveWaitTime;
+            queue.delaySeconds = delaySeconds;
+            queue.maximumMessageSize = maximumMessageSize;
+            queue.messageRetentionPeriod = messageRetentionPeriod;
+            queue.createdTimestamp = createdTimestamp;
+            queue.lastModifiedTimestamp = lastModifiedTimestamp;
+            queue.policy = policy;
+            queue.contentBasedDeduplication = contentBasedDeduplication;
+            queue.redrivePolicy = redrivePolicy == null ? null : RedrivePolicy.parse(redrivePolicy);
+        }
+    }
+
+    static final class RecoveredQueue {
+        final long id;
+        final String name;
+        QueueSettings settings;
+        // In the order the messages were sent, which is the order they become visible in; includes removed ones
+        final List<RecoveredMessage> messages;
+        // The snapshot's index of its messages: [id number][position] entries, sorted, still in the mapped file
+        private ByteBuffer snapshotIndex;
+        private int snapshotIndexStart;
+        private int snapshotIndexCount;
+        // The messages sent since the snapshot, hashed by id number
+        private long[] journalKeys = newKeys(16);
+        private int[] journalPositions = new int[16];
+        private int journalIndexed;
+
+        RecoveredQueue(final long id, final String name, final int expectedMessages) {
+            this.id = id;
+            this.name = name;
+            this.messages = new ArrayList<RecoveredMessage>(expectedMessages);
+        }
+
+        /**
+         * Adds a message sent since the snapshot.
+         */
+        void add(final RecoveredMessage msg) {
+            messages.add(msg);
+            index(msg.message.idNumber(), messages.size() - 1);
+        }
+
+        /**
+         * Looks a message up by the number its id ends in, in the snapshot's index and then in the
+         * messages sent since. Neither allocates anything per message.
+         *
+         * @return the message, or null if there is none or it was removed
+         */
+        RecoveredMessage find(final long key) {
+            int position = searchSnapshot(key);
+            if (position < 0) { position = searchJournal(key); }
+            if (position < 0) { return null; }
+            final RecoveredMessage msg = messages.get(position);
+            return msg.removed ? null : msg;
+        }
+
+        void remove(final long key) {
+            final RecoveredMessage msg = find(key);
+            if (msg != null) { msg.removed = true; }
+        }
+
+        /**
+         * Forgets every message recorded so far, snapshot and journal alike.
+         */
+        void purge() {
+            messages.clear();
+            snapshotIndexCount = 0;
+            journalKeys = newKeys(16);
+            journalPositions = new int[16];
+            journalIndexed = 0;
+        }
+
+        private int searchSnapshot(final long key) {
+            int low = 0;
+            int high = snapshotIndexCount - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int at = snapshotIndexStart + mid * SNAPSHOT_INDEX_ENTRY_SIZE;
+                final long midKey = snapshotIndex.getLong(at);
+                if (midKey < key) {
+                    low = mid + 1;
+                } else if (midKey > key) {
+                    high = mid - 1;
+                } else {
+                    return snapshotIndex.getInt(at + 8);
+                }
+            }
+            return -1;
+        }
+
+        private int searchJournal(final long key) {
+            final int mask = journalKeys.length - 1;
+            for (int slot = hash(key) & mask; journalKeys[slot] != -1; slot = (slot + 1) & mask) {
+                if (journalKeys[slot] == key) { return journalPositions[slot]; }
+            }
+            return -1;
+        }
+
+        private void index(final long key, final int position) {
+            if (++journalIndexed * 2 > journalKeys.length) {
+                final long[] keys = journalKeys;
+                final int[] positions = journalPositions;
+                journalKeys = newKeys(keys.length * 2);
+                journalPositions = new int[keys.length * 2];
+                for (int ix = 0; ix < keys.length; ix++) {
+                    if (keys[ix] != -1) { insert(keys[ix], positions[ix]); }
+                }
+            }
+            insert(key, position);
+        }
+
+        private void insert(final long key, final int position) {
+            final int mask = journalKeys.length - 1;
+            int slot = hash(key) & mask;
+            while (journalKeys[slot] != -1) { slot = (slot + 1) & mask; }
+            journalKeys[slot] = key;
+            journalPositions[slot] = position;
+        }
+
+        private static long[] newKeys(final int capacity) {
+            final long[] keys = new long[capacity];
+            Arrays.fill(keys, -1);
+            return keys;
+        }
+
+        private static int hash(final long key) {
+            final long mixed = key * 0x9E3779B97F4A7C15L;
+            return (int) (mixed ^ (mixed >>> 32));
+        }
+    }
+
+    static final class Recovered {
+        final Map<Long, RecoveredQueue> queues = new LinkedHashMap<Long, RecoveredQueue>();
+        // Every id recovered is below this, so new ids must start from it
+        long idBound = 0;
+        long nextGeneration = 0;
+        long replayedBytes = 0;
+
+        private void seenId(final long id) {
+            idBound = Math.max(idBound, id + 1);
+        }
+
+    }
+
+    /**
+     * Sorts keys ascending, moving each position along with its key. A heap sort, so it needs no
+     * extra memory however many messages a queue holds.
+     */
+    static void sortIndex(final long[] keys, final int[] positions) {
+        for (int ix = keys.length / 2 - 1; ix >= 0; ix--) { siftDown(keys, positions, ix, keys.length); }
+        for (int end = keys.length - 1; end > 0; end--) {
+            swap(keys, positions, 0, end);
+            siftDown(keys, positions, 0, end);
+        }
+    }
+
+    private static void siftDown(final long[] keys, final int[] positions, int root, final int end) {
+        while (true) {
+            int child = root * 2 + 1;
+            if (child >= end) { return; }
+            if (child + 1 < end && keys[child + 1] > keys[child]) { child++; }
+            if (keys[root] >= keys[child]) { return; }
+            swap(keys, positions, root, child);
+            root = child;
+        }
+    }
+
+    private static void swap(final long[] keys, final int[] positions, final int a, final int b) {
+        final long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        final int position = positions[a];
+        positions[a] = positions[b];
+        positions[b] = position;
+    }
+
+    static File journalFile(final File directory, final long generation) {
+        return new File(directory, JOURNAL_PREFIX + generation + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return the generations of the journal files in the directory, in ascending order
+     */
+    static long[] journalGenerations(final File directory) {
+        final String[] names = directory.list(new FilenameFilter() {
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX);
+            }
+        });
+        final List<Long> generations = new ArrayList<Long>();
+        for (final String name : names == null ? new String[0] : names) {
+            try {
+                generations.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length())));
+            } catch (NumberFormatException ex) {
+                // Not one of ours
+            }
+        }
+        final long[] sorted = new long[generations.size()];
+        for (int ix = 0; ix < sorted.length; ix++) { sorted[ix] = generations.get(ix); }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Rebuilds the state recorded in the directory, creating the directory if need be. Messages
+     * are left in the mapped files, and only decoded once something reads them.
+     */
+    static Recovered recover(final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) { throw new IOException("Cannot create directory " + directory); }
+        final Recovered recovered = new Recovered();
+        final File snapshot = new File(directory, SNAPSHOT_FILE);
+        long firstGeneration = 0;
+        if (snapshot.isFile()) { firstGeneration = readSnapshot(snapshot, recovered); }
+        recovered.nextGeneration = firstGeneration;
+        for (final long generation : journalGenerations(directory)) {
+            if (generation < firstGeneration) { continue; }
+            recovered.replayedBytes += replay(journalFile(directory, generation), recovered);
+            recovered.nextGeneration = generation + 1;
+        }
+        return recovered;
+    }
+
+    private static long readSnapshot(final File file, final Recovered recovered) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedFile in = new MappedFile(raf.getChannel());
+            in.ensure(SNAPSHOT_HEADER_SIZE);
+            if (in.in.getInt() != SNAPSHOT_MAGIC || in.in.getInt() != SNAPSHOT_VERSION) { throw new IOException("Not a snapshot: " + file); }
+            final long firstGeneration = in.in.getLong();
+            recovered.seenId(in.in.getLong() - 1);
+            for (int queues = in.in.getInt(); queues > 0; queues--) {
+                in.ensure(4);
+                in.ensure(in.in.getInt());
+                final long id = in.in.getLong();
+                final String name = in.in.getString();
+                final QueueSettings settings = new QueueSettings(in.in);
+                final int count = in.in.getInt();
+                final RecoveredQueue queue = new RecoveredQueue(id, name, count);
+                queue.settings = settings;
+                for (int messages = count; messages > 0; messages--) {
+                    in.ensure(4);
+                    final int length = in.in.getInt();
+                    in.ensure(length);
+                    final long visibleAt = in.in.getLong();
+                    final int slot = in.in.getInt();
+                    final long stamp = in.in.getLong();
+                    final int receiveCount = in.in.getInt();
+                    final int offset = in.in.position();
+                    final RecoveredMessage msg = new RecoveredMessage(
+                            new MappedMessage(in.region, offset, length - SNAPSHOT_MESSAGE_PREFIX_SIZE), visibleAt);
+                    msg.slot = slot;
+                    msg.stamp = stamp;
+                    msg.receiveCount = receiveCount;
+                    queue.messages.add(msg);
+                    in.skip(length - SNAPSHOT_MESSAGE_PREFIX_SIZE);
+                }
+                in.ensure(4);
+                final int indexCount = in.in.getInt();
+                in.ensure(indexCount * SNAPSHOT_INDEX_ENTRY_SIZE);
+                queue.snapshotIndex = in.region;
+                queue.snapshotIndexStart = in.in.position();
+                queue.snapshotIndexCount = indexCount;
+                in.skip(indexCount * SNAPSHOT_INDEX_ENTRY_SIZE);
+                recovered.queues.put(queue.id, queue);
+            }
+            in.ensure(4);
+            if (in.in.getInt() != SNAPSHOT_MAGIC) { throw new IOException("Corrupt snapshot: " + file); }
+            return firstGeneration;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Corrupt snapshot: " + file, ex);
+        } finally {
+            // The mapped regions stay valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Applies every intact record in the journal file, stopping at the first torn one.
+     *
+     * @return the number of bytes applied
+     */
+    private static long replay(final File file, final Recovered recovered) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedFile in = new MappedFile(raf.getChannel());
+            final CRC32 crc = new CRC32();
+            final byte[] scratch = new byte[64 * 1024];
+            long applied = 0;
+            while (in.remaining() >= RECORD_HEADER_SIZE) {
+                in.ensure(RECORD_HEADER_SIZE);
+                final int length = in.in.getInt();
+                final int expected = in.in.getInt();
+                if (length <= 0 || length > in.remaining()) { break; }
+                in.ensure(length);
+                final int start = in.region.position();
+                crc.reset();
+                for (int done = 0; done < length; ) {
+                    final int chunk = Math.min(scratch.length, length - done);
+                    in.region.get(scratch, 0, chunk);
+                    crc.update(scratch, 0, chunk);
+                    done += chunk;
+                }
+                if ((int) crc.getValue() != expected) { break; }
+                in.region.position(start);
+                apply(in.in, in.region, start + length, recovered);
+                in.region.position(start + length);
+                applied = in.position();
+            }
+            return applied;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Applies the record the decoder is positioned at, which ends at end in region.
+     */
+    private static void apply(final Decoder in, final ByteBuffer region, final int end, final Recovered recovered) {
+        final byte type = in.getByte();
+        final long queueId = in.getLong();
+        if (type == QUEUE_CREATED) {
+            final RecoveredQueue queue = new RecoveredQueue(queueId, in.getString(), 16);
+            queue.settings = new QueueSettings(in);
+            recovered.queues.put(queueId, queue);
+            recovered.seenId(queueId);
+            return;
+        }
+        final RecoveredQueue queue = recovered.queues.get(queueId);
+        if (queue == null) { return; }
+        switch (type) {
+            case QUEUE_ATTRIBUTES_CHANGED:
+                queue.settings = new QueueSettings(in);
+                break;
+            case QUEUE_DELETED:
+                recovered.queues.remove(queueId);
+                break;
+            case SENT: {
+                final long visibleAt = in.getLong();
+                final MappedMessage msg = new MappedMessage(region, in.position(), end - in.position());
+                queue.add(new RecoveredMessage(msg, visibleAt));
+                recovered.seenId(msg.idNumber());
+                break;
+            }
+            case RECEIVED: {
+                final RecoveredMessage msg = queue.find(in.getLong());
+                final int slot = in.getInt();
+                final long stamp = in.getLong();
+                final long visibleAt = in.getLong();
+                if (msg != null) {
+                    msg.slot = slot;
+                    msg.stamp = stamp;
+                    msg.visibleAt = visibleAt;
+                    msg.receiveCount++;
+                }
+                recovered.seenId(stamp);
+                break;
+            }
+            case VISIBILITY_CHANGED: {
+                final RecoveredMessage msg = queue.find(in.getLong());
+                final long visibleAt = in.getLong();
+                if (msg != null) {
+                    msg.visibleAt = visibleAt;
+                    if (visibleAt == 0) { msg.slot = -1; }
+                }
+                break;
+            }
+            case DELETED:
+                queue.remove(in.getLong());
+                break;
+            case QUEUE_PURGED:
+                queue.purge();
+                break;
+            default:
+                // A record type from a newer version; nothing we can do with it
+        }
+    }
+}
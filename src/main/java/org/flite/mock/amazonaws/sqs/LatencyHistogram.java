@@ -0,0 +1,79 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of latencies in nanoseconds, in log-linear buckets: each power of two
+ * is split into 8, so any value is reported to within 12.5%. Recording is one atomic add on the
+ * calling thread's stripe, with no locks and no allocation; values up to about 73 minutes are
+ * told apart, and anything longer lands in the last bucket.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 41;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = Math.min(8, StripedCounter.STRIPES);
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final StripedCounter totalNanos = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.getAndIncrement((StripedCounter.stripe() & (STRIPES - 1)) * BUCKETS + bucket(value));
+        totalNanos.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) { }
+    }
+
+    /**
+     * @return the counts of every bucket, summed over the stripes; they add up to the values recorded
+     */
+    long[] counts() {
+        final long[] merged = new long[BUCKETS];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int ix = 0; ix < BUCKETS; ix++) { merged[ix] += counts.get(stripe * BUCKETS + ix); }
+        }
+        return merged;
+    }
+
+    long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @param fraction e.g. 0.99 for the 99th percentile
+     * @return the highest value in the bucket holding that fraction of the values in merged counts, or 0 if there are none
+     */
+    static long percentile(final long[] counts, final long total, final double fraction) {
+        if (total == 0) { return 0; }
+        final long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int ix = 0; ix < counts.length; ix++) {
+            seen += counts[ix];
+            if (seen >= rank) { return highestIn(ix); }
+        }
+        return highestIn(counts.length - 1);
+    }
+
+    static int bucket(final long value) {
+        if (value < SUB_BUCKETS) { return (int) value; }
+        final int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+        if (exponent == MAX_EXPONENT && value >= 1L << (MAX_EXPONENT + 1)) { return BUCKETS - 1; }
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    static long highestIn(final int bucket) {
+        if (bucket < SUB_BUCKETS) { return bucket; }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        final long width = 1L << (exponent - SUB_BITS);
+        return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+    }
+}
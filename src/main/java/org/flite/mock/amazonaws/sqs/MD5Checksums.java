@@ -0,0 +1,167 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+/**
+ * The MD5 digests SQS reports as MD5OfBody and MD5OfMessageAttributes. They are computed as
+ * raw bytes, which is how stored messages keep them, and turned into hex only when reported.
+ *
+ * Each thread reuses one MessageDigest and one encode buffer, and strings are UTF-8 encoded
+ * by hand straight into that buffer, so hashing allocates nothing but the digest itself.
+ */
+final class MD5Checksums {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    static final int DIGEST_SIZE = 16;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private static final byte STRING_TYPE = 1;
+    private static final byte BINARY_TYPE = 2;
+    private static final byte STRING_LIST_TYPE = 3;
+    private static final byte BINARY_LIST_TYPE = 4;
+
+    private static final class Context {
+        final MessageDigest digest;
+        byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+        Context() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("MD5 is not available", ex);
+            }
+        }
+    }
+
+    private static final ThreadLocal<Context> CONTEXT = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    private MD5Checksums() { }
+
+    /**
+     * @return the MD5 of bytes, e.g. a UTF-8 encoded message body
+     */
+    static byte[] md5(final byte[] bytes) {
+        final MessageDigest digest = CONTEXT.get().digest;
+        digest.reset();
+        return digest.digest(bytes);
+    }
+
+    /**
+     * @return the MD5 of the message attributes, as computed by SQS; null if there are none
+     */
+    static byte[] md5OfMessageAttributes(final Map<String, MessageAttributeValue> attributes) {
+        if (attributes == null || attributes.isEmpty()) { return null; }
+        final Context ctx = CONTEXT.get();
+        final MessageDigest digest = ctx.digest;
+        digest.reset();
+        final String[] names = attributes.keySet().toArray(new String[attributes.size()]);
+        Arrays.sort(names);
+        for (final String name : names) {
+            final MessageAttributeValue value = attributes.get(name);
+            updateLengthAndBytes(ctx, name);
+            updateLengthAndBytes(ctx, value.getDataType());
+            if (value.getStringValue() != null) {
+                digest.update(STRING_TYPE);
+                updateLengthAndBytes(ctx, value.getStringValue());
+            } else if (value.getBinaryValue() != null) {
+                digest.update(BINARY_TYPE);
+                updateLengthAndBytes(ctx, value.getBinaryValue());
+            } else if (!isEmpty(value.getStringListValues())) {
+                digest.update(STRING_LIST_TYPE);
+                for (final String str : value.getStringListValues()) { updateLengthAndBytes(ctx, str); }
+            } else if (!isEmpty(value.getBinaryListValues())) {
+                digest.update(BINARY_LIST_TYPE);
+                for (final ByteBuffer bytes : value.getBinaryListValues()) { updateLengthAndBytes(ctx, bytes); }
+            }
+        }
+        return digest.digest();
+    }
+
+    private static boolean isEmpty(final List<?> list) {
+        return list == null || list.isEmpty();
+    }
+
+    private static void updateLengthAndBytes(final Context ctx, final String str) {
+        final int len = encode(ctx, str);
+        updateLength(ctx.digest, len);
+        ctx.digest.update(ctx.buffer, 0, len);
+    }
+
+    private static void updateLengthAndBytes(final Context ctx, final ByteBuffer bytes) {
+        // Work on a duplicate so the caller's position is left alone
+        final ByteBuffer src = bytes.duplicate();
+        src.rewind();
+        updateLength(ctx.digest, src.remaining());
+        ctx.digest.update(src);
+    }
+
+    private static void updateLength(final MessageDigest digest, final int len) {
+        digest.update((byte) (len >>> 24));
+        digest.update((byte) (len >>> 16));
+        digest.update((byte) (len >>> 8));
+        digest.update((byte) len);
+    }
+
+    /**
+     * UTF-8 encodes str into the context's buffer, growing it if needed.
+     * Unpaired surrogates become '?', as String.getBytes does.
+     *
+     * @return the number of bytes written
+     */
+    private static int encode(final Context ctx, final String str) {
+        if (str == null) { return 0; }
+        final int chars = str.length();
+        if (ctx.buffer.length < chars * 3) { ctx.buffer = new byte[Math.max(chars * 3, ctx.buffer.length * 2)]; }
+        final byte[] out = ctx.buffer;
+        int pos = 0;
+        for (int ix = 0; ix < chars; ix++) {
+            final char ch = str.charAt(ix);
+            if (ch < 0x80) {
+                out[pos++] = (byte) ch;
+            } else if (ch < 0x800) {
+                out[pos++] = (byte) (0xc0 | (ch >> 6));
+                out[pos++] = (byte) (0x80 | (ch & 0x3f));
+            } else if (Character.isSurrogate(ch)) {
+                if (Character.isHighSurrogate(ch) && ix + 1 < chars && Character.isLowSurrogate(str.charAt(ix + 1))) {
+                    final int cp = Character.toCodePoint(ch, str.charAt(++ix));
+                    out[pos++] = (byte) (0xf0 | (cp >> 18));
+                    out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    out[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    out[pos++] = (byte) '?';
+                }
+            } else {
+                out[pos++] = (byte) (0xe0 | (ch >> 12));
+                out[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (ch & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @return the 16-byte digest at the given position of buf, in hex
+     */
+    static String toHex(final ByteBuffer buf, final int at) {
+        final char[] chars = new char[DIGEST_SIZE * 2];
+        for (int ix = 0; ix < DIGEST_SIZE; ix++) {
+            final byte value = buf.get(at + ix);
+            chars[ix * 2] = HEX[(value >> 4) & 0xf];
+            chars[ix * 2 + 1] = HEX[value & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,45 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A recovered message that is still in its memory-mapped snapshot or journal file. Recovery
+ * creates one of these per message without reading anything but its length, which is what keeps
+ * restarting over millions of messages fast; the bytes are only read when the message is received
+ * or written to a snapshot, and stay off the heap in between.
+ */
+final class MappedMessage extends StoredMessage {
+
+    private final ByteBuffer region;
+    private final int offset;
+    private final int length;
+
+    MappedMessage(final ByteBuffer region, final int offset, final int length) {
+        this.region = region;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    long idNumber() {
+        return region.getLong(offset);
+    }
+
+    @Override
+    ByteBuffer encoded() {
+        final ByteBuffer raw = region.duplicate();
+        raw.limit(offset + length);
+        raw.position(offset);
+        return raw;
+    }
+
+    @Override
+    int size() {
+        return length;
+    }
+
+    @Override
+    void writeTo(final JournalFormat.Encoder enc) {
+        enc.putRaw(encoded());
+    }
+}
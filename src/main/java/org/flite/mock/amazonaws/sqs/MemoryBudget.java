@@ -0,0 +1,151 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.sqs.model.OverLimitException;
+
+/**
+ * Keeps count of the stored message bytes (see {@link StoredMessage#size()}) held by each queue
+ * and by the mock as a whole, and turns sends away with an OverLimitException once either would go
+ * over its limit, until receivers have deleted enough. Both limits are off by default.
+ *
+ * Counting is lock-free: a send reserves its bytes on its queue, then on the total, and a delete
+ * gives them back the same way. Deleting a queue detaches its count, taking everything it held off
+ * the total at once; anything reserved or released on it afterwards leaves the total alone.
+ * Purging a queue likewise takes its whole count off at once, and a message that raced with the
+ * purge and is released afterwards only takes its queue's count down as far as zero.
+ */
+final class MemoryBudget {
+
+    private static final long DETACHED = Long.MIN_VALUE / 2;
+
+    private final AtomicLong total = new AtomicLong();
+    private volatile long totalLimit = Long.MAX_VALUE;
+    private volatile long queueLimit = Long.MAX_VALUE;
+
+    void setTotalLimit(final long bytes) {
+        totalLimit = checkLimit(bytes);
+    }
+
+    void setQueueLimit(final long bytes) {
+        queueLimit = checkLimit(bytes);
+    }
+
+    private static long checkLimit(final long bytes) {
+        if (bytes <= 0) { throw new IllegalArgumentException("Memory limit must be positive: " + bytes); }
+        return bytes;
+    }
+
+    long total() {
+        return Math.max(0, total.get());
+    }
+
+    /**
+     * Takes bytes out of the budget for a message about to be stored on queue.
+     *
+     * @throws OverLimitException if the queue or the mock would go over its limit
+     */
+    void reserve(final QueueState queue, final long bytes) {
+        final long limit = queueLimit;
+        long held;
+        do {
+            held = queue.storedBytes.get();
+            // Deleted already: the message is going nowhere, so there is nothing to count
+            if (held < 0) { return; }
+            if (held + bytes > limit) {
+                throw overLimit("Queue " + queue.name + " holds " + held + " bytes of messages, and may hold no more than " + limit);
+            }
+        } while (!queue.storedBytes.compareAndSet(held, held + bytes));
+
+        final long totalLimit = this.totalLimit;
+        long current;
+        do {
+            current = total.get();
+            if (current + bytes > totalLimit) {
+                unreserve(queue, bytes);
+                throw overLimit("The mock holds " + current + " bytes of messages, and may hold no more than " + totalLimit);
+            }
+        } while (!total.compareAndSet(current, current + bytes));
+    }
+
+    /**
+     * Gives back what a message removed from queue was holding.
+     */
+    void release(final QueueState queue, final long bytes) {
+        long held;
+        long next;
+        do {
+            held = queue.storedBytes.get();
+            if (held < 0) { return; }
+            next = Math.max(0, held - bytes);
+        } while (!queue.storedBytes.compareAndSet(held, next));
+        total.addAndGet(next - held);
+    }
+
+    /**
+     * Gives back everything queue holds in one step, as when it is purged; unlike detach(), the queue
+     * goes on counting.
+     */
+    void purge(final QueueState queue) {
+        long held;
+        do {
+            held = queue.storedBytes.get();
+            if (held <= 0) { return; }
+        } while (!queue.storedBytes.compareAndSet(held, 0));
+        total.addAndGet(-held);
+    }
+
+    /**
+     * Counts a message recovered from disk, whatever the limits.
+     */
+    void restore(final QueueState queue, final long bytes) {
+        queue.storedBytes.addAndGet(bytes);
+        total.addAndGet(bytes);
+    }
+
+    /**
+     * Moves what a message holds from one queue to another, whatever the limits, as when it is moved
+     * to a dead-letter queue.
+     */
+    void transfer(final QueueState from, final QueueState to, final long bytes) {
+        release(from, bytes);
+        long held;
+        do {
+            held = to.storedBytes.get();
+            if (held < 0) { return; }
+        } while (!to.storedBytes.compareAndSet(held, held + bytes));
+        total.addAndGet(bytes);
+    }
+
+    /**
+     * Gives back everything a deleted queue was holding.
+     */
+    void detach(final QueueState queue) {
+        final long held = queue.storedBytes.getAndSet(DETACHED);
+        if (held > 0) { total.addAndGet(-held); }
+    }
+
+    private void unreserve(final QueueState queue, final long bytes) {
+        long held;
+        long next;
+        do {
+            held = queue.storedBytes.get();
+            if (held < 0) {
+                // Detached in the meantime, which took these bytes off a total they never made it onto
+                total.addAndGet(bytes);
+                return;
+            }
+            next = Math.max(0, held - bytes);
+        } while (!queue.storedBytes.compareAndSet(held, next));
+        // Whatever a purge took off the total in the meantime was taken off the queue too; put it back
+        total.addAndGet(bytes - (held - next));
+    }
+
+    private static OverLimitException overLimit(final String message) {
+        final OverLimitException ex = new OverLimitException(message);
+        ex.setErrorCode("OverLimit");
+        ex.setErrorType(OverLimitException.ErrorType.Client);
+        ex.setStatusCode(403);
+        return ex;
+    }
+}
@@ -0,0 +1,127 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires the messages of one queue once they are older than its MessageRetentionPeriod.
+ *
+ * The visible store holds its messages in segments, one per window of a sixteenth of the period
+ * (see {@link MessageStore}), so expiring them is a matter of dropping whole segments from the head
+ * once the newest message each could hold has aged out; no message is looked at to decide. As with
+ * delayed messages, only the next segment due is ever on the timer wheel. Messages in flight or
+ * delayed are not in a segment, so each is checked as it comes back to the store instead, and dropped
+ * there if it has aged out in the meantime.
+ *
+ * No record is needed: recovery works out from the time a message was sent that it has expired.
+ */
+final class MessageRetention {
+
+    static final int SEGMENTS_PER_PERIOD = 16;
+    static final long MIN_SEGMENT_MILLIS = 1000;
+
+    private final class Expiry extends TimerWheel.Timeout {
+        @Override
+        protected void expire() {
+            expireDue(this);
+        }
+    }
+
+    private final QueueState queue;
+    private final TimerWheel timer;
+    private final MemoryBudget memory;
+    private Expiry scheduled;
+    // When the scheduled expiry runs, read without the lock so that most calls to schedule() are a single read
+    private volatile long scheduledAt = Long.MAX_VALUE;
+
+    MessageRetention(final QueueState queue, final TimerWheel timer, final MemoryBudget memory) {
+        this.queue = queue;
+        this.timer = timer;
+        this.memory = memory;
+    }
+
+    long periodMillis() {
+        return TimeUnit.SECONDS.toMillis(queue.messageRetentionPeriod);
+    }
+
+    /**
+     * @return how long a window of sends each new segment of the store covers
+     */
+    long segmentMillis() {
+        return Math.max(MIN_SEGMENT_MILLIS, periodMillis() / SEGMENTS_PER_PERIOD);
+    }
+
+    boolean isExpired(final StoredMessage msg, final long nowMillis) {
+        return msg.sentAt() < nowMillis - periodMillis();
+    }
+
+    /**
+     * Makes sure an expiry runs once messages sent before sentBefore have aged out. The store calls
+     * this for each segment it opens.
+     */
+    void schedule(final long sentBefore) {
+        final long at = sentBefore + periodMillis();
+        if (at >= scheduledAt) { return; }
+        synchronized (this) {
+            if (at >= scheduledAt) { return; }
+            if (scheduled != null) { scheduled.cancel(); }
+            scheduled = new Expiry();
+            scheduledAt = at;
+            timer.schedule(scheduled, Math.max(0, at - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Re-plans expiry for a new retention period: the open segment is closed, so nothing sent from
+     * now on shares a segment with messages kept under the old period, and the next expiry is
+     * worked out afresh.
+     */
+    void periodChanged() {
+        queue.visible.seal(System.currentTimeMillis());
+        cancel();
+        final long next = queue.visible.expiryBound();
+        if (next != Long.MAX_VALUE) { schedule(next); }
+    }
+
+    /**
+     * Stops expiring, e.g. when the queue is deleted.
+     */
+    synchronized void cancel() {
+        if (scheduled != null) {
+            scheduled.cancel();
+            scheduled = null;
+        }
+        scheduledAt = Long.MAX_VALUE;
+    }
+
+    /**
+     * Drops a message that aged out while in flight or delayed, rather than make it visible.
+     */
+    void drop(final StoredMessage msg) {
+        queue.visible.deleted(msg);
+        memory.release(queue, msg.size());
+        queue.stats.expired.increment();
+    }
+
+    private void expireDue(final Expiry expiry) {
+        synchronized (this) {
+            if (scheduled != expiry) { return; }
+            scheduled = null;
+            scheduledAt = Long.MAX_VALUE;
+        }
+        if (queue.isDeleted()) { return; }
+        final List<StoredMessage> expired;
+        queue.journal.lock();
+        try {
+            expired = queue.visible.expire(System.currentTimeMillis() - periodMillis());
+        } finally {
+            queue.journal.unlock();
+        }
+        long bytes = 0;
+        for (final StoredMessage msg : expired) { bytes += msg.size(); }
+        memory.release(queue, bytes);
+        queue.stats.expired.add(expired.size());
+        final long next = queue.visible.expiryBound();
+        if (next != Long.MAX_VALUE) { schedule(next); }
+    }
+}
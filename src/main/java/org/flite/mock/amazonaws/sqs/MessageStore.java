@@ -0,0 +1,388 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The visible messages of a single mock queue.
+ *
+ * Backed by a run of lock-free linked deques, so sends and receives are O(1) and producers
+ * and consumers never contend on a shared monitor. Each deque is a segment holding the messages
+ * sent within one window of time, which is what lets {@link MessageRetention} expire messages a
+ * segment at a time. Sends append to the newest segment and receives take from the oldest; the
+ * monitor is only taken to open, retire or drop a whole segment, or to put a message back at the
+ * head. The size is tracked separately, since ConcurrentLinkedDeque.size() walks the whole deque.
+ *
+ * Long-polling receivers register in a list of waiters, either parked threads or pending
+ * async receives; every message added wakes at most one of them, so idle receivers cost
+ * nothing until there is work for them.
+ *
+ * FIFO queues use {@link FifoMessageStore}, which keeps the waiters but holds its messages by group.
+ */
+class MessageStore {
+
+    /**
+     * A receiver waiting for messages. Exactly one of signal() and cancel() succeeds.
+     */
+    abstract static class Waiter {
+        private static final int WAITING = 0;
+        private static final int SIGNALLED = 1;
+        private static final int CANCELLED = 2;
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        /**
+         * Called once, by the thread that made a message available.
+         */
+        protected abstract void wake();
+
+        boolean signal() {
+            if (!state.compareAndSet(WAITING, SIGNALLED)) { return false; }
+            wake();
+            return true;
+        }
+
+        boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED);
+        }
+
+        boolean isSignalled() {
+            return state.get() == SIGNALLED;
+        }
+    }
+
+    private static final class ParkedWaiter extends Waiter {
+        private final Thread thread = Thread.currentThread();
+
+        @Override
+        protected void wake() {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * The messages sent within one window of time, head first.
+     */
+    private static final class Segment {
+        final ConcurrentLinkedDeque<StoredMessage> messages = new ConcurrentLinkedDeque<StoredMessage>();
+        // A message sent from then on opens a new segment; brought forward to seal the segment early
+        volatile long closesAt;
+        // Every message in the segment was sent before then, so the segment expires once that is past the retention period
+        volatile long sentBefore;
+        // Set once the segment is unlinked; an add that raced with that takes its message back out, if it still can
+        volatile boolean dropped = false;
+
+        Segment(final long closesAt) {
+            this.closesAt = closesAt;
+            this.sentBefore = closesAt;
+        }
+    }
+
+    // Marks a tail that is not open for anything, so the next add opens a segment
+    private static final long UNOPENED = Long.MIN_VALUE;
+
+    final MessageRetention retention;
+    // Never empty; receives take from the head segment, sends append to the tail one
+    private volatile ConcurrentLinkedDeque<Segment> segments = new ConcurrentLinkedDeque<Segment>();
+    private volatile Segment tail = new Segment(UNOPENED);
+    private final AtomicInteger size = new AtomicInteger();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+
+    MessageStore(final MessageRetention retention) {
+        this.retention = retention;
+        segments.add(tail);
+    }
+
+    void add(final StoredMessage msg) {
+        append(msg);
+        size.incrementAndGet();
+        signalWaiters(1);
+    }
+
+    /**
+     * Puts a message that was in flight back at the head of the queue.
+     */
+    void addFirst(final StoredMessage msg) {
+        final long sentAt = msg.sentAt();
+        synchronized (this) {
+            final Segment head = segments.peekFirst();
+            head.messages.offerFirst(msg);
+            // It may have been sent after the head segment's window; if so, the segment waits for it to age out too
+            if (sentAt >= head.sentBefore) {
+                head.sentBefore = sentAt + 1;
+                retention.schedule(head.sentBefore);
+            }
+        }
+        size.incrementAndGet();
+        signalWaiters(1);
+    }
+
+    /**
+     * Appends all of the messages in one pass, waking up to one waiter per message.
+     */
+    void addAll(final Collection<StoredMessage> msgs) {
+        if (msgs.isEmpty()) { return; }
+        final Segment segment = tail;
+        boolean fits = true;
+        for (final StoredMessage msg : msgs) {
+            if (msg.sentAt() >= segment.closesAt) {
+                fits = false;
+                break;
+            }
+        }
+        if (fits) {
+            segment.messages.addAll(msgs);
+            if (segment.dropped) {
+                for (final StoredMessage msg : msgs) {
+                    if (segment.messages.remove(msg)) { append(msg); }
+                }
+            }
+        } else {
+            for (final StoredMessage msg : msgs) { append(msg); }
+        }
+        size.addAndGet(msgs.size());
+        signalWaiters(msgs.size());
+    }
+
+    /**
+     * Appends a message to the tail segment, opening a new one if its window has closed.
+     */
+    private void append(final StoredMessage msg) {
+        final long sentAt = msg.sentAt();
+        while (true) {
+            Segment segment = tail;
+            if (sentAt >= segment.closesAt) { segment = open(sentAt); }
+            segment.messages.offerLast(msg);
+            // If the segment was dropped meanwhile and the message is still in it, try again; if not, whoever dropped it has it
+            if (!segment.dropped || !segment.messages.remove(msg)) { return; }
+        }
+    }
+
+    private synchronized Segment open(final long sentAt) {
+        if (sentAt >= tail.closesAt) {
+            final Segment next = new Segment(sentAt + retention.segmentMillis());
+            segments.addLast(next);
+            tail = next;
+            retention.schedule(next.sentBefore);
+        }
+        return tail;
+    }
+
+    /**
+     * @return the message at the head of the queue, or null if there are none
+     */
+    StoredMessage poll() {
+        while (true) {
+            final Segment head = segments.peekFirst();
+            final StoredMessage msg = head.messages.pollFirst();
+            if (msg != null) {
+                size.decrementAndGet();
+                return msg;
+            }
+            if (head == tail) { return null; }
+            retire(head);
+        }
+    }
+
+    /**
+     * Unlinks a segment that has been emptied, so receives stop looking at it.
+     */
+    private synchronized void retire(final Segment head) {
+        if (segments.peekFirst() != head || head == tail || !head.messages.isEmpty()) { return; }
+        segments.pollFirst();
+        head.dropped = true;
+        // An add that read the tail before this segment stopped being it may have appended since; pass that on
+        StoredMessage msg;
+        while ((msg = head.messages.pollFirst()) != null) { tail.messages.offerLast(msg); }
+    }
+
+    /**
+     * Takes up to max messages from the head of the queue, to be put in flight.
+     *
+     * @return the number of messages added to into
+     */
+    int drainTo(final List<StoredMessage> into, final int max) {
+        int taken = 0;
+        StoredMessage msg;
+        while (taken < max && (msg = poll()) != null) {
+            into.add(msg);
+            taken++;
+        }
+        return taken;
+    }
+
+    /**
+     * Called when a message taken from the store has been deleted while in flight.
+     */
+    void deleted(final StoredMessage msg) {
+        // Nothing to do: the store forgets messages once they are taken
+    }
+
+    /**
+     * Called when a message recovered from disk goes back in flight without passing through the store.
+     */
+    void restoredInFlight(final StoredMessage msg) {
+        // Nothing to do, as for deleted()
+    }
+
+    /**
+     * @return the message at the head of the queue, left there, or null if there are none
+     */
+    StoredMessage peek() {
+        for (final Segment segment : segments) {
+            final StoredMessage msg = segment.messages.peekFirst();
+            if (msg != null) { return msg; }
+        }
+        return null;
+    }
+
+    /**
+     * Parks the calling thread until a message may have become available, or the timeout passes.
+     * Returns early without parking if the store is not empty.
+     */
+    void await(final long timeoutNanos) throws InterruptedException {
+        final ParkedWaiter waiter = new ParkedWaiter();
+        waiters.add(waiter);
+        // Re-check after registering, or a message added in between would never wake us
+        if (!isEmpty()) {
+            if (waiter.cancel()) { waiters.remove(waiter); }
+            return;
+        }
+        final long deadline = System.nanoTime() + timeoutNanos;
+        long remaining = timeoutNanos;
+        while (!waiter.isSignalled() && remaining > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                if (waiter.cancel()) {
+                    waiters.remove(waiter);
+                } else {
+                    // We were signalled but will not receive, so hand the wake-up on
+                    signalWaiters(1);
+                }
+                throw new InterruptedException();
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        if (waiter.cancel()) { waiters.remove(waiter); }
+    }
+
+    /**
+     * Registers a waiter to be signalled when a message is added. The caller must re-check
+     * isEmpty() afterwards, since a message added just before registering signals no one.
+     */
+    void addWaiter(final Waiter waiter) {
+        waiters.add(waiter);
+    }
+
+    /**
+     * Drops a waiter that was cancelled rather than signalled.
+     */
+    void removeWaiter(final Waiter waiter) {
+        waiters.remove(waiter);
+    }
+
+    /**
+     * @return whether there is nothing a receive could take right now
+     */
+    boolean isEmpty() {
+        for (final Segment segment : segments) {
+            if (!segment.messages.isEmpty()) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the messages, head first; only consistent if nothing is changing the store
+     */
+    List<StoredMessage> snapshot() {
+        final List<StoredMessage> visible = new ArrayList<StoredMessage>(size());
+        for (final Segment segment : segments) { visible.addAll(segment.messages); }
+        return visible;
+    }
+
+    /**
+     * Drops every segment whose messages were all sent before cutoff, head first.
+     *
+     * @return the messages dropped
+     */
+    synchronized List<StoredMessage> expire(final long cutoff) {
+        final List<StoredMessage> expired = new ArrayList<StoredMessage>();
+        Segment head;
+        while ((head = segments.peekFirst()).sentBefore <= cutoff) {
+            if (head == tail) {
+                if (head.sentBefore == UNOPENED) { break; }
+                tail = new Segment(UNOPENED);
+                segments.addLast(tail);
+            }
+            segments.pollFirst();
+            drop(head, expired);
+        }
+        size.addAndGet(-expired.size());
+        return expired;
+    }
+
+    /**
+     * @return a time everything in the oldest segment was sent before, which is what its expiry is
+     *         counted from, or Long.MAX_VALUE if there is nothing to expire
+     */
+    long expiryBound() {
+        // The empty segment a store starts with stays at the head until a receive retires it, so look past it
+        for (final Segment segment : segments) {
+            if (segment.sentBefore != UNOPENED) { return segment.sentBefore; }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Closes the open segment, so the next message sent opens a new one.
+     */
+    synchronized void seal(final long nowMillis) {
+        if (tail.closesAt > nowMillis) { tail.closesAt = nowMillis; }
+    }
+
+    /**
+     * Empties the store by swapping in a fresh, empty run of segments, which takes the same time
+     * however many messages it holds. The segments swapped out are marked dropped, so an add racing
+     * with the swap moves its message on to the fresh tail, and are otherwise left as they are.
+     */
+    synchronized void purge() {
+        final ConcurrentLinkedDeque<Segment> purged = segments;
+        tail = new Segment(UNOPENED);
+        final ConcurrentLinkedDeque<Segment> fresh = new ConcurrentLinkedDeque<Segment>();
+        fresh.add(tail);
+        segments = fresh;
+        for (final Segment segment : purged) { segment.dropped = true; }
+        size.set(0);
+    }
+
+    /**
+     * Marks an unlinked segment dropped and takes what is left in it. A receive still holding
+     * the segment may take messages from it first; each message goes to exactly one of them.
+     */
+    private static void drop(final Segment segment, final List<StoredMessage> into) {
+        segment.dropped = true;
+        StoredMessage msg;
+        while ((msg = segment.messages.pollFirst()) != null) { into.add(msg); }
+    }
+
+    /**
+     * Wakes up to count waiting receivers.
+     */
+    void signalWaiters(int count) {
+        Waiter waiter;
+        while (count > 0 && (waiter = waiters.poll()) != null) {
+            if (waiter.signal()) { count--; }
+        }
+    }
+
+    int size() {
+        // A poll can briefly decrement before the matching add has incremented
+        return Math.max(0, size.get());
+    }
+}
@@ -0,0 +1,144 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ResponseMetadata;
+
+/**
+ * Counts and times the calls made to one mock, per action.
+ *
+ * Each call is one bucket of its action's latency histogram, which is what it is counted by, and
+ * leaves its request in a small ring for getCachedResponseMetadata; there are no locks, and nothing
+ * is added up until someone reads the numbers. Reading the clock, twice, is most of what a call
+ * costs, so the clock read at the start of a call is also what the mock stamps messages with.
+ */
+final class Metrics {
+
+    enum Operation {
+        CREATE_QUEUE("CreateQueue"),
+        GET_QUEUE_URL("GetQueueUrl"),
+        LIST_QUEUES("ListQueues"),
+        LIST_DEAD_LETTER_SOURCE_QUEUES("ListDeadLetterSourceQueues"),
+        DELETE_QUEUE("DeleteQueue"),
+        PURGE_QUEUE("PurgeQueue"),
+        GET_QUEUE_ATTRIBUTES("GetQueueAttributes"),
+        SET_QUEUE_ATTRIBUTES("SetQueueAttributes"),
+        SEND_MESSAGE("SendMessage"),
+        SEND_MESSAGE_BATCH("SendMessageBatch"),
+        RECEIVE_MESSAGE("ReceiveMessage"),
+        DELETE_MESSAGE("DeleteMessage"),
+        DELETE_MESSAGE_BATCH("DeleteMessageBatch"),
+        CHANGE_MESSAGE_VISIBILITY("ChangeMessageVisibility"),
+        CHANGE_MESSAGE_VISIBILITY_BATCH("ChangeMessageVisibilityBatch");
+
+        final String action;
+
+        Operation(final String action) {
+            this.action = action;
+        }
+    }
+
+    static final String REQUEST_ID_PREFIX = "mock-aws-request-id-";
+    // Per stripe, so threads on different stripes never write to the same cache line
+    private static final int RECENT_PER_STRIPE = 16;
+
+    /**
+     * A request recently completed, and the number its request id ends in.
+     */
+    private static final class Recent {
+        final AmazonWebServiceRequest request;
+        final long number;
+
+        Recent(final AmazonWebServiceRequest request, final long number) {
+            this.request = request;
+            this.number = number;
+        }
+    }
+
+    private final IdGenerator ids;
+    // Wall-clock time at System.nanoTime() 0, give or take the wall clock being adjusted since
+    private final long epochMillisAtZero = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final StripedCounter[] errors = new StripedCounter[latencies.length];
+    private final RateMeter[] rates = new RateMeter[latencies.length];
+    private final AtomicReferenceArray<Recent> recent = new AtomicReferenceArray<Recent>(StripedCounter.STRIPES * RECENT_PER_STRIPE);
+
+    Metrics(final IdGenerator ids) {
+        this.ids = ids;
+        for (int ix = 0; ix < latencies.length; ix++) {
+            latencies[ix] = new LatencyHistogram();
+            errors[ix] = new StripedCounter();
+            rates[ix] = new RateMeter();
+        }
+    }
+
+    /**
+     * @return the wall-clock time, in milliseconds since the epoch, at which System.nanoTime() read nanos
+     */
+    long epochMillis(final long nanos) {
+        return epochMillisAtZero + TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Counts a call that is about to throw ex.
+     *
+     * @return ex, for the caller to rethrow
+     */
+    RuntimeException failed(final Operation op, final RuntimeException ex) {
+        errors[op.ordinal()].increment();
+        return ex;
+    }
+
+    /**
+     * Counts a call, whether it succeeded or not, which started at startNanos.
+     */
+    void completed(final Operation op, final AmazonWebServiceRequest request, final long startNanos) {
+        latencies[op.ordinal()].record(System.nanoTime() - startNanos);
+        if (request != null) {
+            final long number = ids.next();
+            recent.lazySet(StripedCounter.stripe() * RECENT_PER_STRIPE + ((int) number & (RECENT_PER_STRIPE - 1)), new Recent(request, number));
+        }
+    }
+
+    /**
+     * @return the metadata of the latest of the last few calls made with request, or null if there is none
+     */
+    ResponseMetadata responseMetadata(final AmazonWebServiceRequest request) {
+        long latest = -1;
+        for (int ix = 0; ix < recent.length(); ix++) {
+            final Recent entry = recent.get(ix);
+            if (entry != null && entry.request == request) { latest = Math.max(latest, entry.number); }
+        }
+        if (latest < 0) { return null; }
+        return new ResponseMetadata(Collections.singletonMap(ResponseMetadata.AWS_REQUEST_ID, REQUEST_ID_PREFIX + latest));
+    }
+
+    List<OperationMetrics> operations(final long nowNanos) {
+        final List<OperationMetrics> operations = new ArrayList<OperationMetrics>(latencies.length);
+        for (final Operation op : Operation.values()) {
+            final int ix = op.ordinal();
+            final long[] counts = latencies[ix].counts();
+            long total = 0;
+            for (final long count : counts) { total += count; }
+            // A bucket's upper bound may be above anything recorded in it
+            final long max = latencies[ix].max();
+            operations.add(new OperationMetrics(op.action, total, errors[ix].sum(), rates[ix].perSecond(total, nowNanos),
+                    total == 0 ? 0 : micros(latencies[ix].totalNanos()) / total,
+                    micros(Math.min(max, LatencyHistogram.percentile(counts, total, 0.5))),
+                    micros(Math.min(max, LatencyHistogram.percentile(counts, total, 0.9))),
+                    micros(Math.min(max, LatencyHistogram.percentile(counts, total, 0.99))),
+                    micros(Math.min(max, LatencyHistogram.percentile(counts, total, 0.999))),
+                    micros(max)));
+        }
+        return operations;
+    }
+
+    private static double micros(final long nanos) {
+        return nanos / 1000.0;
+    }
+}
@@ -0,0 +1,78 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a mock has been doing, as of one moment: one {@link OperationMetrics} per SQS action, and
+ * one {@link QueueMetrics} per queue, in order of name. Taken by {@link AmazonSQSMock#getMetrics()};
+ * it never changes once taken, so two snapshots can be compared to see what happened in between.
+ */
+public final class MetricsSnapshot {
+
+    private final long timestamp;
+    private final long storedBytes;
+    private final List<OperationMetrics> operations;
+    private final List<QueueMetrics> queues;
+
+    MetricsSnapshot(final long timestamp, final long storedBytes, final List<OperationMetrics> operations,
+                    final List<QueueMetrics> queues) {
+        this.timestamp = timestamp;
+        this.storedBytes = storedBytes;
+        this.operations = Collections.unmodifiableList(operations);
+        this.queues = Collections.unmodifiableList(queues);
+    }
+
+    /**
+     * @return when the snapshot was taken, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the bytes of messages the mock holds, as counted against its memory limits
+     */
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    public List<OperationMetrics> getOperations() {
+        return operations;
+    }
+
+    public List<QueueMetrics> getQueues() {
+        return queues;
+    }
+
+    /**
+     * @param action the action's name in the SQS API, e.g. "ReceiveMessage"
+     * @return its metrics, or null if the mock does not count it
+     */
+    public OperationMetrics getOperation(final String action) {
+        for (final OperationMetrics operation : operations) {
+            if (operation.getAction().equals(action)) { return operation; }
+        }
+        return null;
+    }
+
+    /**
+     * @return the metrics of the queue with that name, or null if there was no such queue
+     */
+    public QueueMetrics getQueue(final String name) {
+        for (final QueueMetrics queue : queues) {
+            if (queue.getName().equals(name)) { return queue; }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder out = new StringBuilder("storedBytes=").append(storedBytes);
+        for (final OperationMetrics operation : operations) {
+            if (operation.getCount() > 0) { out.append('\n').append(operation); }
+        }
+        for (final QueueMetrics queue : queues) { out.append('\n').append(queue); }
+        return out.toString();
+    }
+}
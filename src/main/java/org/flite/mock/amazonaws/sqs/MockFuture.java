@@ -0,0 +1,107 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A future that whoever produces the result completes directly, rather than a task on an
+ * executor. Most are created already complete; only pending receives complete later.
+ */
+final class MockFuture<T> implements Future<T> {
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private volatile int state = PENDING;
+    private T value;
+    private Throwable error;
+    private Runnable onCancel;
+
+    static <T> MockFuture<T> succeeded(final T value) {
+        final MockFuture<T> future = new MockFuture<T>();
+        future.set(value);
+        return future;
+    }
+
+    static <T> MockFuture<T> failed(final Throwable error) {
+        final MockFuture<T> future = new MockFuture<T>();
+        future.setException(error);
+        return future;
+    }
+
+    /**
+     * @return false if the future was already complete
+     */
+    synchronized boolean set(final T result) {
+        if (state != PENDING) { return false; }
+        value = result;
+        state = SUCCEEDED;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return false if the future was already complete
+     */
+    synchronized boolean setException(final Throwable cause) {
+        if (state != PENDING) { return false; }
+        error = cause;
+        state = FAILED;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Sets what to run if the future is cancelled while pending.
+     */
+    synchronized void onCancel(final Runnable action) {
+        onCancel = action;
+    }
+
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final Runnable action;
+        synchronized (this) {
+            if (state != PENDING) { return false; }
+            state = CANCELLED;
+            action = onCancel;
+            notifyAll();
+        }
+        if (action != null) { action.run(); }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    public boolean isDone() {
+        return state != PENDING;
+    }
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (state == PENDING) { wait(); }
+        return report();
+    }
+
+    public synchronized T get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (state == PENDING) {
+            if ((remaining = deadline - System.nanoTime()) <= 0) { throw new TimeoutException(); }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return report();
+    }
+
+    private T report() throws ExecutionException {
+        if (state == CANCELLED) { throw new CancellationException(); }
+        if (state == FAILED) { throw new ExecutionException(error); }
+        return value;
+    }
+}
@@ -0,0 +1,107 @@
+package org.flite.mock.amazonaws.sqs;
+
+import javax.management.openmbean.CompositeData;
+
+/**
+ * The calls made to one SQS action of a mock since it was created, as of a {@link MetricsSnapshot}.
+ *
+ * Counts include the calls that failed. Latencies are in microseconds, measured inside the mock
+ * (so for a receive, including any wait for messages); the percentiles are accurate to within 12.5%.
+ */
+public final class OperationMetrics {
+
+    private final String action;
+    private final long count;
+    private final long errors;
+    private final double ratePerSecond;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p90Micros;
+    private final double p99Micros;
+    private final double p999Micros;
+    private final double maxMicros;
+
+    OperationMetrics(final String action, final long count, final long errors, final double ratePerSecond,
+                     final double meanMicros, final double p50Micros, final double p90Micros, final double p99Micros,
+                     final double p999Micros, final double maxMicros) {
+        this.action = action;
+        this.count = count;
+        this.errors = errors;
+        this.ratePerSecond = ratePerSecond;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p90Micros = p90Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    private OperationMetrics(final CompositeData data) {
+        this((String) data.get("action"), (Long) data.get("count"), (Long) data.get("errors"),
+                (Double) data.get("ratePerSecond"), (Double) data.get("meanMicros"), (Double) data.get("p50Micros"),
+                (Double) data.get("p90Micros"), (Double) data.get("p99Micros"), (Double) data.get("p999Micros"),
+                (Double) data.get("maxMicros"));
+    }
+
+    /**
+     * Rebuilds metrics read over JMX, which is what lets a JMX.newMXBeanProxy of an {@link AmazonSQSMockMXBean} return them.
+     */
+    public static OperationMetrics from(final CompositeData data) {
+        return new OperationMetrics(data);
+    }
+
+    /**
+     * @return the action's name in the SQS API, e.g. "SendMessage"
+     */
+    public String getAction() {
+        return action;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return how many of the calls threw
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return calls per second, averaged since the previous snapshot at least a second earlier
+     */
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP90Micros() {
+        return p90Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getP999Micros() {
+        return p999Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: count=%d, errors=%d, rate=%.1f/s, mean=%.1fus, p50=%.1fus, p90=%.1fus, p99=%.1fus, p99.9=%.1fus, max=%.1fus",
+                action, count, errors, ratePerSecond, meanMicros, p50Micros, p90Micros, p99Micros, p999Micros, maxMicros);
+    }
+}
@@ -0,0 +1,147 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+/**
+ * An async receive that found its queue empty and is waiting for messages without holding a
+ * thread. It sits in the queue's waiter list; the thread that adds a message receives on its
+ * behalf, and the timer wheel ends the wait with an empty result. It is its own wait timeout.
+ *
+ * The result is delivered on the executor if one was given, or else on the thread that completes
+ * the receive, once that thread holds no journal lock: a handler that is slow, or that calls back
+ * into the mock, then holds up neither the sender that woke it nor a snapshot.
+ */
+class PendingReceive extends TimerWheel.Timeout {
+
+    final MockFuture<ReceiveMessageResult> future = new MockFuture<ReceiveMessageResult>();
+    private final AmazonSQSMock engine;
+    private final QueueState queue;
+    private final ReceiveMessageRequest request;
+    private final int max;
+    private final int visibilityTimeout;
+    private final AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler;
+    private final Executor executor;
+    private final long startNanos;
+    private volatile MessageStore.Waiter waiter;
+    private volatile boolean expired = false;
+
+    PendingReceive(final AmazonSQSMock engine, final QueueState queue, final ReceiveMessageRequest request,
+                   final int visibilityTimeout, final AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler,
+                   final Executor executor, final long startNanos) {
+        this.engine = engine;
+        this.queue = queue;
+        this.request = request;
+        this.max = request.getMaxNumberOfMessages();
+        this.visibilityTimeout = visibilityTimeout;
+        this.handler = handler;
+        this.executor = executor;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Starts waiting, for up to waitTime seconds.
+     */
+    void start(final int waitTime) {
+        future.onCancel(new Runnable() {
+            public void run() {
+                PendingReceive.this.cancel();
+                final MessageStore.Waiter current = waiter;
+                if (current != null && current.cancel()) { queue.visible.removeWaiter(current); }
+            }
+        });
+        engine.timer.schedule(this, waitTime, TimeUnit.SECONDS);
+        if (!register()) { attempt(); }
+    }
+
+    @Override
+    protected void expire() {
+        expired = true;
+        final MessageStore.Waiter current = waiter;
+        // With no waiter yet, register() will see expired and finish the receive itself
+        if (current != null && current.cancel()) {
+            queue.visible.removeWaiter(current);
+            attempt();
+        }
+    }
+
+    /**
+     * Receives what it can, and completes if that is anything or the wait is over; otherwise waits again.
+     */
+    private void attempt() {
+        while (true) {
+            if (future.isDone()) {
+                // Cancelled: pass on the wake-up meant for us
+                queue.visible.signalWaiters(1);
+                return;
+            }
+            final ReceiveMessageResult result = new ReceiveMessageResult();
+            if (engine.receiveAvailable(queue, max, visibilityTimeout, result) > 0 || expired) {
+                cancel();
+                complete(result);
+                return;
+            }
+            // Another receiver got there first
+            if (register()) { return; }
+        }
+    }
+
+    /**
+     * @return true if now waiting; false if the caller should attempt a receive instead
+     */
+    private boolean register() {
+        final MessageStore.Waiter current = new MessageStore.Waiter() {
+            @Override
+            protected void wake() {
+                attempt();
+            }
+        };
+        // Publish before checking expired: expire() sets expired before reading the waiter, so one of us sees the other
+        waiter = current;
+        queue.visible.addWaiter(current);
+        if ((!queue.visible.isEmpty() || expired || future.isDone()) && current.cancel()) {
+            queue.visible.removeWaiter(current);
+            return false;
+        }
+        return true;
+    }
+
+    private void complete(final ReceiveMessageResult result) {
+        queue.stats.received(result.getMessages().size());
+        engine.metrics.completed(Metrics.Operation.RECEIVE_MESSAGE, request, startNanos);
+        final Runnable delivery = new Runnable() {
+            public void run() {
+                deliver(result);
+            }
+        };
+        if (executor == null) {
+            queue.journal.runUnlocked(delivery);
+        } else {
+            executor.execute(delivery);
+        }
+    }
+
+    private void deliver(final ReceiveMessageResult result) {
+        if (future.isDone()) {
+            // Cancelled after the messages were taken: put them straight back
+            for (final Message msg : result.getMessages()) {
+                final InFlightMessage inFlight = queue.inFlight.get(msg.getReceiptHandle());
+                if (inFlight != null) { inFlight.release(); }
+            }
+            return;
+        }
+        // As in the SDK's async client, a failing handler fails the future
+        try {
+            if (handler != null) { handler.onSuccess(request, result); }
+        } catch (RuntimeException ex) {
+            future.setException(ex);
+            return;
+        }
+        future.set(result);
+    }
+}
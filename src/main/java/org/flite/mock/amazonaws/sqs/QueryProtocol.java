@@ -0,0 +1,501 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AddPermissionRequest;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.ListDeadLetterSourceQueuesRequest;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.RemovePermissionRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+
+/**
+ * The SQS query protocol (API version 2012-11-05): turns the parameters of one HTTP request
+ * into a call on the engine and encodes the result, or the error, as the XML SQS would send.
+ *
+ * Queue URLs are rewritten in both directions. The engine hands out URLs under
+ * {@link AmazonSQSMock#QUEUE_URL_PREFIX}; clients see them under this server's own address,
+ * because the AWS SDK sends each queue operation to the host and path of its queue URL.
+ */
+final class QueryProtocol {
+
+    /**
+     * Returned by {@link #handle} in place of a status when the call has to run where blocking is fine.
+     */
+    static final int WOULD_BLOCK = -1;
+
+    /**
+     * Returned by {@link #handle} in place of a status when a receive is waiting for messages
+     * without holding a thread; its response goes to the {@link Responder} once the wait is over.
+     */
+    static final int PENDING = -2;
+
+    static final String QUEUE_PATH = "/mockaws/";
+
+    private static final String XMLNS = "http://queue.amazonaws.com/doc/2012-11-05/";
+    private static final String REQUEST_ID_PREFIX = "mock-aws-request-id-";
+    private static final String MISSING_PARAMETER = "MissingParameter";
+    private static final String INVALID_ACTION = "InvalidAction";
+
+    /**
+     * One decoded request: the Host it was sent to, its path, and its query and form parameters.
+     */
+    static final class Call {
+        final String host;
+        final String path;
+        final Map<String, String> params;
+
+        Call(final String host, final String path, final Map<String, String> params) {
+            this.host = host;
+            this.path = path;
+            this.params = params;
+        }
+    }
+
+    /**
+     * Takes the response to a receive that had to wait, on whichever thread ended the wait.
+     */
+    interface Responder {
+        void respond(int status, ResponseBuffer body);
+    }
+
+    private final AmazonSQS engine;
+    private final AtomicLong requestIds = new AtomicLong();
+    private final Set<Future<ReceiveMessageResult>> waiting =
+            Collections.newSetFromMap(new ConcurrentHashMap<Future<ReceiveMessageResult>, Boolean>());
+
+    QueryProtocol(final AmazonSQS engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Performs the call and writes the XML response body to out.
+     *
+     * @param mayBlock  whether the call may block this thread. If not, a call that might returns
+     *                  {@link #WOULD_BLOCK} without doing anything, and should be handled again where
+     *                  blocking is fine: every call while the mock has fault profiles, which may delay
+     *                  it, and a receive that may wait on an engine other than the mock. A receive that
+     *                  has to wait on the mock returns {@link #PENDING} and answers through responder
+     * @param responder takes the response of a receive that returned {@link #PENDING}
+     * @return the HTTP status of the response, {@link #WOULD_BLOCK} or {@link #PENDING}
+     */
+    int handle(final Call call, final ResponseBuffer out, final boolean mayBlock, final Responder responder) {
+        if (!mayBlock && engine instanceof AmazonSQSMock && ((AmazonSQSMock) engine).hasFaultProfiles()) { return WOULD_BLOCK; }
+        final String requestId = REQUEST_ID_PREFIX + requestIds.incrementAndGet();
+        final String action = call.params.get("Action");
+        try {
+            if (action == null) { throw error(MISSING_PARAMETER, "The request must contain the parameter Action"); }
+            if ("ReceiveMessage".equals(action)) {
+                final int status = receiveMessage(call, out, mayBlock, requestId, responder);
+                if (status != 200) { return status; }
+                metadata(out, requestId).close("ReceiveMessageResponse");
+                return 200;
+            }
+            final int start = out.length();
+            dispatch(action, call, out);
+            // Operations without a result answer with nothing but the request id
+            if (out.length() == start) { begin(out, action); }
+            metadata(out, requestId).close(action + "Response");
+            return 200;
+        } catch (AmazonServiceException ex) {
+            out.reset();
+            final boolean server = ex.getErrorType() == AmazonServiceException.ErrorType.Service;
+            final int status = ex.getStatusCode() >= 400 ? ex.getStatusCode() : (server ? 500 : 400);
+            return errorResponse(out, requestId, server ? "Receiver" : "Sender", ErrorCodes.of(ex), ex.getErrorMessage(), status);
+        } catch (AmazonClientException ex) {
+            out.reset();
+            return errorResponse(out, requestId, "Receiver", ErrorCodes.INTERNAL_ERROR, ex.getMessage(), 500);
+        } catch (RuntimeException ex) {
+            // The engine's "not yet implemented" operations
+            out.reset();
+            return errorResponse(out, requestId, "Sender", ErrorCodes.UNSUPPORTED_OPERATION, ex.getMessage(), 400);
+        }
+    }
+
+    /**
+     * Ends every receive still waiting for messages, which then never answers.
+     */
+    void cancelWaiting() {
+        for (final Future<ReceiveMessageResult> future : waiting) { future.cancel(false); }
+        waiting.clear();
+    }
+
+    private void dispatch(final String action, final Call call, final ResponseBuffer out) {
+        final Map<String, String> params = call.params;
+        if ("SendMessage".equals(action)) {
+            final SendMessageResult result = engine.sendMessage(new SendMessageRequest(queueUrl(call), params.get("MessageBody"))
+                    .withDelaySeconds(integer(params, "DelaySeconds"))
+                    .withMessageAttributes(messageAttributes(params, "MessageAttribute.")));
+            begin(out, action).open("SendMessageResult")
+                    .element("MD5OfMessageBody", result.getMD5OfMessageBody())
+                    .element("MD5OfMessageAttributes", result.getMD5OfMessageAttributes())
+                    .element("MessageId", result.getMessageId())
+                    .close("SendMessageResult");
+        } else if ("DeleteMessage".equals(action)) {
+            engine.deleteMessage(new DeleteMessageRequest(queueUrl(call), params.get("ReceiptHandle")));
+        } else if ("SendMessageBatch".equals(action)) {
+            sendMessageBatch(call, out);
+        } else if ("DeleteMessageBatch".equals(action)) {
+            deleteMessageBatch(call, out);
+        } else if ("ChangeMessageVisibility".equals(action)) {
+            engine.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl(call),
+                    params.get("ReceiptHandle"), integer(params, "VisibilityTimeout")));
+        } else if ("ChangeMessageVisibilityBatch".equals(action)) {
+            changeMessageVisibilityBatch(call, out);
+        } else if ("CreateQueue".equals(action)) {
+            final String url = engine.createQueue(new CreateQueueRequest(params.get("QueueName"))
+                    .withAttributes(attributes(params))).getQueueUrl();
+            begin(out, action).open("CreateQueueResult").element("QueueUrl", externalUrl(call, url)).close("CreateQueueResult");
+        } else if ("GetQueueUrl".equals(action)) {
+            final String url = engine.getQueueUrl(new GetQueueUrlRequest(params.get("QueueName"))
+                    .withQueueOwnerAWSAccountId(params.get("QueueOwnerAWSAccountId"))).getQueueUrl();
+            begin(out, action).open("GetQueueUrlResult").element("QueueUrl", externalUrl(call, url)).close("GetQueueUrlResult");
+        } else if ("ListQueues".equals(action)) {
+            queueUrls(call, out, action, engine.listQueues(new ListQueuesRequest(params.get("QueueNamePrefix"))).getQueueUrls());
+        } else if ("DeleteQueue".equals(action)) {
+            engine.deleteQueue(new DeleteQueueRequest(queueUrl(call)));
+        } else if ("GetQueueAttributes".equals(action)) {
+            final Map<String, String> attributes = engine.getQueueAttributes(
+                    new GetQueueAttributesRequest(queueUrl(call), list(params, "AttributeName."))).getAttributes();
+            begin(out, action).open("GetQueueAttributesResult");
+            for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+                out.open("Attribute").element("Name", attribute.getKey()).element("Value", attribute.getValue()).close("Attribute");
+            }
+            out.close("GetQueueAttributesResult");
+        } else if ("SetQueueAttributes".equals(action)) {
+            engine.setQueueAttributes(new SetQueueAttributesRequest(queueUrl(call), attributes(params)));
+        } else if ("PurgeQueue".equals(action)) {
+            engine.purgeQueue(new PurgeQueueRequest(queueUrl(call)));
+        } else if ("ListDeadLetterSourceQueues".equals(action)) {
+            queueUrls(call, out, action, engine.listDeadLetterSourceQueues(
+                    new ListDeadLetterSourceQueuesRequest().withQueueUrl(queueUrl(call))).getQueueUrls());
+        } else if ("AddPermission".equals(action)) {
+            engine.addPermission(new AddPermissionRequest(queueUrl(call), params.get("Label"),
+                    list(params, "AWSAccountId."), list(params, "ActionName.")));
+        } else if ("RemovePermission".equals(action)) {
+            engine.removePermission(new RemovePermissionRequest(queueUrl(call), params.get("Label")));
+        } else {
+            throw error(INVALID_ACTION, "The action " + action + " is not valid for this endpoint.");
+        }
+    }
+
+    /**
+     * @return 200 once the result is written to out, else {@link #WOULD_BLOCK} or {@link #PENDING}
+     */
+    private int receiveMessage(final Call call, final ResponseBuffer out, final boolean mayBlock,
+                               final String requestId, final Responder responder) {
+        final Map<String, String> params = call.params;
+        final Integer max = integer(params, "MaxNumberOfMessages");
+        final Integer waitTime = integer(params, "WaitTimeSeconds");
+        final ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl(call))
+                .withMaxNumberOfMessages(max == null ? 1 : max)
+                .withVisibilityTimeout(integer(params, "VisibilityTimeout"))
+                .withWaitTimeSeconds(waitTime)
+                .withAttributeNames(list(params, "AttributeName."))
+                .withMessageAttributeNames(list(params, "MessageAttributeName."));
+        if (!mayBlock && engine instanceof AmazonSQSMock) {
+            // Waits, if it has to, in the queue's waiter list rather than on a thread
+            final ReceiveMessageResult result = new ReceiveMessageResult();
+            final WaitingReceive answer = new WaitingReceive(requestId, responder);
+            final PendingReceive pending = ((AmazonSQSMock) engine).receiveOrWait(request, result, answer, null);
+            if (pending == null) {
+                receiveResult(out, result);
+                return 200;
+            }
+            // Kept until answered, for the server to cancel if it stops first
+            answer.future = pending.future;
+            waiting.add(pending.future);
+            if (answer.answered) { waiting.remove(pending.future); }
+            return PENDING;
+        }
+        // Any other engine can only wait on a thread, unless asked not to wait at all
+        if (!mayBlock && (waitTime == null || waitTime > 0)) { return WOULD_BLOCK; }
+        receiveResult(out, engine.receiveMessage(request));
+        return 200;
+    }
+
+    /**
+     * Answers a receive that had to wait, once it has messages or its wait is over.
+     */
+    private final class WaitingReceive implements AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> {
+        private final String requestId;
+        private final Responder responder;
+        volatile Future<ReceiveMessageResult> future;
+        volatile boolean answered = false;
+
+        WaitingReceive(final String requestId, final Responder responder) {
+            this.requestId = requestId;
+            this.responder = responder;
+        }
+
+        public void onError(final Exception ex) {
+            // A waiting receive only ever succeeds
+        }
+
+        public void onSuccess(final ReceiveMessageRequest request, final ReceiveMessageResult result) {
+            // Whichever of this and receiveMessage sees the other's write removes the future
+            answered = true;
+            final Future<ReceiveMessageResult> current = future;
+            if (current != null) { waiting.remove(current); }
+            final ResponseBuffer body = new ResponseBuffer(1024);
+            receiveResult(body, result);
+            metadata(body, requestId).close("ReceiveMessageResponse");
+            responder.respond(200, body);
+        }
+    }
+
+    private void receiveResult(final ResponseBuffer out, final ReceiveMessageResult result) {
+        begin(out, "ReceiveMessage").open("ReceiveMessageResult");
+        for (final Message msg : result.getMessages()) {
+            out.open("Message")
+                    .element("MessageId", msg.getMessageId())
+                    .element("ReceiptHandle", msg.getReceiptHandle())
+                    .element("MD5OfBody", msg.getMD5OfBody())
+                    .element("Body", msg.getBody());
+            for (final Map.Entry<String, String> attribute : msg.getAttributes().entrySet()) {
+                out.open("Attribute").element("Name", attribute.getKey()).element("Value", attribute.getValue()).close("Attribute");
+            }
+            out.element("MD5OfMessageAttributes", msg.getMD5OfMessageAttributes());
+            for (final Map.Entry<String, MessageAttributeValue> attribute : msg.getMessageAttributes().entrySet()) {
+                out.open("MessageAttribute").element("Name", attribute.getKey()).open("Value");
+                messageAttributeValue(out, attribute.getValue());
+                out.close("Value").close("MessageAttribute");
+            }
+            out.close("Message");
+        }
+        out.close("ReceiveMessageResult");
+    }
+
+    private void sendMessageBatch(final Call call, final ResponseBuffer out) {
+        final Map<String, String> params = call.params;
+        final List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+        for (int ix = 1; params.containsKey("SendMessageBatchRequestEntry." + ix + ".Id"); ix++) {
+            final String prefix = "SendMessageBatchRequestEntry." + ix + ".";
+            entries.add(new SendMessageBatchRequestEntry(params.get(prefix + "Id"), params.get(prefix + "MessageBody"))
+                    .withDelaySeconds(integer(params, prefix + "DelaySeconds"))
+                    .withMessageAttributes(messageAttributes(params, prefix + "MessageAttribute.")));
+        }
+        final SendMessageBatchResult result = engine.sendMessageBatch(new SendMessageBatchRequest(queueUrl(call), entries));
+        begin(out, "SendMessageBatch").open("SendMessageBatchResult");
+        for (final SendMessageBatchResultEntry entry : result.getSuccessful()) {
+            out.open("SendMessageBatchResultEntry")
+                    .element("Id", entry.getId())
+                    .element("MessageId", entry.getMessageId())
+                    .element("MD5OfMessageBody", entry.getMD5OfMessageBody())
+                    .element("MD5OfMessageAttributes", entry.getMD5OfMessageAttributes())
+                    .close("SendMessageBatchResultEntry");
+        }
+        failed(out, result.getFailed());
+        out.close("SendMessageBatchResult");
+    }
+
+    private void deleteMessageBatch(final Call call, final ResponseBuffer out) {
+        final Map<String, String> params = call.params;
+        final List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+        for (int ix = 1; params.containsKey("DeleteMessageBatchRequestEntry." + ix + ".Id"); ix++) {
+            final String prefix = "DeleteMessageBatchRequestEntry." + ix + ".";
+            entries.add(new DeleteMessageBatchRequestEntry(params.get(prefix + "Id"), params.get(prefix + "ReceiptHandle")));
+        }
+        final DeleteMessageBatchResult result = engine.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl(call), entries));
+        begin(out, "DeleteMessageBatch").open("DeleteMessageBatchResult");
+        for (final DeleteMessageBatchResultEntry entry : result.getSuccessful()) {
+            out.open("DeleteMessageBatchResultEntry").element("Id", entry.getId()).close("DeleteMessageBatchResultEntry");
+        }
+        failed(out, result.getFailed());
+        out.close("DeleteMessageBatchResult");
+    }
+
+    private void changeMessageVisibilityBatch(final Call call, final ResponseBuffer out) {
+        final Map<String, String> params = call.params;
+        final List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>();
+        for (int ix = 1; params.containsKey("ChangeMessageVisibilityBatchRequestEntry." + ix + ".Id"); ix++) {
+            final String prefix = "ChangeMessageVisibilityBatchRequestEntry." + ix + ".";
+            entries.add(new ChangeMessageVisibilityBatchRequestEntry(params.get(prefix + "Id"), params.get(prefix + "ReceiptHandle"))
+                    .withVisibilityTimeout(integer(params, prefix + "VisibilityTimeout")));
+        }
+        final ChangeMessageVisibilityBatchResult result = engine.changeMessageVisibilityBatch(
+                new ChangeMessageVisibilityBatchRequest(queueUrl(call), entries));
+        begin(out, "ChangeMessageVisibilityBatch").open("ChangeMessageVisibilityBatchResult");
+        for (final ChangeMessageVisibilityBatchResultEntry entry : result.getSuccessful()) {
+            out.open("ChangeMessageVisibilityBatchResultEntry").element("Id", entry.getId())
+                    .close("ChangeMessageVisibilityBatchResultEntry");
+        }
+        failed(out, result.getFailed());
+        out.close("ChangeMessageVisibilityBatchResult");
+    }
+
+    private void queueUrls(final Call call, final ResponseBuffer out, final String action, final List<String> urls) {
+        begin(out, action).open(action + "Result");
+        for (final String url : urls) { out.element("QueueUrl", externalUrl(call, url)); }
+        out.close(action + "Result");
+    }
+
+    private static void failed(final ResponseBuffer out, final List<BatchResultErrorEntry> failed) {
+        for (final BatchResultErrorEntry entry : failed) {
+            out.open("BatchResultErrorEntry")
+                    .element("Id", entry.getId())
+                    .element("SenderFault", String.valueOf(entry.getSenderFault()))
+                    .element("Code", entry.getCode())
+                    .element("Message", entry.getMessage())
+                    .close("BatchResultErrorEntry");
+        }
+    }
+
+    private static void messageAttributeValue(final ResponseBuffer out, final MessageAttributeValue value) {
+        out.element("StringValue", value.getStringValue());
+        if (value.getBinaryValue() != null) { out.element("BinaryValue", base64(value.getBinaryValue())); }
+        for (final String str : value.getStringListValues()) { out.element("StringListValue", str); }
+        for (final ByteBuffer bytes : value.getBinaryListValues()) { out.element("BinaryListValue", base64(bytes)); }
+        out.element("DataType", value.getDataType());
+    }
+
+    private static ResponseBuffer begin(final ResponseBuffer out, final String action) {
+        return out.ascii("<").ascii(action).ascii("Response xmlns=\"").ascii(XMLNS).ascii("\">");
+    }
+
+    private static ResponseBuffer metadata(final ResponseBuffer out, final String requestId) {
+        return out.open("ResponseMetadata").element("RequestId", requestId).close("ResponseMetadata");
+    }
+
+    private static int errorResponse(final ResponseBuffer out, final String requestId, final String type,
+                                     final String code, final String message, final int status) {
+        out.ascii("<ErrorResponse xmlns=\"").ascii(XMLNS).ascii("\">").open("Error")
+                .element("Type", type)
+                .element("Code", code)
+                .element("Message", message == null ? code : message)
+                .ascii("<Detail/>")
+                .close("Error")
+                .element("RequestId", requestId)
+                .close("ErrorResponse");
+        return status;
+    }
+
+    /**
+     * @return the engine's URL for the queue addressed by the QueueUrl parameter, else by the request path
+     */
+    private static String queueUrl(final Call call) {
+        final String url = call.params.get("QueueUrl");
+        final String path = url != null ? url : call.path;
+        final int slash = path.lastIndexOf('/');
+        final String name = slash < 0 ? path : path.substring(slash + 1);
+        if (name.length() == 0) { throw error(MISSING_PARAMETER, "The request must contain the parameter QueueUrl"); }
+        return AmazonSQSMock.QUEUE_URL_PREFIX + name;
+    }
+
+    /**
+     * @return the engine's queue URL as clients of this server should see it
+     */
+    private static String externalUrl(final Call call, final String url) {
+        if (url == null || !url.startsWith(AmazonSQSMock.QUEUE_URL_PREFIX)) { return url; }
+        return "http://" + call.host + QUEUE_PATH + url.substring(AmazonSQSMock.QUEUE_URL_PREFIX.length());
+    }
+
+    private static Integer integer(final Map<String, String> params, final String name) {
+        final String value = params.get(name);
+        if (value == null) { return null; }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException ex) {
+            throw error(ErrorCodes.INVALID_PARAMETER_VALUE, "Value " + value + " for parameter " + name + " is invalid.");
+        }
+    }
+
+    /**
+     * @return the values of prefix1, prefix2, ... up to the first one missing
+     */
+    private static List<String> list(final Map<String, String> params, final String prefix) {
+        List<String> values = Collections.emptyList();
+        for (int ix = 1; params.containsKey(prefix + ix); ix++) {
+            if (values.isEmpty()) { values = new ArrayList<String>(); }
+            values.add(params.get(prefix + ix));
+        }
+        return values;
+    }
+
+    /**
+     * @return the Attribute.N.Name / Attribute.N.Value pairs
+     */
+    private static Map<String, String> attributes(final Map<String, String> params) {
+        final Map<String, String> attributes = new HashMap<String, String>();
+        for (int ix = 1; params.containsKey("Attribute." + ix + ".Name"); ix++) {
+            attributes.put(params.get("Attribute." + ix + ".Name"), params.get("Attribute." + ix + ".Value"));
+        }
+        return attributes;
+    }
+
+    private static Map<String, MessageAttributeValue> messageAttributes(final Map<String, String> params, final String prefix) {
+        if (!params.containsKey(prefix + "1.Name")) { return null; }
+        final Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+        for (int ix = 1; params.containsKey(prefix + ix + ".Name"); ix++) {
+            final String value = prefix + ix + ".Value.";
+            final MessageAttributeValue attribute = new MessageAttributeValue()
+                    .withDataType(params.get(value + "DataType"))
+                    .withStringValue(params.get(value + "StringValue"));
+            if (params.containsKey(value + "BinaryValue")) {
+                attribute.setBinaryValue(ByteBuffer.wrap(Base64.decodeBase64(params.get(value + "BinaryValue"))));
+            }
+            for (final String str : list(params, value + "StringListValue.")) { attribute.withStringListValues(str); }
+            for (final String str : list(params, value + "BinaryListValue.")) {
+                attribute.withBinaryListValues(ByteBuffer.wrap(Base64.decodeBase64(str)));
+            }
+            attributes.put(params.get(prefix + ix + ".Name"), attribute);
+        }
+        return attributes;
+    }
+
+    private static String base64(final ByteBuffer bytes) {
+        final ByteBuffer src = bytes.duplicate();
+        src.rewind();
+        final byte[] raw = new byte[src.remaining()];
+        src.get(raw);
+        return Base64.encodeBase64String(raw);
+    }
+
+    private static AmazonServiceException error(final String code, final String message) {
+        final AmazonServiceException ex = new AmazonServiceException(message);
+        ex.setErrorCode(code);
+        ex.setErrorType(AmazonServiceException.ErrorType.Client);
+        ex.setStatusCode(400);
+        return ex;
+    }
+}
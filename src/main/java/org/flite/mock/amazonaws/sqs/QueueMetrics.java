@@ -0,0 +1,233 @@
+package org.flite.mock.amazonaws.sqs;
+
+import javax.management.openmbean.CompositeData;
+
+/**
+ * One queue of a mock, as of a {@link MetricsSnapshot}: how many messages it holds now, and
+ * what has happened to it since it was created or the mock was last started. Counts taken while
+ * other threads are working are each approximate, as SQS's own are.
+ */
+public final class QueueMetrics {
+
+    private final String name;
+    private final String url;
+    private final int visible;
+    private final int inFlight;
+    private final int delayed;
+    private final long storedBytes;
+    private final long sent;
+    private final long received;
+    private final long deleted;
+    private final long receives;
+    private final long emptyReceives;
+    private final long redeliveries;
+    private final long deduplicated;
+    private final long deadLettered;
+    private final long expired;
+    private final double sentPerSecond;
+    private final double receivedPerSecond;
+    private final long oldestMessageAgeMillis;
+    private final long createdTimestamp;
+    private final long lastModifiedTimestamp;
+
+    QueueMetrics(final QueueState queue, final long nowMillis, final long nowNanos) {
+        final QueueStats stats = queue.stats;
+        this.name = queue.name;
+        this.url = queue.url;
+        this.visible = queue.approximateNumberOfMessages();
+        this.inFlight = queue.approximateNumberOfMessagesNotVisible();
+        this.delayed = queue.approximateNumberOfMessagesDelayed();
+        this.storedBytes = Math.max(0, queue.storedBytes.get());
+        this.sent = stats.sent.sum();
+        this.received = stats.received.sum();
+        this.deleted = stats.deleted.sum();
+        this.receives = stats.receives.sum();
+        this.emptyReceives = stats.emptyReceives.sum();
+        this.redeliveries = stats.redeliveries.sum();
+        this.deduplicated = stats.deduplicated.sum();
+        this.deadLettered = stats.deadLettered.sum();
+        this.expired = stats.expired.sum();
+        this.sentPerSecond = stats.sentRate.perSecond(sent, nowNanos);
+        this.receivedPerSecond = stats.receivedRate.perSecond(received, nowNanos);
+        final StoredMessage oldest = queue.visible.peek();
+        this.oldestMessageAgeMillis = oldest == null ? 0 : Math.max(0, nowMillis - oldest.sentAt());
+        this.createdTimestamp = queue.createdTimestamp;
+        this.lastModifiedTimestamp = queue.lastModifiedTimestamp;
+    }
+
+    private QueueMetrics(final CompositeData data) {
+        this.name = (String) data.get("name");
+        this.url = (String) data.get("url");
+        this.visible = (Integer) data.get("visible");
+        this.inFlight = (Integer) data.get("inFlight");
+        this.delayed = (Integer) data.get("delayed");
+        this.storedBytes = (Long) data.get("storedBytes");
+        this.sent = (Long) data.get("sent");
+        this.received = (Long) data.get("received");
+        this.deleted = (Long) data.get("deleted");
+        this.receives = (Long) data.get("receives");
+        this.emptyReceives = (Long) data.get("emptyReceives");
+        this.redeliveries = (Long) data.get("redeliveries");
+        this.deduplicated = (Long) data.get("deduplicated");
+        this.deadLettered = (Long) data.get("deadLettered");
+        this.expired = (Long) data.get("expired");
+        this.sentPerSecond = (Double) data.get("sentPerSecond");
+        this.receivedPerSecond = (Double) data.get("receivedPerSecond");
+        this.oldestMessageAgeMillis = (Long) data.get("oldestMessageAgeMillis");
+        this.createdTimestamp = (Long) data.get("createdTimestamp");
+        this.lastModifiedTimestamp = (Long) data.get("lastModifiedTimestamp");
+    }
+
+    /**
+     * Rebuilds metrics read over JMX, which is what lets a JMX.newMXBeanProxy of an {@link AmazonSQSMockMXBean} return them.
+     */
+    public static QueueMetrics from(final CompositeData data) {
+        return new QueueMetrics(data);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the messages waiting to be received: ApproximateNumberOfMessages
+     */
+    public int getVisible() {
+        return visible;
+    }
+
+    /**
+     * @return the messages received but neither deleted nor visible again: ApproximateNumberOfMessagesNotVisible
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the messages not yet visible because of their delay: ApproximateNumberOfMessagesDelayed
+     */
+    public int getDelayed() {
+        return delayed;
+    }
+
+    /**
+     * @return the bytes of messages the queue holds, as counted against the mock's memory limits
+     */
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return the messages handed out by receives, counting each delivery of a message
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    public long getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return the receive calls made on the queue
+     */
+    public long getReceives() {
+        return receives;
+    }
+
+    /**
+     * @return the receive calls that came back without messages
+     */
+    public long getEmptyReceives() {
+        return emptyReceives;
+    }
+
+    /**
+     * @return the fraction of receive calls that came back without messages, or 0 if there were none
+     */
+    public double getEmptyReceiveRatio() {
+        return receives == 0 ? 0 : (double) emptyReceives / receives;
+    }
+
+    /**
+     * @return the messages that became visible again after being received, because their visibility
+     *         timeout ran out or was set to 0
+     */
+    public long getRedeliveries() {
+        return redeliveries;
+    }
+
+    /**
+     * @return the sends to a FIFO queue that were accepted but dropped, as duplicates of one made in the last five minutes
+     */
+    public long getDeduplicated() {
+        return deduplicated;
+    }
+
+    /**
+     * @return the messages moved to the queue's dead-letter queue after too many receives
+     */
+    public long getDeadLettered() {
+        return deadLettered;
+    }
+
+    /**
+     * @return the messages dropped for being older than the queue's MessageRetentionPeriod
+     */
+    public long getExpired() {
+        return expired;
+    }
+
+    /**
+     * @return messages sent per second, averaged since the previous snapshot at least a second earlier
+     */
+    public double getSentPerSecond() {
+        return sentPerSecond;
+    }
+
+    /**
+     * @return messages received per second, averaged in the same way
+     */
+    public double getReceivedPerSecond() {
+        return receivedPerSecond;
+    }
+
+    /**
+     * @return how long ago the message at the head of the queue was sent, or 0 if there is none:
+     *         how far consumers are behind
+     */
+    public long getOldestMessageAgeMillis() {
+        return oldestMessageAgeMillis;
+    }
+
+    /**
+     * @return when the queue was created, in seconds since the epoch: CreatedTimestamp
+     */
+    public long getCreatedTimestamp() {
+        return createdTimestamp;
+    }
+
+    /**
+     * @return when the queue's attributes were last changed, in seconds since the epoch: LastModifiedTimestamp
+     */
+    public long getLastModifiedTimestamp() {
+        return lastModifiedTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: visible=%d, inFlight=%d, delayed=%d, storedBytes=%d, sent=%d (%.1f/s), received=%d (%.1f/s),"
+                        + " deleted=%d, receives=%d, emptyReceives=%d, redeliveries=%d, deduplicated=%d, deadLettered=%d,"
+                        + " expired=%d, oldestMessageAge=%dms",
+                name, visible, inFlight, delayed, storedBytes, sent, sentPerSecond, received, receivedPerSecond,
+                deleted, receives, emptyReceives, redeliveries, deduplicated, deadLettered, expired, oldestMessageAgeMillis);
+    }
+}
@@ -0,0 +1,94 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything the mock knows about one queue, resolved with a single lookup by URL.
+ *
+ * Queues are published to the registry fully initialised and removed from it atomically;
+ * once deleted, a queue swallows anything that still tries to return to it (e.g. an
+ * in-flight message whose visibility timeout fires after the delete).
+ */
+class QueueState {
+
+    final long id;
+    final String url;
+    final String name;
+    final boolean fifo;
+    final MessageStore visible;
+    // Swapped for an empty table when the queue is purged
+    volatile InFlightTable inFlight;
+    final DelayedMessages delayed;
+    final MessageRetention retention;
+    final Journal journal;
+    // Kept by MemoryBudget
+    final AtomicLong storedBytes = new AtomicLong();
+    final QueueStats stats = new QueueStats();
+    // FIFO queues only
+    final DeduplicationIndex deduplication;
+
+    volatile int visibilityTimeout = AmazonSQSMock.DEFAULT_VISIBILITY_TIMEOUT;
+    volatile int receiveWaitTime = 0;
+    volatile int delaySeconds = 0;
+    volatile int maximumMessageSize = AmazonSQSMock.MAX_MESSAGE_SIZE;
+    volatile int messageRetentionPeriod = AmazonSQSMock.DEFAULT_RETENTION_PERIOD;
+    volatile String policy = null;
+    volatile RedrivePolicy redrivePolicy = null;
+    volatile boolean contentBasedDeduplication = false;
+    // In seconds since the epoch, as SQS reports them
+    volatile long createdTimestamp = System.currentTimeMillis() / 1000;
+    volatile long lastModifiedTimestamp = createdTimestamp;
+    private volatile boolean deleted = false;
+
+    QueueState(final long id, final String url, final String name, final boolean fifo, final TimerWheel timer,
+               final MemoryBudget memory, final Journal journal) {
+        this.id = id;
+        this.url = url;
+        this.name = name;
+        this.fifo = fifo;
+        this.journal = journal;
+        this.retention = new MessageRetention(this, timer, memory);
+        this.visible = fifo ? new FifoMessageStore(retention) : new MessageStore(retention);
+        this.deduplication = fifo ? new DeduplicationIndex() : null;
+        this.inFlight = new InFlightTable(id);
+        this.delayed = new DelayedMessages(this, timer);
+    }
+
+    int approximateNumberOfMessages() {
+        return visible.size();
+    }
+
+    int approximateNumberOfMessagesNotVisible() {
+        return inFlight.size();
+    }
+
+    int approximateNumberOfMessagesDelayed() {
+        return delayed.size();
+    }
+
+    boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Called once the queue has been removed from the registry.
+     */
+    void markDeleted() {
+        deleted = true;
+        retention.cancel();
+        for (final InFlightMessage msg : inFlight.clear()) { msg.cancel(); }
+        delayed.clear();
+    }
+
+    /**
+     * Removes every message in the same time however many there are, by swapping in an empty delayed
+     * heap, in-flight table and visible store, in that order so nothing can slip back into the store
+     * once it has been emptied. The timeouts of messages that were in flight are left to fire, and
+     * find nothing to return.
+     */
+    void purge() {
+        delayed.purge();
+        inFlight = new InFlightTable(id);
+        visible.purge();
+    }
+}
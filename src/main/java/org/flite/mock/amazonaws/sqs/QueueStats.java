@@ -0,0 +1,37 @@
+package org.flite.mock.amazonaws.sqs;
+
+/**
+ * What has happened to one queue since it was created (or since the mock was restarted). The
+ * counters start out as a single field each, so the many quiet queues of a large test cost little,
+ * and only spread out over stripes once they are contended.
+ */
+final class QueueStats {
+
+    final StripedCounter sent = new StripedCounter();
+    final StripedCounter received = new StripedCounter();
+    final StripedCounter deleted = new StripedCounter();
+    // Receive calls, and those of them that came back empty
+    final StripedCounter receives = new StripedCounter();
+    final StripedCounter emptyReceives = new StripedCounter();
+    // Messages returned to the queue by their visibility timeout running out or being set to 0
+    final StripedCounter redeliveries = new StripedCounter();
+    // Sends to a FIFO queue dropped as duplicates of one made in the last five minutes
+    final StripedCounter deduplicated = new StripedCounter();
+    // Messages moved to the dead-letter queue, and dropped for outliving the retention period
+    final StripedCounter deadLettered = new StripedCounter();
+    final StripedCounter expired = new StripedCounter();
+    final RateMeter sentRate = new RateMeter();
+    final RateMeter receivedRate = new RateMeter();
+
+    /**
+     * Counts a receive call, which returned that many messages.
+     */
+    void received(final int messages) {
+        receives.increment();
+        if (messages == 0) {
+            emptyReceives.increment();
+        } else {
+            received.add(messages);
+        }
+    }
+}
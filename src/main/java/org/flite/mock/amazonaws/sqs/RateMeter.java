@@ -0,0 +1,31 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rate at which a count goes up, worked out only when someone asks, so counting costs nothing
+ * extra. Each reading averages over the time since the last one that was at least a second
+ * earlier, so polling it every few seconds gives a rate over those few seconds.
+ */
+final class RateMeter {
+
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private long lastCount = 0;
+    private long lastNanos = System.nanoTime();
+    private double rate = 0;
+
+    /**
+     * @param count the count as of nowNanos
+     * @return its increase per second
+     */
+    synchronized double perSecond(final long count, final long nowNanos) {
+        final long elapsed = nowNanos - lastNanos;
+        if (elapsed >= MIN_INTERVAL_NANOS) {
+            rate = (count - lastCount) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+            lastCount = count;
+            lastNanos = nowNanos;
+        }
+        return rate;
+    }
+}
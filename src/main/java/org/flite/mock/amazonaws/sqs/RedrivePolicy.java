@@ -0,0 +1,85 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * A queue's RedrivePolicy: once a message has been received maxReceiveCount times, the next receive
+ * moves it to the dead-letter queue instead of delivering it.
+ *
+ * The target is given by ARN. The mock's own ARNs are {@link AmazonSQSMock#ARN_PREFIX} followed by
+ * the queue URL; any other ARN is taken to name the queue by its last component, as real SQS ARNs do.
+ */
+final class RedrivePolicy {
+
+    static final int MAX_RECEIVE_COUNT = 1000;
+    private static final String TARGET = "deadLetterTargetArn";
+    private static final String MAX_RECEIVES = "maxReceiveCount";
+
+    final String deadLetterTargetArn;
+    final String deadLetterTargetUrl;
+    final int maxReceiveCount;
+
+    private RedrivePolicy(final String deadLetterTargetArn, final int maxReceiveCount) {
+        this.deadLetterTargetArn = deadLetterTargetArn;
+        this.deadLetterTargetUrl = urlOf(deadLetterTargetArn);
+        this.maxReceiveCount = maxReceiveCount;
+    }
+
+    /**
+     * Parses the policy as SetQueueAttributes takes it, checking everything but the target queue.
+     *
+     * @throws AmazonServiceException if it is not a JSON object with a target and a count of 1 to 1000
+     */
+    static RedrivePolicy parse(final String json) {
+        final JsonNode node;
+        try {
+            node = Jackson.jsonNodeOf(json);
+        } catch (AmazonClientException ex) {
+            throw invalid(json, "Invalid JSON");
+        }
+        if (node == null || !node.isObject()) { throw invalid(json, "Must be a JSON object"); }
+        final JsonNode target = node.get(TARGET);
+        if (target == null || !target.isTextual() || target.asText().isEmpty()) { throw invalid(json, TARGET + " is required"); }
+        final JsonNode count = node.get(MAX_RECEIVES);
+        int maxReceiveCount = -1;
+        if (count != null && count.canConvertToInt() && count.isIntegralNumber()) {
+            maxReceiveCount = count.intValue();
+        } else if (count != null && count.isTextual()) {
+            try {
+                maxReceiveCount = Integer.parseInt(count.asText().trim());
+            } catch (NumberFormatException ex) {
+                // Reported below
+            }
+        }
+        if (maxReceiveCount < 1 || maxReceiveCount > MAX_RECEIVE_COUNT) {
+            throw invalid(json, MAX_RECEIVES + " must be a value between [1," + MAX_RECEIVE_COUNT + "]");
+        }
+        return new RedrivePolicy(target.asText(), maxReceiveCount);
+    }
+
+    /**
+     * @return the policy as GetQueueAttributes returns it
+     */
+    String toJson() {
+        final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put(TARGET, deadLetterTargetArn);
+        fields.put(MAX_RECEIVES, maxReceiveCount);
+        return Jackson.toJsonString(fields);
+    }
+
+    private static String urlOf(final String arn) {
+        if (arn.startsWith(AmazonSQSMock.ARN_PREFIX + AmazonSQSMock.QUEUE_URL_PREFIX)) { return arn.substring(AmazonSQSMock.ARN_PREFIX.length()); }
+        return AmazonSQSMock.QUEUE_URL_PREFIX + arn.substring(arn.lastIndexOf(':') + 1);
+    }
+
+    static AmazonServiceException invalid(final String value, final String reason) {
+        return AmazonSQSMock.invalidParameter("Value " + value + " for parameter " + AmazonSQSMock.REDRIVE_POLICY
+                + " is invalid. Reason: " + reason + ".");
+    }
+}
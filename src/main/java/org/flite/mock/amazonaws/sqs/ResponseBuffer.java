@@ -0,0 +1,130 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that XML responses are encoded into directly: text is UTF-8 encoded
+ * and escaped as it is appended, with no intermediate String or document model.
+ */
+final class ResponseBuffer {
+
+    private byte[] bytes;
+    private int length = 0;
+
+    ResponseBuffer(final int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    int length() {
+        return length;
+    }
+
+    void reset() {
+        length = 0;
+    }
+
+    ResponseBuffer ascii(final String str) {
+        final int len = str.length();
+        ensure(len);
+        for (int ix = 0; ix < len; ix++) { bytes[length++] = (byte) str.charAt(ix); }
+        return this;
+    }
+
+    ResponseBuffer ascii(final long value) {
+        return ascii(Long.toString(value));
+    }
+
+    ResponseBuffer bytes(final byte[] src, final int offset, final int len) {
+        ensure(len);
+        System.arraycopy(src, offset, bytes, length, len);
+        length += len;
+        return this;
+    }
+
+    ResponseBuffer bytes(final ResponseBuffer src) {
+        return bytes(src.bytes, 0, src.length);
+    }
+
+    /**
+     * Appends &lt;name&gt;escaped text&lt;/name&gt;; nothing at all if text is null.
+     */
+    ResponseBuffer element(final String name, final String text) {
+        if (text == null) { return this; }
+        open(name);
+        escaped(text);
+        return close(name);
+    }
+
+    ResponseBuffer open(final String name) {
+        ensure(name.length() + 2);
+        bytes[length++] = '<';
+        ascii(name);
+        bytes[length++] = '>';
+        return this;
+    }
+
+    ResponseBuffer close(final String name) {
+        ensure(name.length() + 3);
+        bytes[length++] = '<';
+        bytes[length++] = '/';
+        ascii(name);
+        bytes[length++] = '>';
+        return this;
+    }
+
+    /**
+     * UTF-8 encodes the text, escaping XML markup and the control characters XML 1.0 allows.
+     */
+    ResponseBuffer escaped(final String text) {
+        final int len = text.length();
+        for (int ix = 0; ix < len; ix++) {
+            final char ch = text.charAt(ix);
+            switch (ch) {
+                case '<': ascii("&lt;"); break;
+                case '>': ascii("&gt;"); break;
+                case '&': ascii("&amp;"); break;
+                case '"': ascii("&quot;"); break;
+                case '\r': ascii("&#xD;"); break;
+                default:
+                    if (ch < 0x80) {
+                        ensure(1);
+                        bytes[length++] = (byte) ch;
+                    } else if (ch < 0x800) {
+                        ensure(2);
+                        bytes[length++] = (byte) (0xc0 | (ch >> 6));
+                        bytes[length++] = (byte) (0x80 | (ch & 0x3f));
+                    } else if (Character.isHighSurrogate(ch) && ix + 1 < len && Character.isLowSurrogate(text.charAt(ix + 1))) {
+                        final int cp = Character.toCodePoint(ch, text.charAt(++ix));
+                        ensure(4);
+                        bytes[length++] = (byte) (0xf0 | (cp >> 18));
+                        bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                        bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                        bytes[length++] = (byte) (0x80 | (cp & 0x3f));
+                    } else if (Character.isSurrogate(ch)) {
+                        ensure(1);
+                        bytes[length++] = '?';
+                    } else {
+                        ensure(3);
+                        bytes[length++] = (byte) (0xe0 | (ch >> 12));
+                        bytes[length++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                        bytes[length++] = (byte) (0x80 | (ch & 0x3f));
+                    }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return a buffer over the contents, without copying them; this buffer must not be written to afterwards
+     */
+    ByteBuffer wrap() {
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    private void ensure(final int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + extra, bytes.length * 2));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+/**
+ * A message as the mock holds it: one compact encoding of everything about it, with the id as a
+ * number and the digests as raw bytes. An SDK Message is only built from it when it is received,
+ * and each receive gets a Message of its own.
+ *
+ * The encoding is [id number][time sent][MD5 of body][attribute count][MD5 of attributes, if any][body]
+ * [attributes], strings being length-prefixed UTF-8; a durable mock writes messages to disk in
+ * the same encoding, byte for byte. The encoding is never changed once stored; only the receive
+ * count kept beside it is.
+ */
+abstract class StoredMessage {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SENT_AT = 8;
+    private static final int MD5_OF_BODY_AT = SENT_AT + 8;
+    private static final int ATTRIBUTE_COUNT_AT = MD5_OF_BODY_AT + MD5Checksums.DIGEST_SIZE;
+    private static final int MD5_OF_ATTRIBUTES_AT = ATTRIBUTE_COUNT_AT + 4;
+
+    private static final byte NO_VALUE = 0;
+    private static final byte STRING_VALUE = 1;
+    private static final byte BINARY_VALUE = 2;
+    private static final byte STRING_LIST_VALUE = 3;
+    private static final byte BINARY_LIST_VALUE = 4;
+
+    private static final ThreadLocal<JournalFormat.Encoder> ENCODERS = new ThreadLocal<JournalFormat.Encoder>() {
+        @Override
+        protected JournalFormat.Encoder initialValue() {
+            return new JournalFormat.Encoder();
+        }
+    };
+
+    /**
+     * How many times the message has been received from its current queue. Only changed by whoever
+     * has just taken the message from the visible store, which is the only one holding it then.
+     */
+    int receiveCount = 0;
+
+    /**
+     * @return the number the message id ends in
+     */
+    abstract long idNumber();
+
+    /**
+     * @return the encoded message, as a buffer of its own
+     */
+    abstract ByteBuffer encoded();
+
+    /**
+     * @return the size of the encoded message, which is what counts towards memory limits
+     */
+    abstract int size();
+
+    /**
+     * Appends the encoded message to enc.
+     */
+    abstract void writeTo(JournalFormat.Encoder enc);
+
+    String messageId() {
+        return AmazonSQSMock.MESSAGE_ID_PREFIX + idNumber();
+    }
+
+    /**
+     * @return when the message was sent, in milliseconds since the epoch
+     */
+    long sentAt() {
+        final ByteBuffer buf = encoded();
+        return buf.getLong(buf.position() + SENT_AT);
+    }
+
+    String md5OfBody() {
+        final ByteBuffer buf = encoded();
+        return MD5Checksums.toHex(buf, buf.position() + MD5_OF_BODY_AT);
+    }
+
+    /**
+     * @return the MD5 of the message attributes, or null if there are none
+     */
+    String md5OfMessageAttributes() {
+        final ByteBuffer buf = encoded();
+        final int base = buf.position();
+        return buf.getInt(base + ATTRIBUTE_COUNT_AT) == 0 ? null : MD5Checksums.toHex(buf, base + MD5_OF_ATTRIBUTES_AT);
+    }
+
+    /**
+     * @return the string value of the named message attribute, or null if there is none or it is not a string
+     */
+    String stringAttribute(final String name) {
+        final ByteBuffer buf = encoded();
+        final int base = buf.position();
+        final int count = buf.getInt(base + ATTRIBUTE_COUNT_AT);
+        if (count == 0) { return null; }
+        buf.position(base + MD5_OF_ATTRIBUTES_AT + MD5Checksums.DIGEST_SIZE);
+        skipString(buf);
+        for (int ix = 0; ix < count; ix++) {
+            final boolean found = name.equals(getString(buf));
+            skipString(buf);
+            final byte kind = buf.get();
+            if (found) { return kind == STRING_VALUE ? getString(buf) : null; }
+            if (kind == STRING_VALUE || kind == BINARY_VALUE) {
+                skipString(buf);
+            } else if (kind == STRING_LIST_VALUE || kind == BINARY_LIST_VALUE) {
+                for (int left = buf.getInt(); left > 0; left--) { skipString(buf); }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a new SDK message with everything but a receipt handle
+     */
+    Message toMessage() {
+        final ByteBuffer buf = encoded();
+        final int base = buf.position();
+        final Message msg = new Message()
+                .withMessageId(AmazonSQSMock.MESSAGE_ID_PREFIX + buf.getLong())
+                .withMD5OfBody(MD5Checksums.toHex(buf, base + MD5_OF_BODY_AT));
+        final int count = buf.getInt(base + ATTRIBUTE_COUNT_AT);
+        buf.position(base + MD5_OF_ATTRIBUTES_AT + (count == 0 ? 0 : MD5Checksums.DIGEST_SIZE));
+        msg.setBody(getString(buf));
+        if (count == 0) { return msg; }
+        msg.setMD5OfMessageAttributes(MD5Checksums.toHex(buf, base + MD5_OF_ATTRIBUTES_AT));
+        final Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>(count * 2);
+        for (int ix = 0; ix < count; ix++) {
+            final String name = getString(buf);
+            final MessageAttributeValue value = new MessageAttributeValue().withDataType(getString(buf));
+            switch (buf.get()) {
+                case STRING_VALUE:
+                    value.setStringValue(getString(buf));
+                    break;
+                case BINARY_VALUE:
+                    value.setBinaryValue(getBuffer(buf));
+                    break;
+                case STRING_LIST_VALUE: {
+                    final List<String> strings = new ArrayList<String>();
+                    for (int left = buf.getInt(); left > 0; left--) { strings.add(getString(buf)); }
+                    value.setStringListValues(strings);
+                    break;
+                }
+                case BINARY_LIST_VALUE: {
+                    final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+                    for (int left = buf.getInt(); left > 0; left--) { buffers.add(getBuffer(buf)); }
+                    value.setBinaryListValues(buffers);
+                    break;
+                }
+                default:
+                    // Only a data type
+            }
+            attributes.put(name, value);
+        }
+        msg.setMessageAttributes(attributes);
+        return msg;
+    }
+
+    /**
+     * Encodes what a message is sent with, computing its digests along the way.
+     *
+     * @throws AmazonServiceException if the body and attributes come to over maximumSize bytes,
+     *         counted as SQS counts them
+     */
+    static HeapMessage encode(final long idNumber, final long sentAt, final String body,
+                              final Map<String, MessageAttributeValue> attributes, final int maximumSize) {
+        final JournalFormat.Encoder enc = ENCODERS.get();
+        final byte[] utf8 = body.getBytes(UTF_8);
+        final byte[] md5OfAttributes = MD5Checksums.md5OfMessageAttributes(attributes);
+        enc.reset().putLong(idNumber).putLong(sentAt).putRaw(MD5Checksums.md5(utf8));
+        if (md5OfAttributes == null) {
+            enc.putInt(0);
+        } else {
+            enc.putInt(attributes.size()).putRaw(md5OfAttributes);
+        }
+        enc.putBytes(utf8);
+        int size = utf8.length;
+        if (md5OfAttributes != null) {
+            for (final Map.Entry<String, MessageAttributeValue> attribute : attributes.entrySet()) {
+                size += putAttribute(enc, attribute.getKey(), attribute.getValue());
+            }
+        }
+        if (size > maximumSize) {
+            throw new AmazonServiceException("One or more parameters are invalid. Reason: Message must be shorter than "
+                    + maximumSize + " bytes.");
+        }
+        return new HeapMessage(Arrays.copyOf(enc.bytes, enc.length));
+    }
+
+    /**
+     * Encodes one attribute, taking its value from the same field the MD5 of the attributes does.
+     *
+     * @return the bytes it counts for against the maximum message size
+     */
+    private static int putAttribute(final JournalFormat.Encoder enc, final String name, final MessageAttributeValue value) {
+        final int start = enc.length;
+        int overhead = 4 + 4 + 1;
+        enc.putString(name).putString(value.getDataType());
+        if (value.getStringValue() != null) {
+            enc.putByte(STRING_VALUE).putString(value.getStringValue());
+            overhead += 4;
+        } else if (value.getBinaryValue() != null) {
+            enc.putByte(BINARY_VALUE).putBuffer(value.getBinaryValue());
+            overhead += 4;
+        } else if (!isEmpty(value.getStringListValues())) {
+            enc.putByte(STRING_LIST_VALUE).putInt(value.getStringListValues().size());
+            for (final String str : value.getStringListValues()) { enc.putString(str); }
+            overhead += 4 + 4 * value.getStringListValues().size();
+        } else if (!isEmpty(value.getBinaryListValues())) {
+            enc.putByte(BINARY_LIST_VALUE).putInt(value.getBinaryListValues().size());
+            for (final ByteBuffer buf : value.getBinaryListValues()) { enc.putBuffer(buf); }
+            overhead += 4 + 4 * value.getBinaryListValues().size();
+        } else {
+            enc.putByte(NO_VALUE);
+        }
+        return enc.length - start - overhead;
+    }
+
+    private static boolean isEmpty(final List<?> list) {
+        return list == null || list.isEmpty();
+    }
+
+    private static String getString(final ByteBuffer buf) {
+        final int len = buf.getInt();
+        if (len < 0) { return null; }
+        final String value;
+        if (buf.hasArray()) {
+            // Straight from the heap array, without copying the bytes out first
+            value = new String(buf.array(), buf.arrayOffset() + buf.position(), len, UTF_8);
+            buf.position(buf.position() + len);
+        } else {
+            final byte[] bytes = new byte[len];
+            buf.get(bytes);
+            value = new String(bytes, UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * Skips a length-prefixed string or buffer.
+     */
+    private static void skipString(final ByteBuffer buf) {
+        final int len = buf.getInt();
+        if (len > 0) { buf.position(buf.position() + len); }
+    }
+
+    private static ByteBuffer getBuffer(final ByteBuffer buf) {
+        final int len = buf.getInt();
+        if (len < 0) { return null; }
+        final byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
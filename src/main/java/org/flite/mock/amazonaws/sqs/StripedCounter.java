@@ -0,0 +1,66 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A counter that many threads can bump at once without fighting over one cache line.
+ *
+ * It starts out as a single field, updated by CAS; the first time a CAS loses a race, it
+ * spreads out over padded stripes, one per thread hash, and stays that way. So a counter that
+ * is never contended (a quiet queue's) costs one long, and a hot one scales with the cores.
+ * Reading sums the stripes, so it is only a snapshot while updates are in progress.
+ */
+final class StripedCounter {
+
+    // Longs per stripe, so neighbouring stripes never share a 64-byte cache line
+    private static final int PAD = 8;
+    static final int STRIPES = stripesFor(Runtime.getRuntime().availableProcessors());
+
+    private static final AtomicLongFieldUpdater<StripedCounter> BASE =
+            AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "base");
+
+    private volatile long base = 0;
+    private volatile AtomicLongArray stripes;
+
+    void increment() {
+        add(1);
+    }
+
+    void add(final long delta) {
+        AtomicLongArray current = stripes;
+        if (current == null) {
+            final long value = base;
+            if (BASE.compareAndSet(this, value, value + delta)) { return; }
+            current = inflate();
+        }
+        current.getAndAdd(stripe() * PAD, delta);
+    }
+
+    long sum() {
+        long sum = base;
+        final AtomicLongArray current = stripes;
+        if (current != null) {
+            for (int ix = 0; ix < STRIPES; ix++) { sum += current.get(ix * PAD); }
+        }
+        return sum;
+    }
+
+    private synchronized AtomicLongArray inflate() {
+        if (stripes == null) { stripes = new AtomicLongArray(STRIPES * PAD); }
+        return stripes;
+    }
+
+    /**
+     * @return the stripe the calling thread uses, out of STRIPES
+     */
+    static int stripe() {
+        final long mixed = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32) & (STRIPES - 1);
+    }
+
+    private static int stripesFor(final int processors) {
+        // A power of two, at least twice the cores, so threads rarely share a stripe
+        return Math.min(64, Integer.highestOneBit(Math.max(1, processors * 2 - 1)) * 2);
+    }
+}
@@ -0,0 +1,218 @@
+package org.flite.mock.amazonaws.sqs;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel driving all of the time-based behaviour of one mock instance.
+ *
+ * Scheduling and cancelling are O(1) and lock-free for the caller; a single daemon thread
+ * advances the wheel one tick at a time and expires whatever lands in the current bucket.
+ * Timeouts further away than one revolution simply carry a count of remaining rounds.
+ * The thread parks indefinitely while nothing is scheduled, so an idle mock costs no CPU.
+ */
+class TimerWheel {
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 1024;
+
+    /**
+     * Something that happens at a point in time. Subclasses carry their own payload, so
+     * scheduling allocates nothing beyond the timeout itself.
+     */
+    abstract static class Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private volatile int state = ST_INIT;
+        private TimerWheel wheel;
+        private long deadline;
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout next;
+        private Bucket bucket;
+
+        /**
+         * Called on the timer thread when the deadline passes. Must not block.
+         */
+        protected abstract void expire();
+
+        /**
+         * @return true if this call prevented the timeout from expiring
+         */
+        boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) { return false; }
+            if (wheel != null) { wheel.cancelled.add(this); }
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(final Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(final Timeout timeout) {
+            final Timeout next = timeout.next;
+            if (timeout.prev != null) { timeout.prev.next = next; }
+            if (timeout.next != null) { timeout.next.prev = timeout.prev; }
+            if (timeout == head) { head = next; }
+            if (timeout == tail) { tail = timeout.prev; }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        int expire(final long deadline) {
+            int removed = 0;
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    final Timeout next = remove(timeout);
+                    removed++;
+                    if (Timeout.STATE.compareAndSet(timeout, Timeout.ST_INIT, Timeout.ST_EXPIRED)) {
+                        try {
+                            timeout.expire();
+                        } catch (Throwable t) {
+                            // A misbehaving callback must not take the timer thread down
+                        }
+                    }
+                    timeout = next;
+                } else if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                    removed++;
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+            return removed;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean idle = false;
+    private volatile boolean running = true;
+    private boolean started = false;
+
+    TimerWheel(final String name) {
+        this(name, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    TimerWheel(final String name, final long tickMillis, final int wheelSize) {
+        if (tickMillis < 1) { throw new IllegalArgumentException("Tick must be at least 1ms: " + tickMillis); }
+        if (wheelSize < 1 || Integer.bitCount(wheelSize) != 1) { throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize); }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[wheelSize];
+        for (int ix = 0; ix < wheelSize; ix++) { wheel[ix] = new Bucket(); }
+        this.mask = wheelSize - 1;
+        this.worker = new Thread(new Runnable() {
+            public void run() { work(); }
+        }, name);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Schedules the timeout to expire once the delay has passed. A timeout may only be scheduled once.
+     */
+    void schedule(final Timeout timeout, final long delay, final TimeUnit unit) {
+        if (timeout.wheel != null) { throw new IllegalStateException("Timeout already scheduled"); }
+        if (!running) { throw new IllegalStateException("Timer has been shut down"); }
+        ensureStarted();
+        timeout.wheel = this;
+        timeout.deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+        scheduled.incrementAndGet();
+        pending.add(timeout);
+        if (idle) { LockSupport.unpark(worker); }
+    }
+
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private synchronized void ensureStarted() {
+        if (!started) {
+            started = true;
+            worker.start();
+        }
+    }
+
+    private void work() {
+        long tick = 0;
+        while (running) {
+            if (scheduled.get() == 0) {
+                idle = true;
+                if (scheduled.get() == 0 && running) { LockSupport.park(this); }
+                idle = false;
+                // Nothing was in the wheel while parked, so it is safe to jump straight to "now"
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+                continue;
+            }
+            final long deadline = tickNanos * (tick + 1);
+            final long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            removeCancelled();
+            transferPending(tick);
+            scheduled.addAndGet(-wheel[(int) (tick & mask)].expire(deadline));
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            // Still null means it was cancelled before it ever left the pending queue
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                scheduled.decrementAndGet();
+            }
+        }
+    }
+
+    private void transferPending(final long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.isCancelled()) {
+                scheduled.decrementAndGet();
+                continue;
+            }
+            final long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            final long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+}
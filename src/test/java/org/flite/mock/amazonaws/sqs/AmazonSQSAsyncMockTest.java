@@ -0,0 +1,219 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+
+public class AmazonSQSAsyncMockTest {
+
+    /**
+     * Holds on to what it is given until told to run it.
+     */
+    private static final class HeldExecutor implements Executor {
+        private final List<Runnable> held = new ArrayList<Runnable>();
+
+        public synchronized void execute(final Runnable task) {
+            held.add(task);
+        }
+
+        synchronized int size() {
+            return held.size();
+        }
+
+        void runAll() {
+            final List<Runnable> tasks;
+            synchronized (this) {
+                tasks = new ArrayList<Runnable>(held);
+                held.clear();
+            }
+            for (final Runnable task : tasks) { task.run(); }
+        }
+    }
+
+    /**
+     * Remembers the thread it was called on, and what with.
+     */
+    private static class RecordingHandler implements AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> {
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        final AtomicReference<ReceiveMessageResult> result = new AtomicReference<ReceiveMessageResult>();
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+        public void onSuccess(final ReceiveMessageRequest request, final ReceiveMessageResult result) {
+            thread.set(Thread.currentThread());
+            this.result.set(result);
+        }
+
+        public void onError(final Exception exception) {
+            thread.set(Thread.currentThread());
+            error.set(exception);
+        }
+    }
+
+    private AmazonSQSAsyncMock sqs;
+    private ExecutorService pool;
+
+    @After
+    public void tearDown() {
+        if (sqs != null) { sqs.shutdown(); }
+        if (pool != null) { pool.shutdownNow(); }
+    }
+
+    @Test
+    public void receiveWithMessagesWaitingCompletesAtOnce() throws Exception {
+        final String url = open(null);
+        sqs.sendMessage(url, "ready");
+        final RecordingHandler handler = new RecordingHandler();
+        final Future<ReceiveMessageResult> future = sqs.receiveMessageAsync(longPoll(url, 10), handler);
+        assertTrue(future.isDone());
+        assertEquals("ready", future.get().getMessages().get(0).getBody());
+        assertSame(Thread.currentThread(), handler.thread.get());
+    }
+
+    @Test
+    public void waitingReceiveCompletesWhenAMessageIsSent() throws Exception {
+        final String url = open(null);
+        final RecordingHandler handler = new RecordingHandler();
+        final Future<ReceiveMessageResult> future = sqs.receiveMessageAsync(longPoll(url, 10), handler);
+        Thread.sleep(100);
+        assertFalse(future.isDone());
+
+        sqs.sendMessage(url, "wake");
+        final List<Message> messages = future.get(5, TimeUnit.SECONDS).getMessages();
+        assertEquals(1, messages.size());
+        assertEquals("wake", messages.get(0).getBody());
+        assertSame(future.get(), handler.result.get());
+        assertEquals("1", attribute(url, AmazonSQSMock.NUM_NOT_VISIBLE));
+    }
+
+    @Test
+    public void waitRunsOutWithAnEmptyResult() throws Exception {
+        final String url = open(null);
+        final RecordingHandler handler = new RecordingHandler();
+        final Future<ReceiveMessageResult> future = sqs.receiveMessageAsync(longPoll(url, 1), handler);
+        assertTrue(future.get(5, TimeUnit.SECONDS).getMessages().isEmpty());
+        assertTrue(handler.result.get().getMessages().isEmpty());
+        assertNull(handler.error.get());
+    }
+
+    @Test
+    public void cancelledWaitLeavesTheNextMessageForOthers() throws Exception {
+        final String url = open(null);
+        final RecordingHandler handler = new RecordingHandler();
+        final Future<ReceiveMessageResult> future = sqs.receiveMessageAsync(longPoll(url, 10), handler);
+        assertTrue(future.cancel(true));
+        assertTrue(future.isCancelled());
+
+        sqs.sendMessage(url, "left");
+        assertEquals("1", attribute(url, AmazonSQSMock.NUM_MSGS));
+        assertEquals("left", sqs.receiveMessage(longPoll(url, 0)).getMessages().get(0).getBody());
+        assertNull(handler.thread.get());
+    }
+
+    @Test
+    public void cancelAfterMessagesAreTakenPutsThemBack() throws Exception {
+        final HeldExecutor executor = new HeldExecutor();
+        final String url = open(executor);
+        final RecordingHandler handler = new RecordingHandler();
+        final Future<ReceiveMessageResult> future = sqs.receiveMessageAsync(longPoll(url, 10), handler);
+
+        // The send takes the message for the waiting receive, whose delivery is held back
+        sqs.sendMessage(url, "taken");
+        assertEquals(1, executor.size());
+        assertEquals("1", attribute(url, AmazonSQSMock.NUM_NOT_VISIBLE));
+        assertTrue(future.cancel(true));
+
+        executor.runAll();
+        assertNull(handler.thread.get());
+        assertEquals("0", attribute(url, AmazonSQSMock.NUM_NOT_VISIBLE));
+        assertEquals("taken", sqs.receiveMessage(longPoll(url, 0)).getMessages().get(0).getBody());
+    }
+
+    @Test
+    public void failingHandlerFailsTheFuture() throws Exception {
+        final String url = open(null);
+        final IllegalStateException failure = new IllegalStateException("handler failed");
+        final Future<ReceiveMessageResult> future = sqs.receiveMessageAsync(longPoll(url, 10), new RecordingHandler() {
+            @Override
+            public void onSuccess(final ReceiveMessageRequest request, final ReceiveMessageResult result) {
+                throw failure;
+            }
+        });
+        sqs.sendMessage(url, "boom");
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Handler failure was not passed on");
+        } catch (ExecutionException ex) {
+            assertSame(failure, ex.getCause());
+        }
+    }
+
+    @Test
+    public void failedCallFailsTheFutureAndCallsOnError() throws Exception {
+        open(null);
+        final RecordingHandler handler = new RecordingHandler();
+        final Future<ReceiveMessageResult> future = sqs.receiveMessageAsync(longPoll(AmazonSQSMock.QUEUE_URL_PREFIX + "missing", 10), handler);
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("Received from a queue that does not exist");
+        } catch (ExecutionException ex) {
+            assertEquals(ErrorCodes.NON_EXISTENT_QUEUE, ((AmazonServiceException) ex.getCause()).getErrorCode());
+        }
+        assertEquals(ErrorCodes.NON_EXISTENT_QUEUE, ((AmazonServiceException) handler.error.get()).getErrorCode());
+    }
+
+    @Test
+    public void waitingReceiveCompletesOnTheSuppliedExecutor() throws Exception {
+        final AtomicReference<Thread> worker = new AtomicReference<Thread>();
+        pool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "completions");
+                worker.set(thread);
+                return thread;
+            }
+        });
+        final String url = open(pool);
+        final RecordingHandler handler = new RecordingHandler();
+        final Future<ReceiveMessageResult> future = sqs.receiveMessageAsync(longPoll(url, 10), handler);
+        sqs.sendMessage(url, "elsewhere");
+        assertEquals(1, future.get(5, TimeUnit.SECONDS).getMessages().size());
+        assertSame(worker.get(), handler.thread.get());
+    }
+
+    private String open(final Executor executor) {
+        sqs = new AmazonSQSAsyncMock(executor);
+        return sqs.createQueue("test").getQueueUrl();
+    }
+
+    private static ReceiveMessageRequest longPoll(final String url, final int waitTime) {
+        return new ReceiveMessageRequest(url).withMaxNumberOfMessages(1).withVisibilityTimeout(60).withWaitTimeSeconds(waitTime);
+    }
+
+    private String attribute(final String url, final String name) {
+        return sqs.getQueueAttributes(url, Collections.singletonList(name)).getAttributes().get(name);
+    }
+}
@@ -0,0 +1,202 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+
+public class AmazonSQSMockTest {
+
+    private static final int THREADS = 4;
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue("test").getQueueUrl();
+        pool = Executors.newFixedThreadPool(2 * THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+        sqs.shutdown();
+    }
+
+    @Test
+    public void concurrentSendReceiveDeleteDeliversEachMessageExactlyOnce() throws Exception {
+        final int perSender = 5000;
+        final int total = THREADS * perSender;
+        final ConcurrentMap<String, AtomicInteger> deliveries = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger deleted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int sender = 0; sender < THREADS; sender++) {
+            final int id = sender;
+            tasks.add(pool.submit(new Runnable() {
+                public void run() {
+                    await(start);
+                    for (int ix = 0; ix < perSender; ix += AmazonSQSMock.MAX_BATCH_SIZE) {
+                        final List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+                        for (int entry = ix; entry < ix + AmazonSQSMock.MAX_BATCH_SIZE; entry++) {
+                            entries.add(new SendMessageBatchRequestEntry("e" + entry, id + "-" + entry));
+                        }
+                        assertTrue(sqs.sendMessageBatch(queueUrl, entries).getFailed().isEmpty());
+                    }
+                }
+            }));
+        }
+        for (int receiver = 0; receiver < THREADS; receiver++) {
+            tasks.add(pool.submit(new Runnable() {
+                public void run() {
+                    await(start);
+                    while (deleted.get() < total) {
+                        final List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                                .withMaxNumberOfMessages(AmazonSQSMock.MAX_BATCH_SIZE)
+                                .withVisibilityTimeout(60).withWaitTimeSeconds(1)).getMessages();
+                        if (messages.isEmpty()) { continue; }
+                        final List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+                        for (final Message msg : messages) {
+                            deliveries.putIfAbsent(msg.getBody(), new AtomicInteger());
+                            deliveries.get(msg.getBody()).incrementAndGet();
+                            entries.add(new DeleteMessageBatchRequestEntry("d" + entries.size(), msg.getReceiptHandle()));
+                        }
+                        assertTrue(sqs.deleteMessageBatch(queueUrl, entries).getFailed().isEmpty());
+                        deleted.addAndGet(messages.size());
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (final Future<?> task : tasks) { task.get(60, TimeUnit.SECONDS); }
+
+        assertEquals(total, deliveries.size());
+        for (final Map.Entry<String, AtomicInteger> entry : deliveries.entrySet()) {
+            assertEquals("deliveries of " + entry.getKey(), 1, entry.getValue().get());
+        }
+        assertEquals(total, deleted.get());
+        assertEquals("0", attribute(AmazonSQSMock.NUM_MSGS));
+        assertEquals("0", attribute(AmazonSQSMock.NUM_NOT_VISIBLE));
+    }
+
+    @Test
+    public void concurrentReceivesNeverReturnTheSameMessage() throws Exception {
+        final int total = 10000;
+        for (int ix = 0; ix < total; ix++) { sqs.sendMessage(queueUrl, "m" + ix); }
+        final ConcurrentMap<String, String> received = new ConcurrentHashMap<String, String>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int receiver = 0; receiver < 2 * THREADS; receiver++) {
+            tasks.add(pool.submit(new Runnable() {
+                public void run() {
+                    await(start);
+                    while (true) {
+                        final List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                                .withMaxNumberOfMessages(AmazonSQSMock.MAX_BATCH_SIZE).withVisibilityTimeout(60)).getMessages();
+                        if (messages.isEmpty()) { return; }
+                        for (final Message msg : messages) {
+                            if (received.putIfAbsent(msg.getMessageId(), msg.getBody()) != null) { duplicates.incrementAndGet(); }
+                        }
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (final Future<?> task : tasks) { task.get(60, TimeUnit.SECONDS); }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(total, received.size());
+        assertEquals("0", attribute(AmazonSQSMock.NUM_MSGS));
+        assertEquals(String.valueOf(total), attribute(AmazonSQSMock.NUM_NOT_VISIBLE));
+    }
+
+    @Test
+    public void messagesAreReceivedInTheOrderSent() {
+        for (int ix = 0; ix < 25; ix++) { sqs.sendMessage(queueUrl, "m" + ix); }
+        final List<String> bodies = new ArrayList<String>();
+        List<Message> messages;
+        while (!(messages = receive(AmazonSQSMock.MAX_BATCH_SIZE, 60)).isEmpty()) {
+            for (final Message msg : messages) { bodies.add(msg.getBody()); }
+        }
+        final List<String> expected = new ArrayList<String>();
+        for (int ix = 0; ix < 25; ix++) { expected.add("m" + ix); }
+        assertEquals(expected, bodies);
+    }
+
+    @Test
+    public void deleteWithAStaleReceiptHandleFails() {
+        sqs.sendMessage(queueUrl, "stale");
+        final Message first = receive(1, 60).get(0);
+        sqs.changeMessageVisibility(queueUrl, first.getReceiptHandle(), 0);
+        final Message second = receive(1, 60).get(0);
+        assertEquals(first.getMessageId(), second.getMessageId());
+        try {
+            sqs.deleteMessage(queueUrl, first.getReceiptHandle());
+            fail("Deleted with the receipt handle of an earlier receive");
+        } catch (ReceiptHandleIsInvalidException ex) {
+            // Expected
+        }
+        // Still in flight under the new handle, which can delete it
+        assertEquals("1", attribute(AmazonSQSMock.NUM_NOT_VISIBLE));
+        sqs.deleteMessage(queueUrl, second.getReceiptHandle());
+        assertEquals("0", attribute(AmazonSQSMock.NUM_NOT_VISIBLE));
+        assertEquals("0", attribute(AmazonSQSMock.NUM_MSGS));
+    }
+
+    @Test
+    public void deleteTwiceFailsTheSecondTime() {
+        sqs.sendMessage(queueUrl, "twice");
+        final Message msg = receive(1, 60).get(0);
+        sqs.deleteMessage(queueUrl, msg.getReceiptHandle());
+        try {
+            sqs.deleteMessage(queueUrl, msg.getReceiptHandle());
+            fail("Deleted the same message twice");
+        } catch (ReceiptHandleIsInvalidException ex) {
+            // Expected
+        }
+    }
+
+    private List<Message> receive(final int max, final int visibilityTimeout) {
+        return sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(max)
+                .withVisibilityTimeout(visibilityTimeout)).getMessages();
+    }
+
+    private String attribute(final String name) {
+        return sqs.getQueueAttributes(queueUrl, Collections.singletonList(name)).getAttributes().get(name);
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.ListDeadLetterSourceQueuesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+public class DeadLetterQueueTest {
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+    private String deadLetterUrl;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue("test").getQueueUrl();
+        deadLetterUrl = sqs.createQueue("dead").getQueueUrl();
+    }
+
+    @After
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Test
+    public void messageMovesOnceReceivedMaxReceiveCountTimes() {
+        setRedrivePolicy(queueUrl, deadLetterUrl, 2);
+        final String messageId = sqs.sendMessage(queueUrl, "poison").getMessageId();
+        sqs.sendMessage(queueUrl, "fine");
+
+        // Messages made visible again go back to the head, so the order of later receives is not checked
+        assertEquals(Arrays.asList("fine", "poison"), bodies(receiveAndReturn(queueUrl)));
+        assertEquals(Arrays.asList("fine", "poison"), bodies(receiveAndReturn(queueUrl)));
+        assertTrue(receiveAndReturn(queueUrl).isEmpty());
+        assertEquals("0", attribute(queueUrl, AmazonSQSMock.NUM_MSGS));
+        assertEquals("2", attribute(deadLetterUrl, AmazonSQSMock.NUM_MSGS));
+        assertEquals(2, sqs.getMetrics().getQueue("test").getDeadLettered());
+
+        // They keep their ids, and their receive counts start again
+        final List<Message> moved = receiveAndReturn(deadLetterUrl);
+        assertEquals(Arrays.asList("fine", "poison"), bodies(moved));
+        for (final Message msg : moved) {
+            if (msg.getBody().equals("poison")) { assertEquals(messageId, msg.getMessageId()); }
+        }
+        assertEquals(2, receiveAndReturn(deadLetterUrl).size());
+    }
+
+    @Test
+    public void messageStaysIfTheDeadLetterQueueIsGone() {
+        setRedrivePolicy(queueUrl, deadLetterUrl, 1);
+        sqs.sendMessage(queueUrl, "stuck");
+        assertEquals(1, receiveAndReturn(queueUrl).size());
+        sqs.deleteQueue(deadLetterUrl);
+        assertEquals(1, receiveAndReturn(queueUrl).size());
+        assertEquals(0, sqs.getMetrics().getQueue("test").getDeadLettered());
+    }
+
+    @Test
+    public void sourceQueuesFollowTheirPolicies() {
+        final String other = sqs.createQueue("other").getQueueUrl();
+        final String second = sqs.createQueue("second").getQueueUrl();
+        assertEquals(Collections.<String>emptyList(), sources(deadLetterUrl));
+
+        setRedrivePolicy(queueUrl, deadLetterUrl, 3);
+        setRedrivePolicy(other, deadLetterUrl, 3);
+        assertEquals(Arrays.asList(other, queueUrl), sources(deadLetterUrl));
+
+        // Pointing a policy elsewhere moves the source with it
+        setRedrivePolicy(other, second, 3);
+        assertEquals(Arrays.asList(queueUrl), sources(deadLetterUrl));
+        assertEquals(Arrays.asList(other), sources(second));
+
+        // As does removing it, or deleting the source queue
+        sqs.setQueueAttributes(queueUrl, Collections.singletonMap(AmazonSQSMock.REDRIVE_POLICY, ""));
+        assertEquals(Collections.<String>emptyList(), sources(deadLetterUrl));
+        sqs.deleteQueue(other);
+        assertEquals(Collections.<String>emptyList(), sources(second));
+    }
+
+    @Test
+    public void invalidPoliciesAreRejected() {
+        expectRejected(queueUrl, "not json");
+        expectRejected(queueUrl, "{\"maxReceiveCount\":3}");
+        expectRejected(queueUrl, policy(deadLetterUrl, 0));
+        expectRejected(queueUrl, policy(deadLetterUrl, RedrivePolicy.MAX_RECEIVE_COUNT + 1));
+        expectRejected(queueUrl, policy(AmazonSQSMock.QUEUE_URL_PREFIX + "missing", 3));
+        expectRejected(queueUrl, policy(queueUrl, 3));
+        assertEquals(null, attribute(queueUrl, AmazonSQSMock.REDRIVE_POLICY));
+        assertEquals(Collections.<String>emptyList(), sources(deadLetterUrl));
+    }
+
+    private void setRedrivePolicy(final String url, final String target, final int maxReceiveCount) {
+        sqs.setQueueAttributes(url, Collections.singletonMap(AmazonSQSMock.REDRIVE_POLICY, policy(target, maxReceiveCount)));
+    }
+
+    private void expectRejected(final String url, final String policy) {
+        try {
+            sqs.setQueueAttributes(url, Collections.singletonMap(AmazonSQSMock.REDRIVE_POLICY, policy));
+            fail("Set RedrivePolicy to " + policy);
+        } catch (AmazonServiceException ex) {
+            // Expected
+        }
+    }
+
+    private String policy(final String target, final int maxReceiveCount) {
+        return "{\"deadLetterTargetArn\":\"" + AmazonSQSMock.ARN_PREFIX + target + "\",\"maxReceiveCount\":" + maxReceiveCount + "}";
+    }
+
+    private List<String> sources(final String url) {
+        return sqs.listDeadLetterSourceQueues(new ListDeadLetterSourceQueuesRequest(url)).getQueueUrls();
+    }
+
+    /**
+     * Receives what is visible and makes it visible again straight away, as a consumer that keeps failing would.
+     */
+    private List<Message> receiveAndReturn(final String url) {
+        final List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(url).withMaxNumberOfMessages(10)
+                .withVisibilityTimeout(60)).getMessages();
+        for (final Message msg : messages) { sqs.changeMessageVisibility(url, msg.getReceiptHandle(), 0); }
+        return messages;
+    }
+
+    private String attribute(final String url, final String name) {
+        return sqs.getQueueAttributes(url, Collections.singletonList(name)).getAttributes().get(name);
+    }
+
+    /**
+     * @return the bodies of the messages, sorted
+     */
+    private static List<String> bodies(final List<Message> messages) {
+        final List<String> bodies = new ArrayList<String>();
+        for (final Message msg : messages) { bodies.add(msg.getBody()); }
+        Collections.sort(bodies);
+        return bodies;
+    }
+}
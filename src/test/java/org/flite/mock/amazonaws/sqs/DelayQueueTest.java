@@ -0,0 +1,123 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+public class DelayQueueTest {
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue("test").getQueueUrl();
+    }
+
+    @After
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Test
+    public void delayedMessageIsHiddenUntilItsDelayPasses() throws Exception {
+        sqs.sendMessage(new SendMessageRequest(queueUrl, "later").withDelaySeconds(1));
+        assertEquals("1", attribute(AmazonSQSMock.MSGS_DELAYED));
+        assertEquals("0", attribute(AmazonSQSMock.NUM_MSGS));
+        assertTrue(receive().isEmpty());
+        Thread.sleep(1500);
+
+        assertEquals("0", attribute(AmazonSQSMock.MSGS_DELAYED));
+        assertEquals("1", attribute(AmazonSQSMock.NUM_MSGS));
+        assertEquals(Arrays.asList("later"), bodies(receive()));
+    }
+
+    @Test
+    public void longPollReceivesADelayedMessageOnceItIsDue() {
+        sqs.sendMessage(new SendMessageRequest(queueUrl, "later").withDelaySeconds(1));
+        final List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1)
+                .withWaitTimeSeconds(10)).getMessages();
+        assertEquals(Arrays.asList("later"), bodies(messages));
+    }
+
+    @Test
+    public void messageDelayOverridesTheQueues() throws Exception {
+        sqs.setQueueAttributes(queueUrl, Collections.singletonMap(AmazonSQSMock.DELAY_SEC, "1"));
+        sqs.sendMessage(queueUrl, "queue delay");
+        sqs.sendMessage(new SendMessageRequest(queueUrl, "no delay").withDelaySeconds(0));
+        assertEquals("1", attribute(AmazonSQSMock.MSGS_DELAYED));
+        assertEquals(Arrays.asList("no delay"), bodies(receive()));
+        Thread.sleep(1500);
+        assertEquals(Arrays.asList("queue delay"), bodies(receive()));
+    }
+
+    @Test
+    public void batchEntriesTakeTheirOwnDelayOrTheQueues() throws Exception {
+        sqs.setQueueAttributes(queueUrl, Collections.singletonMap(AmazonSQSMock.DELAY_SEC, "1"));
+        final List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+        entries.add(new SendMessageBatchRequestEntry("a", "queue delay"));
+        entries.add(new SendMessageBatchRequestEntry("b", "no delay").withDelaySeconds(0));
+        entries.add(new SendMessageBatchRequestEntry("c", "own delay").withDelaySeconds(1));
+        entries.add(new SendMessageBatchRequestEntry("d", "too long").withDelaySeconds(AmazonSQSMock.MAX_DELAY_SECONDS + 1));
+        final SendMessageBatchResult result = sqs.sendMessageBatch(queueUrl, entries);
+        assertEquals(3, result.getSuccessful().size());
+        assertEquals(1, result.getFailed().size());
+        assertEquals("d", result.getFailed().get(0).getId());
+
+        assertEquals("2", attribute(AmazonSQSMock.MSGS_DELAYED));
+        assertEquals(Arrays.asList("no delay"), bodies(receive()));
+        Thread.sleep(1500);
+        assertEquals("0", attribute(AmazonSQSMock.MSGS_DELAYED));
+        // Due together, they keep the order they were sent in
+        assertEquals(Arrays.asList("queue delay", "own delay"), bodies(receive()));
+    }
+
+    @Test
+    public void delayOutOfRangeIsRejected() {
+        try {
+            sqs.sendMessage(new SendMessageRequest(queueUrl, "never").withDelaySeconds(AmazonSQSMock.MAX_DELAY_SECONDS + 1));
+            fail("Sent with a delay longer than the most allowed");
+        } catch (AmazonServiceException ex) {
+            // Expected
+        }
+        try {
+            sqs.sendMessage(new SendMessageRequest(queueUrl, "never").withDelaySeconds(-1));
+            fail("Sent with a negative delay");
+        } catch (AmazonServiceException ex) {
+            // Expected
+        }
+        assertEquals("0", attribute(AmazonSQSMock.MSGS_DELAYED));
+        assertEquals("0", attribute(AmazonSQSMock.NUM_MSGS));
+    }
+
+    private List<Message> receive() {
+        return sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(10).withVisibilityTimeout(60)).getMessages();
+    }
+
+    private String attribute(final String name) {
+        return sqs.getQueueAttributes(queueUrl, Collections.singletonList(name)).getAttributes().get(name);
+    }
+
+    private static List<String> bodies(final List<Message> messages) {
+        final List<String> bodies = new ArrayList<String>();
+        for (final Message msg : messages) { bodies.add(msg.getBody()); }
+        return bodies;
+    }
+}
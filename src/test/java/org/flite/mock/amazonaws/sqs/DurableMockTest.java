@@ -0,0 +1,210 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+/**
+ * Restarts a durable mock and checks what it rebuilt. A clean restart recovers from the snapshot
+ * shutdown() leaves; a crash is simulated by copying the data directory while the mock still
+ * runs, and recovering from the copy, which only has what had been written out by then.
+ */
+public class DurableMockTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<AmazonSQSMock> mocks = new ArrayList<AmazonSQSMock>();
+
+    @After
+    public void tearDown() {
+        for (final AmazonSQSMock sqs : mocks) { sqs.shutdown(); }
+    }
+
+    @Test
+    public void inFlightMessageKeepsItsReceiptHandleAfterAShutdown() throws Exception {
+        final File dir = folder.newFolder();
+        final AmazonSQSMock sqs = open(dir);
+        final String url = sqs.createQueue("q").getQueueUrl();
+        sqs.sendMessage(url, "a");
+        sqs.sendMessage(url, "b");
+        final Message inFlight = receive(sqs, url, 60).get(0);
+        close(sqs);
+
+        final AmazonSQSMock restarted = open(dir);
+        assertEquals("1", attribute(restarted, url, AmazonSQSMock.NUM_MSGS));
+        assertEquals("1", attribute(restarted, url, AmazonSQSMock.NUM_NOT_VISIBLE));
+        restarted.deleteMessage(url, inFlight.getReceiptHandle());
+        assertEquals("b", receive(restarted, url, 60).get(0).getBody());
+    }
+
+    @Test
+    public void inFlightMessageKeepsItsReceiptHandleAfterACrash() throws Exception {
+        final File dir = folder.newFolder();
+        final AmazonSQSMock sqs = open(dir);
+        final String url = sqs.createQueue("q").getQueueUrl();
+        sqs.sendMessage(url, "a");
+        sqs.sendMessage(url, "b");
+        final Message inFlight = receive(sqs, url, 60).get(0);
+        sync(sqs, url);
+
+        final AmazonSQSMock restarted = open(crashCopy(dir));
+        assertEquals("1", attribute(restarted, url, AmazonSQSMock.NUM_MSGS));
+        assertEquals("1", attribute(restarted, url, AmazonSQSMock.NUM_NOT_VISIBLE));
+        restarted.deleteMessage(url, inFlight.getReceiptHandle());
+        assertEquals("b", receive(restarted, url, 60).get(0).getBody());
+    }
+
+    @Test
+    public void inFlightMessageReturnsOnceItsTimeoutExpiresAfterARestart() throws Exception {
+        final File dir = folder.newFolder();
+        final AmazonSQSMock sqs = open(dir);
+        final String url = sqs.createQueue("q").getQueueUrl();
+        sqs.sendMessage(url, "returning");
+        final Message inFlight = receive(sqs, url, 2).get(0);
+        sync(sqs, url);
+
+        final AmazonSQSMock restarted = open(crashCopy(dir));
+        assertEquals("1", attribute(restarted, url, AmazonSQSMock.NUM_NOT_VISIBLE));
+        final List<Message> again = longPoll(restarted, url, 10);
+        assertEquals(1, again.size());
+        assertEquals(inFlight.getMessageId(), again.get(0).getMessageId());
+    }
+
+    @Test
+    public void delayedMessageStaysDelayedAfterARestart() throws Exception {
+        final File dir = folder.newFolder();
+        final AmazonSQSMock sqs = open(dir);
+        final String url = sqs.createQueue("q").getQueueUrl();
+        sqs.sendMessage(new SendMessageRequest(url, "later").withDelaySeconds(2));
+
+        final AmazonSQSMock restarted = open(crashCopy(dir));
+        assertEquals("1", attribute(restarted, url, AmazonSQSMock.MSGS_DELAYED));
+        assertEquals("0", attribute(restarted, url, AmazonSQSMock.NUM_MSGS));
+        final List<Message> later = longPoll(restarted, url, 10);
+        assertEquals(1, later.size());
+        assertEquals("later", later.get(0).getBody());
+    }
+
+    @Test
+    public void deletesAfterACheckpointAreReplayed() throws Exception {
+        final File dir = folder.newFolder();
+        final AmazonSQSMock sqs = open(dir);
+        final String url = sqs.createQueue("q").getQueueUrl();
+        for (int ix = 0; ix < 10; ix++) { sqs.sendMessage(url, "m" + ix); }
+        close(sqs);
+        assertTrue(new File(dir, JournalFormat.SNAPSHOT_FILE).exists());
+
+        // Recovered from the snapshot; what follows is only in the journal
+        final AmazonSQSMock second = open(dir);
+        final List<Message> received = new ArrayList<Message>();
+        received.addAll(receive(second, url, 60, 10));
+        assertEquals(10, received.size());
+        for (int ix = 0; ix < 4; ix++) { second.deleteMessage(url, received.get(ix).getReceiptHandle()); }
+        second.changeMessageVisibility(url, received.get(4).getReceiptHandle(), 0);
+
+        final AmazonSQSMock third = open(crashCopy(dir));
+        assertEquals("1", attribute(third, url, AmazonSQSMock.NUM_MSGS));
+        assertEquals("5", attribute(third, url, AmazonSQSMock.NUM_NOT_VISIBLE));
+        assertEquals("m4", receive(third, url, 60).get(0).getBody());
+        for (int ix = 5; ix < 10; ix++) { third.deleteMessage(url, received.get(ix).getReceiptHandle()); }
+        assertEquals("0", attribute(third, url, AmazonSQSMock.NUM_MSGS));
+        assertEquals("1", attribute(third, url, AmazonSQSMock.NUM_NOT_VISIBLE));
+    }
+
+    @Test
+    public void truncatedTrailingRecordIsDropped() throws Exception {
+        final File dir = folder.newFolder();
+        final AmazonSQSMock sqs = open(dir);
+        final String url = sqs.createQueue("q").getQueueUrl();
+        for (int ix = 0; ix < 5; ix++) { sqs.sendMessage(url, "m" + ix); }
+
+        // Tear the last send in half, as a crash in the middle of writing it would
+        final File copy = crashCopy(dir);
+        final long[] generations = JournalFormat.journalGenerations(copy);
+        final File last = JournalFormat.journalFile(copy, generations[generations.length - 1]);
+        final RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        try {
+            raf.setLength(raf.length() - 10);
+        } finally {
+            raf.close();
+        }
+
+        final AmazonSQSMock restarted = open(copy);
+        assertEquals("4", attribute(restarted, url, AmazonSQSMock.NUM_MSGS));
+        final List<String> bodies = new ArrayList<String>();
+        for (final Message msg : receive(restarted, url, 60, 10)) { bodies.add(msg.getBody()); }
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3"), bodies);
+
+        // What is sent after recovery survives the next restart too
+        restarted.sendMessage(url, "after");
+        final AmazonSQSMock again = open(crashCopy(copy));
+        assertEquals("1", attribute(again, url, AmazonSQSMock.NUM_MSGS));
+        assertEquals("4", attribute(again, url, AmazonSQSMock.NUM_NOT_VISIBLE));
+        assertFalse(receive(again, url, 60).isEmpty());
+    }
+
+    private AmazonSQSMock open(final File dir) {
+        final AmazonSQSMock sqs = new AmazonSQSMock(dir);
+        mocks.add(sqs);
+        return sqs;
+    }
+
+    private void close(final AmazonSQSMock sqs) {
+        mocks.remove(sqs);
+        sqs.shutdown();
+    }
+
+    /**
+     * @return a copy of the data directory as it is on disk now, as a crash would leave it
+     */
+    private File crashCopy(final File dir) throws IOException {
+        final File copy = folder.newFolder();
+        for (final File file : dir.listFiles()) { Files.copy(file.toPath(), new File(copy, file.getName()).toPath()); }
+        return copy;
+    }
+
+    /**
+     * Receives are recorded but not waited for; a call that is waited for also waits for them.
+     */
+    private static void sync(final AmazonSQSMock sqs, final String url) {
+        sqs.setQueueAttributes(url, Collections.singletonMap(AmazonSQSMock.VIS_TIMEOUT,
+                attribute(sqs, url, AmazonSQSMock.VIS_TIMEOUT)));
+    }
+
+    private static List<Message> receive(final AmazonSQSMock sqs, final String url, final int visibilityTimeout) {
+        return receive(sqs, url, visibilityTimeout, 1);
+    }
+
+    private static List<Message> receive(final AmazonSQSMock sqs, final String url, final int visibilityTimeout, final int max) {
+        return sqs.receiveMessage(new ReceiveMessageRequest(url).withMaxNumberOfMessages(max)
+                .withVisibilityTimeout(visibilityTimeout)).getMessages();
+    }
+
+    private static List<Message> longPoll(final AmazonSQSMock sqs, final String url, final int waitTime) {
+        return sqs.receiveMessage(new ReceiveMessageRequest(url).withMaxNumberOfMessages(1)
+                .withVisibilityTimeout(60).withWaitTimeSeconds(waitTime)).getMessages();
+    }
+
+    private static String attribute(final AmazonSQSMock sqs, final String url, final String name) {
+        return sqs.getQueueAttributes(url, Collections.singletonList(name)).getAttributes().get(name);
+    }
+}
@@ -0,0 +1,185 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+public class FaultProfileTest {
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue("test").getQueueUrl();
+    }
+
+    @After
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Test
+    public void callsBeyondTheBucketAreThrottled() {
+        // One token every ten seconds, so none come back while the test runs
+        sqs.setFaultProfile(new FaultProfile().withRateLimit(0.1, 3));
+        for (int ix = 0; ix < 3; ix++) { sqs.sendMessage(queueUrl, "m" + ix); }
+        for (int ix = 0; ix < 5; ix++) {
+            try {
+                sqs.sendMessage(queueUrl, "throttled");
+                fail("Sent past the rate limit");
+            } catch (AmazonServiceException ex) {
+                assertEquals(ErrorCodes.THROTTLING, ex.getErrorCode());
+                assertEquals(400, ex.getStatusCode());
+                assertEquals(AmazonServiceException.ErrorType.Client, ex.getErrorType());
+            }
+        }
+
+        sqs.clearFaultProfiles();
+        assertEquals("3", attribute(AmazonSQSMock.NUM_MSGS));
+        assertEquals(5, sqs.getMetrics().getOperation("SendMessage").getErrors());
+    }
+
+    @Test
+    public void serverErrorRateOfOneFailsEveryCall() {
+        sqs.sendMessage(queueUrl, "before");
+        sqs.setFaultProfile(new FaultProfile().withServerErrorRate(1.0));
+        for (int ix = 0; ix < 20; ix++) { expectInternalError(); }
+        try {
+            sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1));
+            fail("Received despite the fault profile");
+        } catch (AmazonServiceException ex) {
+            assertEquals(ErrorCodes.INTERNAL_ERROR, ex.getErrorCode());
+        }
+
+        // A failed call does nothing
+        sqs.clearFaultProfiles();
+        assertEquals("1", attribute(AmazonSQSMock.NUM_MSGS));
+        assertEquals("0", attribute(AmazonSQSMock.NUM_NOT_VISIBLE));
+    }
+
+    @Test
+    public void profilesApplyToTheirActionOrQueueOnly() {
+        final String other = sqs.createQueue("other").getQueueUrl();
+        sqs.setQueueFaultProfile(queueUrl, new FaultProfile().withServerErrorRate(1.0));
+        expectInternalError();
+        sqs.sendMessage(other, "fine");
+
+        sqs.setQueueFaultProfile(queueUrl, null);
+        sqs.setFaultProfile("SendMessage", new FaultProfile().withServerErrorRate(1.0));
+        expectInternalError();
+        assertEquals(1, sqs.receiveMessage(new ReceiveMessageRequest(other).withMaxNumberOfMessages(1)).getMessages().size());
+
+        // A queue's profile takes the place of the others for its calls
+        sqs.setQueueFaultProfile(queueUrl, new FaultProfile());
+        sqs.sendMessage(queueUrl, "fine");
+        try {
+            sqs.setFaultProfile("NoSuchAction", new FaultProfile());
+            fail("Set a profile for an unknown action");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void batchEntryFailuresAreReportedPerEntry() {
+        sqs.setFaultProfile(new FaultProfile().withBatchEntryFailureRate(1.0));
+        final List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+        for (int ix = 0; ix < 3; ix++) { entries.add(new SendMessageBatchRequestEntry("e" + ix, "body" + ix)); }
+        final SendMessageBatchResult sent = sqs.sendMessageBatch(queueUrl, entries);
+        assertTrue(sent.getSuccessful().isEmpty());
+        assertEquals(3, sent.getFailed().size());
+        for (int ix = 0; ix < 3; ix++) { checkInternalError("e" + ix, sent.getFailed().get(ix)); }
+        assertEquals("0", attribute(AmazonSQSMock.NUM_MSGS));
+
+        sqs.clearFaultProfiles();
+        sqs.sendMessageBatch(queueUrl, entries);
+        final List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(10)
+                .withVisibilityTimeout(60)).getMessages();
+        assertEquals(3, messages.size());
+
+        sqs.setFaultProfile("DeleteMessageBatch", new FaultProfile().withBatchEntryFailureRate(1.0));
+        final List<DeleteMessageBatchRequestEntry> deletes = new ArrayList<DeleteMessageBatchRequestEntry>();
+        for (final Message msg : messages) { deletes.add(new DeleteMessageBatchRequestEntry(msg.getMessageId(), msg.getReceiptHandle())); }
+        final DeleteMessageBatchResult deleted = sqs.deleteMessageBatch(queueUrl, deletes);
+        assertEquals(3, deleted.getFailed().size());
+        checkInternalError(messages.get(0).getMessageId(), deleted.getFailed().get(0));
+        assertEquals("3", attribute(AmazonSQSMock.NUM_NOT_VISIBLE));
+    }
+
+    @Test
+    public void fixedLatencyDelaysEachCall() {
+        sqs.setFaultProfile(new FaultProfile().withLatency(50, 50));
+        final long start = System.nanoTime();
+        sqs.sendMessage(queueUrl, "slow");
+        sqs.sendMessage(queueUrl, "slow");
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(sqs.getMetrics().getOperation("SendMessage").getP50Micros() >= 50000);
+    }
+
+    @Test
+    public void invalidProfilesAreRejected() {
+        expectInvalid(-1, 0, 0, 0);
+        expectInvalid(10, 5, 0, 0);
+        expectInvalid(0, 5, 0, 0);
+        expectInvalid(0, 0, 10, 0);
+        expectInvalid(0, 0, -1, 1);
+        try {
+            new FaultProfile().withServerErrorRate(1.5);
+            fail("Took a rate over 1");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        assertFalse(sqs.hasFaultProfiles());
+    }
+
+    private void expectInvalid(final double median, final double p99, final double rate, final int burst) {
+        try {
+            new FaultProfile().withLatency(median, p99).withRateLimit(rate, burst);
+            fail("Took latency " + median + "/" + p99 + " and rate " + rate + "/" + burst);
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    private void expectInternalError() {
+        try {
+            sqs.sendMessage(queueUrl, "failed");
+            fail("Sent despite the fault profile");
+        } catch (AmazonServiceException ex) {
+            assertEquals(ErrorCodes.INTERNAL_ERROR, ex.getErrorCode());
+            assertEquals(500, ex.getStatusCode());
+            assertEquals(AmazonServiceException.ErrorType.Service, ex.getErrorType());
+        }
+    }
+
+    private static void checkInternalError(final String id, final BatchResultErrorEntry entry) {
+        assertEquals(id, entry.getId());
+        assertEquals(ErrorCodes.INTERNAL_ERROR, entry.getCode());
+        assertFalse(entry.isSenderFault());
+    }
+
+    private String attribute(final String name) {
+        return sqs.getQueueAttributes(queueUrl, Collections.singletonList(name)).getAttributes().get(name);
+    }
+}
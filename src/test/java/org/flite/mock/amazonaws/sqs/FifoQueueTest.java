@@ -0,0 +1,183 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+public class FifoQueueTest {
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+    private int deduplicationIds = 0;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue(new CreateQueueRequest("test" + AmazonSQSMock.FIFO_SUFFIX)
+                .addAttributesEntry(AmazonSQSMock.FIFO_QUEUE, "true")).getQueueUrl();
+    }
+
+    @After
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Test
+    public void groupStaysBlockedWhileItHasAMessageInFlight() {
+        send("A", "a1");
+        send("A", "a2");
+        send("B", "b1");
+        final Message a1 = receive(1, 60).get(0);
+        assertEquals("a1", a1.getBody());
+
+        // Only the other group can be received while a1 is in flight
+        final List<Message> others = receive(10, 60);
+        assertEquals(Arrays.asList("b1"), bodies(others));
+        sqs.deleteMessage(queueUrl, others.get(0).getReceiptHandle());
+        assertTrue(receive(10, 60).isEmpty());
+        send("A", "a3");
+        assertTrue(receive(10, 60).isEmpty());
+
+        sqs.deleteMessage(queueUrl, a1.getReceiptHandle());
+        assertEquals(Arrays.asList("a2", "a3"), bodies(receive(10, 60)));
+    }
+
+    @Test
+    public void groupStaysBlockedUntilItsWholeBatchIsSettled() {
+        send("A", "a1");
+        send("A", "a2");
+        send("A", "a3");
+        final List<Message> batch = receive(2, 60);
+        assertEquals(Arrays.asList("a1", "a2"), bodies(batch));
+        sqs.deleteMessage(queueUrl, batch.get(0).getReceiptHandle());
+        assertTrue(receive(10, 60).isEmpty());
+        sqs.deleteMessage(queueUrl, batch.get(1).getReceiptHandle());
+        assertEquals(Arrays.asList("a3"), bodies(receive(10, 60)));
+    }
+
+    @Test
+    public void visibilityTimeoutOfZeroReturnsMessagesInTheirOriginalOrder() {
+        send("C", "c1");
+        send("C", "c2");
+        send("C", "c3");
+        final List<Message> batch = receive(10, 60);
+        assertEquals(Arrays.asList("c1", "c2", "c3"), bodies(batch));
+
+        // Returned in the opposite order, they still come back as sent
+        sqs.changeMessageVisibility(queueUrl, batch.get(2).getReceiptHandle(), 0);
+        sqs.changeMessageVisibility(queueUrl, batch.get(0).getReceiptHandle(), 0);
+        assertTrue(receive(10, 60).isEmpty());
+        sqs.changeMessageVisibility(queueUrl, batch.get(1).getReceiptHandle(), 0);
+        assertEquals(Arrays.asList("c1", "c2", "c3"), bodies(receive(10, 60)));
+    }
+
+    @Test
+    public void expiredMessagesReturnInTheirOriginalOrder() throws Exception {
+        send("C", "c1");
+        send("C", "c2");
+        send("C", "c3");
+        send("C", "c4");
+        assertEquals(Arrays.asList("c1", "c2", "c3"), bodies(receive(3, 1)));
+        Thread.sleep(2500);
+
+        assertEquals(Arrays.asList("c1", "c2"), bodies(receive(2, 60)));
+    }
+
+    @Test
+    public void returnedMessageGoesAheadOfMessagesSentSince() {
+        send("A", "a1");
+        final Message a1 = receive(1, 60).get(0);
+        send("A", "a2");
+        sqs.changeMessageVisibility(queueUrl, a1.getReceiptHandle(), 0);
+        assertEquals(Arrays.asList("a1", "a2"), bodies(receive(10, 60)));
+    }
+
+    @Test
+    public void duplicateWithinTheWindowReturnsTheOriginalMessageId() {
+        final SendMessageResult original = sqs.sendMessage(new SendMessageRequest(queueUrl, "first")
+                .withMessageAttributes(attributes("D", "same")));
+        final SendMessageResult duplicate = sqs.sendMessage(new SendMessageRequest(queueUrl, "second")
+                .withMessageAttributes(attributes("D", "same")));
+        assertEquals(original.getMessageId(), duplicate.getMessageId());
+        // Each checksum is of the body actually sent
+        assertNotEquals(original.getMD5OfMessageBody(), duplicate.getMD5OfMessageBody());
+
+        final List<Message> received = receive(10, 60);
+        assertEquals(Arrays.asList("first"), bodies(received));
+        assertEquals(original.getMessageId(), received.get(0).getMessageId());
+
+        // Still a duplicate once the original is deleted, for as long as the window lasts
+        sqs.deleteMessage(queueUrl, received.get(0).getReceiptHandle());
+        final SendMessageResult again = sqs.sendMessage(new SendMessageRequest(queueUrl, "third")
+                .withMessageAttributes(attributes("D", "same")));
+        assertEquals(original.getMessageId(), again.getMessageId());
+        assertTrue(receive(10, 60).isEmpty());
+    }
+
+    @Test
+    public void contentBasedDeduplicationUsesTheBody() {
+        sqs.setQueueAttributes(queueUrl, Collections.singletonMap(AmazonSQSMock.CONTENT_DEDUPLICATION, "true"));
+        final SendMessageResult original = sqs.sendMessage(new SendMessageRequest(queueUrl, "same body")
+                .withMessageAttributes(attributes("D", null)));
+        final SendMessageResult duplicate = sqs.sendMessage(new SendMessageRequest(queueUrl, "same body")
+                .withMessageAttributes(attributes("D", null)));
+        final SendMessageResult other = sqs.sendMessage(new SendMessageRequest(queueUrl, "other body")
+                .withMessageAttributes(attributes("D", null)));
+        assertEquals(original.getMessageId(), duplicate.getMessageId());
+        assertNotEquals(original.getMessageId(), other.getMessageId());
+        assertEquals(Arrays.asList("same body", "other body"), bodies(receive(10, 60)));
+    }
+
+    @Test
+    public void deduplicationIdIsForgottenOnceTheWindowHasPassed() {
+        final DeduplicationIndex index = new DeduplicationIndex();
+        final long start = System.nanoTime();
+        assertEquals(-1, index.claim("id", 1, start));
+        assertEquals(1, index.claim("id", 2, start + DeduplicationIndex.INTERVAL_NANOS - 1));
+        assertEquals(-1, index.claim("id", 3, start + DeduplicationIndex.INTERVAL_NANOS));
+        assertEquals(3, index.claim("id", 4, start + DeduplicationIndex.INTERVAL_NANOS + 1));
+    }
+
+    private void send(final String group, final String body) {
+        sqs.sendMessage(new SendMessageRequest(queueUrl, body).withMessageAttributes(attributes(group, "d" + ++deduplicationIds)));
+    }
+
+    private List<Message> receive(final int max, final int visibilityTimeout) {
+        return sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(max)
+                .withVisibilityTimeout(visibilityTimeout)).getMessages();
+    }
+
+    private static Map<String, MessageAttributeValue> attributes(final String group, final String deduplicationId) {
+        final Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+        attributes.put(AmazonSQSMock.MESSAGE_GROUP_ID, new MessageAttributeValue().withDataType("String").withStringValue(group));
+        if (deduplicationId != null) {
+            attributes.put(AmazonSQSMock.MESSAGE_DEDUPLICATION_ID,
+                    new MessageAttributeValue().withDataType("String").withStringValue(deduplicationId));
+        }
+        return attributes;
+    }
+
+    private static List<String> bodies(final List<Message> messages) {
+        final List<String> bodies = new ArrayList<String>();
+        for (final Message msg : messages) { bodies.add(msg.getBody()); }
+        return bodies;
+    }
+}
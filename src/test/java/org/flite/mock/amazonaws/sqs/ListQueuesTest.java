@@ -0,0 +1,90 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+
+public class ListQueuesTest {
+
+    private AmazonSQSMock sqs;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+    }
+
+    @After
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Test
+    public void prefixMatchesTheStartOfNamesOnly() {
+        create("orders", "orders-dead", "orders2", "order", "reorders", "Orders", "payments");
+        assertEquals(urls("orders", "orders-dead", "orders2"), sqs.listQueues("orders").getQueueUrls());
+        assertEquals(urls("order", "orders", "orders-dead", "orders2"), sqs.listQueues("order").getQueueUrls());
+        // Names are case sensitive
+        assertEquals(urls("Orders"), sqs.listQueues("O").getQueueUrls());
+        assertTrue(sqs.listQueues("ordersx").getQueueUrls().isEmpty());
+        assertTrue(sqs.listQueues("z").getQueueUrls().isEmpty());
+    }
+
+    @Test
+    public void prefixEqualToANameIncludesIt() {
+        create("a", "ab", "b");
+        assertEquals(urls("a", "ab"), sqs.listQueues("a").getQueueUrls());
+        assertEquals(urls("ab"), sqs.listQueues("ab").getQueueUrls());
+        assertEquals(urls("b"), sqs.listQueues("b").getQueueUrls());
+        assertTrue(sqs.listQueues("abc").getQueueUrls().isEmpty());
+    }
+
+    @Test
+    public void noPrefixListsEveryQueue() {
+        create("b", "a", "c");
+        assertEquals(urls("a", "b", "c"), sqs.listQueues().getQueueUrls());
+        assertEquals(urls("a", "b", "c"), sqs.listQueues("").getQueueUrls());
+        assertEquals(urls("a", "b", "c"), sqs.listQueues(new ListQueuesRequest()).getQueueUrls());
+    }
+
+    @Test
+    public void listIsCappedAtTheMostSqsReturns() {
+        final List<String> names = new ArrayList<String>();
+        for (int ix = 0; ix < AmazonSQSMock.MAX_LISTED_QUEUES + 5; ix++) { names.add(String.format("q%05d", ix)); }
+        create(names.toArray(new String[names.size()]));
+        final List<String> listed = sqs.listQueues().getQueueUrls();
+        assertEquals(AmazonSQSMock.MAX_LISTED_QUEUES, listed.size());
+        assertEquals(urls(names.subList(0, AmazonSQSMock.MAX_LISTED_QUEUES).toArray(new String[0])), listed);
+        // A narrower prefix reaches the ones past the cap
+        assertEquals(urls("q01000", "q01001", "q01002", "q01003", "q01004"), sqs.listQueues("q010").getQueueUrls());
+    }
+
+    @Test
+    public void deletedQueuesAreNotListed() {
+        create("a", "ab", "b");
+        sqs.deleteQueue(AmazonSQSMock.QUEUE_URL_PREFIX + "ab");
+        assertEquals(urls("a", "b"), sqs.listQueues().getQueueUrls());
+        assertEquals(urls("a"), sqs.listQueues("a").getQueueUrls());
+
+        // A queue created again under the same name is listed again
+        create("ab");
+        assertEquals(urls("a", "ab"), sqs.listQueues("a").getQueueUrls());
+    }
+
+    private void create(final String... names) {
+        for (final String name : names) { sqs.createQueue(name); }
+    }
+
+    private static List<String> urls(final String... names) {
+        final List<String> urls = new ArrayList<String>();
+        for (final String name : names) { urls.add(AmazonSQSMock.QUEUE_URL_PREFIX + name); }
+        return urls;
+    }
+}
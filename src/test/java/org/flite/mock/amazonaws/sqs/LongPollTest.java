@@ -0,0 +1,104 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+public class LongPollTest {
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue("test").getQueueUrl();
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+        sqs.shutdown();
+    }
+
+    @Test
+    public void longPollReturnsAMessageSentWhileWaiting() throws Exception {
+        final Future<List<Message>> poll = longPoll(new ReceiveMessageRequest(queueUrl).withWaitTimeSeconds(10));
+        Thread.sleep(200);
+        assertFalse(poll.isDone());
+        sqs.sendMessage(queueUrl, "wake");
+        final List<Message> messages = poll.get(5, TimeUnit.SECONDS);
+        assertEquals(1, messages.size());
+        assertEquals("wake", messages.get(0).getBody());
+    }
+
+    @Test
+    public void longPollReturnsAMessageWhoseVisibilityTimeoutExpires() {
+        sqs.sendMessage(queueUrl, "returning");
+        final Message msg = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1)
+                .withVisibilityTimeout(1)).getMessages().get(0);
+        final List<Message> again = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1)
+                .withVisibilityTimeout(60).withWaitTimeSeconds(10)).getMessages();
+        assertEquals(1, again.size());
+        assertEquals(msg.getMessageId(), again.get(0).getMessageId());
+    }
+
+    @Test
+    public void longPollReturnsNothingOnceItsWaitTimePasses() {
+        final long start = System.nanoTime();
+        final List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1)
+                .withWaitTimeSeconds(1)).getMessages();
+        assertTrue(messages.isEmpty());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void queueWaitTimeAppliesWhenTheRequestSetsNone() throws Exception {
+        sqs.setQueueAttributes(queueUrl, Collections.singletonMap(AmazonSQSMock.RECEIVE_WAIT, "10"));
+        final Future<List<Message>> poll = longPoll(new ReceiveMessageRequest(queueUrl));
+        Thread.sleep(200);
+        assertFalse(poll.isDone());
+        sqs.sendMessage(queueUrl, "wake");
+        assertEquals(1, poll.get(5, TimeUnit.SECONDS).size());
+
+        // A request that asks for no wait returns at once
+        final Future<List<Message>> none = longPoll(new ReceiveMessageRequest(queueUrl).withWaitTimeSeconds(0));
+        assertTrue(none.get(5, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void eachMessageSentWakesOneWaitingReceive() throws Exception {
+        final Future<List<Message>> first = longPoll(new ReceiveMessageRequest(queueUrl).withWaitTimeSeconds(10));
+        final Future<List<Message>> second = longPoll(new ReceiveMessageRequest(queueUrl).withWaitTimeSeconds(10));
+        Thread.sleep(200);
+        sqs.sendMessage(queueUrl, "one");
+        sqs.sendMessage(queueUrl, "two");
+        assertEquals(1, first.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1, second.get(5, TimeUnit.SECONDS).size());
+    }
+
+    private Future<List<Message>> longPoll(final ReceiveMessageRequest request) {
+        return pool.submit(new Callable<List<Message>>() {
+            public List<Message> call() {
+                return sqs.receiveMessage(request.withMaxNumberOfMessages(1)).getMessages();
+            }
+        });
+    }
+}
@@ -0,0 +1,163 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.OverLimitException;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+public class MemoryLimitTest {
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue("test").getQueueUrl();
+    }
+
+    @After
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Test
+    public void sendOverTheQueueLimitFailsUntilMessagesAreDeleted() {
+        sqs.sendMessage(queueUrl, "first");
+        final long perMessage = sqs.getStoredBytes();
+        sqs.setQueueMemoryLimit(2 * perMessage);
+        sqs.sendMessage(queueUrl, "secnd");
+        expectOverLimit(queueUrl, "third");
+        // Other queues have limits of their own
+        sqs.sendMessage(sqs.createQueue("other").getQueueUrl(), "third");
+
+        final Message msg = receive().get(0);
+        sqs.deleteMessage(queueUrl, msg.getReceiptHandle());
+        sqs.sendMessage(queueUrl, "third");
+    }
+
+    @Test
+    public void sendOverTheTotalLimitFails() {
+        final String other = sqs.createQueue("other").getQueueUrl();
+        sqs.sendMessage(queueUrl, "first");
+        sqs.setMemoryLimit(2 * sqs.getStoredBytes());
+        sqs.sendMessage(other, "secnd");
+        expectOverLimit(queueUrl, "third");
+        expectOverLimit(other, "third");
+        assertEquals("1", attribute(queueUrl, AmazonSQSMock.NUM_MSGS));
+
+        // Deleting a queue gives back everything it held
+        sqs.deleteQueue(other);
+        sqs.sendMessage(queueUrl, "third");
+    }
+
+    @Test
+    public void failedStoreGivesBackItsReservation() throws Exception {
+        final Field field = AmazonSQSMock.class.getDeclaredField("journal");
+        field.setAccessible(true);
+        final Object original = field.get(sqs);
+        // A journal that cannot record the send, as when a durable mock's disk fails
+        field.set(sqs, new Journal() {
+            @Override
+            void sent(final QueueState queue, final StoredMessage msg, final long visibleAt) {
+                throw new AmazonClientException("Cannot write journal");
+            }
+        });
+        try {
+            sqs.sendMessage(queueUrl, "lost");
+            fail("Sent without recording the send");
+        } catch (AmazonClientException ex) {
+            // Expected
+        } finally {
+            field.set(sqs, original);
+        }
+        assertEquals(0, sqs.getStoredBytes());
+        assertEquals("0", attribute(queueUrl, AmazonSQSMock.NUM_MSGS));
+    }
+
+    @Test
+    public void storedBytesAreGivenBackByDeletesAndPurges() {
+        sqs.sendMessage(queueUrl, "one");
+        sqs.sendMessage(new SendMessageRequest(queueUrl, "two").withDelaySeconds(60));
+        sqs.sendMessage(queueUrl, "three");
+        assertTrue(sqs.getStoredBytes() > 0);
+        final Message msg = receive().get(0);
+        sqs.purgeQueue(new PurgeQueueRequest(queueUrl));
+        assertEquals(0, sqs.getStoredBytes());
+
+        // A message in flight when the queue was purged is gone with the rest
+        try {
+            sqs.deleteMessage(queueUrl, msg.getReceiptHandle());
+            fail("Deleted a purged message");
+        } catch (AmazonServiceException ex) {
+            // Expected
+        }
+        sqs.sendMessage(queueUrl, "after");
+        final long after = sqs.getStoredBytes();
+        assertTrue(after > 0);
+        sqs.deleteMessage(queueUrl, receive().get(0).getReceiptHandle());
+        assertEquals(0, sqs.getStoredBytes());
+    }
+
+    @Test
+    public void maximumMessageSizeCountsTheBodyAndAttributes() {
+        sqs.setQueueAttributes(queueUrl, Collections.singletonMap(AmazonSQSMock.MAX_SIZE, "1024"));
+        sqs.sendMessage(queueUrl, StringUtils.repeat("x", 1024));
+        expectTooLong(new SendMessageRequest(queueUrl, StringUtils.repeat("x", 1025)));
+        // Multi-byte characters count as their UTF-8 bytes
+        expectTooLong(new SendMessageRequest(queueUrl, StringUtils.repeat("\u00fc", 513)));
+
+        // Name, data type and value of an attribute all count
+        final String body = StringUtils.repeat("x", 1024 - "name".length() - "String".length() - "value".length());
+        sqs.sendMessage(new SendMessageRequest(queueUrl, body).addMessageAttributesEntry("name",
+                new MessageAttributeValue().withDataType("String").withStringValue("value")));
+        expectTooLong(new SendMessageRequest(queueUrl, body + "x").addMessageAttributesEntry("name",
+                new MessageAttributeValue().withDataType("String").withStringValue("value")));
+        assertEquals("2", attribute(queueUrl, AmazonSQSMock.NUM_MSGS));
+    }
+
+    private void expectOverLimit(final String url, final String body) {
+        try {
+            sqs.sendMessage(url, body);
+            fail("Sent over the memory limit");
+        } catch (OverLimitException ex) {
+            assertEquals("OverLimit", ex.getErrorCode());
+        }
+    }
+
+    private void expectTooLong(final SendMessageRequest request) {
+        final long before = sqs.getStoredBytes();
+        try {
+            sqs.sendMessage(request);
+            fail("Sent a message over the maximum size");
+        } catch (AmazonServiceException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("shorter than 1024 bytes"));
+        }
+        assertEquals(before, sqs.getStoredBytes());
+    }
+
+    private List<Message> receive() {
+        return sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1).withVisibilityTimeout(60)).getMessages();
+    }
+
+    private String attribute(final String url, final String name) {
+        return sqs.getQueueAttributes(url, Collections.singletonList(name)).getAttributes().get(name);
+    }
+}
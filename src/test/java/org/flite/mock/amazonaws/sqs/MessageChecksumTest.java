@@ -0,0 +1,166 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.services.sqs.MessageMD5ChecksumHandler;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+/**
+ * Checks the MD5s the mock reports against known digests, and against the SDK's own
+ * MessageMD5ChecksumHandler, which fails a call whose checksums do not match what was sent.
+ */
+public class MessageChecksumTest {
+
+    private final MessageMD5ChecksumHandler sdk = new MessageMD5ChecksumHandler();
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue("test").getQueueUrl();
+    }
+
+    @After
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Test
+    public void bodyDigestsMatchKnownValues() {
+        assertEquals("5d41402abc4b2a76b9719d911017c592", sqs.sendMessage(queueUrl, "hello").getMD5OfMessageBody());
+        assertEquals("9e107d9d372bb6826bd81d3542a419d6",
+                sqs.sendMessage(queueUrl, "The quick brown fox jumps over the lazy dog").getMD5OfMessageBody());
+        // UTF-8, with a character outside the BMP
+        assertEquals("96cb036911d3b549acec9bfa858a050e", sqs.sendMessage(queueUrl, "\u00fc\ud83d\ude00").getMD5OfMessageBody());
+    }
+
+    @Test
+    public void messageWithoutAttributesHasNoAttributeDigest() {
+        assertNull(sqs.sendMessage(queueUrl, "plain").getMD5OfMessageAttributes());
+        assertNull(receive().getMessages().get(0).getMD5OfMessageAttributes());
+    }
+
+    @Test
+    public void sendAndReceiveDigestsMatchTheSdks() {
+        final SendMessageRequest request = new SendMessageRequest(queueUrl, "body \u00fc \ud83d\ude00").withMessageAttributes(attributes());
+        check(request, sqs.sendMessage(request));
+        final ReceiveMessageResult received = receive();
+        assertEquals(1, received.getMessages().size());
+        check(new ReceiveMessageRequest(queueUrl), received);
+    }
+
+    @Test
+    public void batchDigestsMatchTheSdks() {
+        final List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+        entries.add(new SendMessageBatchRequestEntry("plain", "no attributes"));
+        entries.add(new SendMessageBatchRequestEntry("typed", "attributes").withMessageAttributes(attributes()));
+        final SendMessageBatchRequest request = new SendMessageBatchRequest(queueUrl, entries);
+        final SendMessageBatchResult result = sqs.sendMessageBatch(request);
+        assertEquals(2, result.getSuccessful().size());
+        check(request, result);
+        check(new ReceiveMessageRequest(queueUrl), receive());
+    }
+
+    @Test
+    public void checkCatchesAWrongDigest() {
+        final SendMessageRequest request = new SendMessageRequest(queueUrl, "body").withMessageAttributes(attributes());
+        final SendMessageResult result = sqs.sendMessage(request);
+        result.setMD5OfMessageAttributes(sqs.sendMessage(queueUrl, "other").getMD5OfMessageBody());
+        try {
+            check(request, result);
+            fail("The SDK accepted a wrong digest");
+        } catch (AmazonClientException ex) {
+            // Expected, so the checks above do check something
+        }
+    }
+
+    @Test
+    public void markerAnywhereInABodyForcesItsException() {
+        expectServiceException("before " + AmazonSQSMock.MARKER_SERVICE_EXCEPTION.toUpperCase() + " after");
+        expectServiceException("ends with " + AmazonSQSMock.MARKER_SERVICE_EXCEPTION);
+        expectServiceException(AmazonSQSMock.MARKER_SERVICE_EXCEPTION);
+        try {
+            sqs.sendMessage(queueUrl, "x Mock-Aws-Client-Exception");
+            fail("Client marker was not noticed");
+        } catch (AmazonServiceException ex) {
+            fail("Expected a client exception: " + ex);
+        } catch (AmazonClientException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void nearMissesAndDisabledMarkersAreSent() {
+        final String marker = AmazonSQSMock.MARKER_SERVICE_EXCEPTION;
+        sqs.sendMessage(queueUrl, marker.substring(0, marker.length() - 1));
+        sqs.sendMessage(queueUrl, marker.substring(1));
+        sqs.sendMessage(queueUrl, marker.replace('-', ' '));
+        sqs.setExceptionMarkersEnabled(false);
+        sqs.sendMessage(queueUrl, marker);
+        assertEquals("4", sqs.getQueueAttributes(queueUrl, Arrays.asList(AmazonSQSMock.NUM_MSGS)).getAttributes()
+                .get(AmazonSQSMock.NUM_MSGS));
+    }
+
+    private void expectServiceException(final String body) {
+        try {
+            sqs.sendMessage(queueUrl, body);
+            fail("Service marker was not noticed: " + body);
+        } catch (AmazonServiceException ex) {
+            // Expected
+        }
+    }
+
+    private ReceiveMessageResult receive() {
+        return sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(10).withMessageAttributeNames("All"));
+    }
+
+    /**
+     * Runs the SDK's checks of a call's result, as its client does once a response arrives.
+     *
+     * @throws AmazonClientException if a digest does not match
+     */
+    private <T extends AmazonWebServiceRequest> void check(final T request, final Object result) {
+        sdk.afterResponse(new DefaultRequest<T>(request, "AmazonSQS"), result, null);
+        if (result instanceof ReceiveMessageResult) {
+            for (final Message msg : ((ReceiveMessageResult) result).getMessages()) {
+                if (!msg.getMessageAttributes().isEmpty()) { assertEquals(attributes(), msg.getMessageAttributes()); }
+            }
+        }
+    }
+
+    private static Map<String, MessageAttributeValue> attributes() {
+        final Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+        attributes.put("text", new MessageAttributeValue().withDataType("String").withStringValue("h\u00e9llo \ud83d\ude00"));
+        attributes.put("count", new MessageAttributeValue().withDataType("Number").withStringValue("-12.5e3"));
+        attributes.put("id", new MessageAttributeValue().withDataType("Number.int").withStringValue("42"));
+        attributes.put("raw", new MessageAttributeValue().withDataType("Binary").withBinaryValue(ByteBuffer.wrap(new byte[] { 0, 1, -2, 127 })));
+        attributes.put("custom", new MessageAttributeValue().withDataType("Binary.custom").withBinaryValue(ByteBuffer.wrap(new byte[] { 9 })));
+        return attributes;
+    }
+}
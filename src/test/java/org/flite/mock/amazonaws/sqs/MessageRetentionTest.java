@@ -0,0 +1,146 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+public class MessageRetentionTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private TimerWheel timer;
+    private QueueState queue;
+    private long start;
+
+    @Before
+    public void setUp() {
+        timer = new TimerWheel("retention-test");
+        queue = new QueueState(1, AmazonSQSMock.QUEUE_URL_PREFIX + "test", "test", false, timer, new MemoryBudget(), Journal.NONE);
+        start = System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        queue.markDeleted();
+        timer.shutdown();
+    }
+
+    @Test
+    public void segmentsCoverASixteenthOfThePeriod() {
+        assertEquals(TimeUnit.SECONDS.toMillis(AmazonSQSMock.DEFAULT_RETENTION_PERIOD) / MessageRetention.SEGMENTS_PER_PERIOD,
+                queue.retention.segmentMillis());
+        // Never shorter than the minimum, however short the period
+        queue.messageRetentionPeriod = 1;
+        assertEquals(MessageRetention.MIN_SEGMENT_MILLIS, queue.retention.segmentMillis());
+    }
+
+    @Test
+    public void expiryDropsWholeSegmentsOnceTheyAgeOut() {
+        // Six hours to a segment at the default period
+        final StoredMessage first = message(1, start);
+        final StoredMessage second = message(2, start + HOUR);
+        final StoredMessage third = message(3, start + 7 * HOUR);
+        queue.visible.add(first);
+        queue.visible.add(second);
+        queue.visible.add(third);
+        assertEquals(start + 6 * HOUR, queue.visible.expiryBound());
+
+        // Nothing goes until everything the oldest segment could hold has aged out
+        assertTrue(queue.visible.expire(start + 6 * HOUR - 1).isEmpty());
+        assertEquals(3, queue.visible.size());
+        assertEquals(Arrays.asList(first, second), queue.visible.expire(start + 6 * HOUR));
+        assertEquals(1, queue.visible.size());
+        assertEquals(start + 13 * HOUR, queue.visible.expiryBound());
+
+        assertEquals(Arrays.asList(third), queue.visible.expire(start + 13 * HOUR));
+        assertEquals(0, queue.visible.size());
+        assertEquals(Long.MAX_VALUE, queue.visible.expiryBound());
+        // The store opens a new segment for the next message
+        final StoredMessage fourth = message(4, start + 14 * HOUR);
+        queue.visible.add(fourth);
+        assertSame(fourth, queue.visible.poll());
+    }
+
+    @Test
+    public void returnedMessageHoldsBackTheHeadSegment() {
+        final StoredMessage first = message(1, start);
+        queue.visible.add(first);
+        queue.visible.add(message(2, start + 7 * HOUR));
+        assertSame(first, queue.visible.poll());
+
+        // Sent after the head segment's window, but returned to the head
+        final StoredMessage returned = message(3, start + 8 * HOUR);
+        queue.visible.addFirst(returned);
+        assertEquals(start + 8 * HOUR + 1, queue.visible.expiryBound());
+        assertTrue(queue.visible.expire(start + 6 * HOUR).isEmpty());
+        assertEquals(Arrays.asList(returned), queue.visible.expire(start + 8 * HOUR + 1));
+        assertEquals(1, queue.visible.size());
+    }
+
+    @Test
+    public void mockExpiresVisibleAndReturningMessages() throws Exception {
+        final AmazonSQSMock sqs = new AmazonSQSMock();
+        try {
+            final String url = sqs.createQueue("short").getQueueUrl();
+            // Shorter than SetQueueAttributes allows, so the test need not wait a minute
+            final QueueState state = queueOf(sqs, url);
+            state.messageRetentionPeriod = 1;
+            state.retention.periodChanged();
+
+            sqs.sendMessage(url, "one");
+            sqs.sendMessage(url, "two");
+            sqs.sendMessage(url, "held");
+            final long perMessage = sqs.getStoredBytes() / 3;
+            final List<Message> held = sqs.receiveMessage(new ReceiveMessageRequest(url).withMaxNumberOfMessages(1)
+                    .withVisibilityTimeout(60)).getMessages();
+            assertEquals(1, held.size());
+
+            // A segment expires once its window and the period have both passed
+            final long deadline = System.currentTimeMillis() + 2 * MessageRetention.MIN_SEGMENT_MILLIS + 2000;
+            while (!"0".equals(attribute(sqs, url, AmazonSQSMock.NUM_MSGS)) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals("0", attribute(sqs, url, AmazonSQSMock.NUM_MSGS));
+            assertEquals(2, sqs.getMetrics().getQueue("short").getExpired());
+            assertEquals(perMessage, sqs.getStoredBytes());
+
+            // The message in flight is dropped when it comes back, rather than made visible
+            sqs.changeMessageVisibility(url, held.get(0).getReceiptHandle(), 0);
+            assertEquals("0", attribute(sqs, url, AmazonSQSMock.NUM_MSGS));
+            assertEquals("0", attribute(sqs, url, AmazonSQSMock.NUM_NOT_VISIBLE));
+            assertEquals(3, sqs.getMetrics().getQueue("short").getExpired());
+            assertEquals(0, sqs.getStoredBytes());
+        } finally {
+            sqs.shutdown();
+        }
+    }
+
+    private static StoredMessage message(final long id, final long sentAt) {
+        return StoredMessage.encode(id, sentAt, "m" + id, null, AmazonSQSMock.MAX_MESSAGE_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static QueueState queueOf(final AmazonSQSMock sqs, final String url) throws Exception {
+        final Field field = AmazonSQSMock.class.getDeclaredField("allQueues");
+        field.setAccessible(true);
+        return ((Map<String, QueueState>) field.get(sqs)).get(url);
+    }
+
+    private static String attribute(final AmazonSQSMock sqs, final String url, final String name) {
+        return sqs.getQueueAttributes(url, Collections.singletonList(name)).getAttributes().get(name);
+    }
+}
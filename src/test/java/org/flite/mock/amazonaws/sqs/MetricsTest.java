@@ -0,0 +1,177 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+public class MetricsTest {
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue("test").getQueueUrl();
+    }
+
+    @After
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Test
+    public void operationsAreCountedAndTimed() {
+        final MetricsSnapshot before = sqs.getMetrics();
+        assertEquals(0, before.getOperation("SendMessage").getCount());
+
+        for (int ix = 0; ix < 20; ix++) { sqs.sendMessage(queueUrl, "m" + ix); }
+        final List<Message> messages = receive(10);
+        for (int ix = 0; ix < 4; ix++) { sqs.deleteMessage(queueUrl, messages.get(ix).getReceiptHandle()); }
+        try {
+            sqs.deleteMessage(queueUrl, "bogus");
+            fail("Deleted with a made-up receipt handle");
+        } catch (AmazonServiceException ex) {
+            // Expected, and counted as an error
+        }
+
+        final MetricsSnapshot after = sqs.getMetrics();
+        assertTrue(after.getTimestamp() >= before.getTimestamp());
+        final OperationMetrics send = after.getOperation("SendMessage");
+        assertEquals(20, send.getCount());
+        assertEquals(0, send.getErrors());
+        assertTrue(send.toString(), send.getP50Micros() > 0);
+        assertTrue(send.toString(), send.getP50Micros() <= send.getP99Micros());
+        assertTrue(send.toString(), send.getP99Micros() <= send.getMaxMicros());
+        assertTrue(send.toString(), send.getMeanMicros() > 0);
+        final OperationMetrics delete = after.getOperation("DeleteMessage");
+        assertEquals(5, delete.getCount());
+        assertEquals(1, delete.getErrors());
+        assertEquals(1, after.getOperation("ReceiveMessage").getCount());
+        assertEquals(0, after.getOperation("PurgeQueue").getCount());
+
+        final QueueMetrics queue = after.getQueue("test");
+        assertEquals(20, queue.getSent());
+        assertEquals(10, queue.getReceived());
+        assertEquals(4, queue.getDeleted());
+        assertEquals(10, queue.getVisible());
+        assertEquals(6, queue.getInFlight());
+        assertEquals(queueUrl, queue.getUrl());
+        assertEquals(after.getStoredBytes(), queue.getStoredBytes());
+    }
+
+    @Test
+    public void longPollLatencyIsRecorded() {
+        receive(1, 1);
+        final OperationMetrics receive = sqs.getMetrics().getOperation("ReceiveMessage");
+        assertEquals(1, receive.getCount());
+        assertTrue(receive.toString(), receive.getMaxMicros() >= 900000);
+        final QueueMetrics queue = sqs.getMetrics().getQueue("test");
+        assertEquals(1, queue.getReceives());
+        assertEquals(1, queue.getEmptyReceives());
+        assertEquals(1.0, queue.getEmptyReceiveRatio(), 0.0);
+    }
+
+    @Test
+    public void metricsAreAvailableOverJmx() throws Exception {
+        sqs.sendMessage(queueUrl, "counted");
+        final ObjectName name = sqs.registerMBean("metrics-test");
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertEquals(1, server.getAttribute(name, "QueueCount"));
+            assertEquals(sqs.getStoredBytes(), server.getAttribute(name, "StoredBytes"));
+            final CompositeData[] queues = (CompositeData[]) server.getAttribute(name, "Queues");
+            assertEquals(1, queues.length);
+            assertEquals(1, QueueMetrics.from(queues[0]).getSent());
+        } finally {
+            sqs.shutdown();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void queueAttributesIncludeTimestampsPolicyAndRetention() throws Exception {
+        final long now = System.currentTimeMillis() / 1000;
+        Map<String, String> attributes = attributes(AmazonSQSMock.ALL);
+        final long created = Long.parseLong(attributes.get(AmazonSQSMock.CREATED_TIMESTAMP));
+        assertTrue(Math.abs(created - now) <= 1);
+        assertEquals(attributes.get(AmazonSQSMock.CREATED_TIMESTAMP), attributes.get(AmazonSQSMock.MODIFIED_TIMESTAMP));
+        assertEquals(String.valueOf(AmazonSQSMock.DEFAULT_RETENTION_PERIOD), attributes.get(AmazonSQSMock.RETENTION));
+        assertFalse(attributes.containsKey(AmazonSQSMock.POLICY));
+
+        // Timestamps are in seconds
+        while (System.currentTimeMillis() / 1000 <= created) { Thread.sleep(50); }
+        final String policy = "{\"Version\":\"2012-10-17\",\"Statement\":[]}";
+        final Map<String, String> changes = new HashMap<String, String>();
+        changes.put(AmazonSQSMock.POLICY, policy);
+        changes.put(AmazonSQSMock.RETENTION, "60");
+        sqs.setQueueAttributes(queueUrl, changes);
+
+        attributes = attributes(AmazonSQSMock.POLICY, AmazonSQSMock.RETENTION, AmazonSQSMock.CREATED_TIMESTAMP,
+                AmazonSQSMock.MODIFIED_TIMESTAMP);
+        assertEquals(4, attributes.size());
+        assertEquals(policy, attributes.get(AmazonSQSMock.POLICY));
+        assertEquals("60", attributes.get(AmazonSQSMock.RETENTION));
+        assertEquals(created, Long.parseLong(attributes.get(AmazonSQSMock.CREATED_TIMESTAMP)));
+        assertTrue(Long.parseLong(attributes.get(AmazonSQSMock.MODIFIED_TIMESTAMP)) > created);
+        final QueueMetrics queue = sqs.getMetrics().getQueue("test");
+        assertEquals(created, queue.getCreatedTimestamp());
+        assertEquals(Long.parseLong(attributes.get(AmazonSQSMock.MODIFIED_TIMESTAMP)), queue.getLastModifiedTimestamp());
+    }
+
+    @Test
+    public void readOnlyAndOutOfRangeAttributesAreRejected() {
+        expectRejected(AmazonSQSMock.CREATED_TIMESTAMP, "1");
+        expectRejected(AmazonSQSMock.MODIFIED_TIMESTAMP, "1");
+        expectRejected(AmazonSQSMock.RETENTION, String.valueOf(AmazonSQSMock.MIN_RETENTION_PERIOD - 1));
+        expectRejected(AmazonSQSMock.RETENTION, String.valueOf(AmazonSQSMock.MAX_RETENTION_PERIOD + 1));
+        assertEquals(String.valueOf(AmazonSQSMock.DEFAULT_RETENTION_PERIOD), attributes(AmazonSQSMock.RETENTION).get(AmazonSQSMock.RETENTION));
+    }
+
+    private void expectRejected(final String name, final String value) {
+        try {
+            sqs.setQueueAttributes(queueUrl, Collections.singletonMap(name, value));
+            fail("Set " + name + " to " + value);
+        } catch (AmazonServiceException ex) {
+            // Expected
+        }
+    }
+
+    private List<Message> receive(final int count) {
+        return receive(count, 0);
+    }
+
+    private List<Message> receive(final int count, final int waitTime) {
+        return sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(count).withVisibilityTimeout(60)
+                .withWaitTimeSeconds(waitTime)).getMessages();
+    }
+
+    private Map<String, String> attributes(final String... names) {
+        final Map<String, String> attributes = sqs.getQueueAttributes(new GetQueueAttributesRequest(queueUrl)
+                .withAttributeNames(Arrays.asList(names))).getAttributes();
+        assertNotNull(attributes);
+        return attributes;
+    }
+}
@@ -0,0 +1,197 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+/**
+ * Drives a server on a free port with the SDK's own client, so every call goes through request
+ * parsing, response encoding and the client's checks of what comes back, MD5s included.
+ */
+public class MockServerTest {
+
+    private AmazonSQSMock mock;
+    private AmazonSQSMockServer server;
+    private AmazonSQSClient client;
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        mock = new AmazonSQSMock();
+        server = new AmazonSQSMockServer(mock, 0);
+        server.start();
+        client = new AmazonSQSClient(new BasicAWSCredentials("key", "secret"));
+        client.setEndpoint(server.getEndpoint());
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+        client.shutdown();
+        server.stop();
+        mock.shutdown();
+    }
+
+    @Test
+    public void queueUrlsAreUnderTheServersAddress() {
+        final String url = client.createQueue("served").getQueueUrl();
+        assertTrue(url, url.startsWith(server.getEndpoint()));
+        assertEquals(url, client.getQueueUrl("served").getQueueUrl());
+        assertEquals(Arrays.asList(url), client.listQueues().getQueueUrls());
+    }
+
+    @Test
+    public void messageMakesARoundTripWithItsAttributes() {
+        final String url = client.createQueue("served").getQueueUrl();
+        final Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+        attributes.put("text", new MessageAttributeValue().withDataType("String").withStringValue("h\u00e9llo <&> \ud83d\ude00"));
+        attributes.put("count", new MessageAttributeValue().withDataType("Number").withStringValue("42"));
+        attributes.put("custom", new MessageAttributeValue().withDataType("String.custom").withStringValue("typed"));
+        final String body = "body <x> & \u00fc \ud83d\ude00";
+
+        // The client checks both MD5s of the result, and fails the call if either is wrong
+        final SendMessageResult sent = client.sendMessage(new SendMessageRequest(url, body).withMessageAttributes(attributes));
+        final List<Message> received = client.receiveMessage(new ReceiveMessageRequest(url).withMaxNumberOfMessages(10)
+                .withMessageAttributeNames("All")).getMessages();
+        assertEquals(1, received.size());
+        final Message msg = received.get(0);
+        assertEquals(sent.getMessageId(), msg.getMessageId());
+        assertEquals(body, msg.getBody());
+        assertEquals(attributes, msg.getMessageAttributes());
+
+        client.deleteMessage(url, msg.getReceiptHandle());
+        try {
+            client.deleteMessage(url, msg.getReceiptHandle());
+            fail("Deleted the same message twice");
+        } catch (ReceiptHandleIsInvalidException ex) {
+            assertEquals(400, ex.getStatusCode());
+        }
+        assertEquals("0", client.getQueueAttributes(url, Arrays.asList(AmazonSQSMock.NUM_MSGS, AmazonSQSMock.NUM_NOT_VISIBLE))
+                .getAttributes().get(AmazonSQSMock.NUM_NOT_VISIBLE));
+    }
+
+    @Test
+    public void batchReportsEachEntrysOutcome() {
+        final String url = client.createQueue("served").getQueueUrl();
+        final List<SendMessageBatchRequestEntry> sends = new ArrayList<SendMessageBatchRequestEntry>();
+        for (int ix = 0; ix < 3; ix++) { sends.add(new SendMessageBatchRequestEntry("s" + ix, "m" + ix)); }
+        assertEquals(3, client.sendMessageBatch(url, sends).getSuccessful().size());
+
+        final List<DeleteMessageBatchRequestEntry> deletes = new ArrayList<DeleteMessageBatchRequestEntry>();
+        for (final Message msg : client.receiveMessage(new ReceiveMessageRequest(url).withMaxNumberOfMessages(10)).getMessages()) {
+            deletes.add(new DeleteMessageBatchRequestEntry("d" + deletes.size(), msg.getReceiptHandle()));
+        }
+        assertEquals(3, deletes.size());
+        deletes.add(new DeleteMessageBatchRequestEntry("bad", "no-such-handle"));
+        final DeleteMessageBatchResult result = client.deleteMessageBatch(url, deletes);
+        assertEquals(3, result.getSuccessful().size());
+        assertEquals(1, result.getFailed().size());
+        final BatchResultErrorEntry failed = result.getFailed().get(0);
+        assertEquals("bad", failed.getId());
+        assertEquals("ReceiptHandleIsInvalid", failed.getCode());
+        assertTrue(failed.getSenderFault());
+    }
+
+    @Test
+    public void missingQueueIsReportedAsSuch() {
+        try {
+            client.getQueueUrl("missing");
+            fail("Found a queue that was never created");
+        } catch (QueueDoesNotExistException ex) {
+            assertEquals(400, ex.getStatusCode());
+        }
+    }
+
+    @Test
+    public void longPollIsAnsweredWhenAMessageArrives() throws Exception {
+        final String url = client.createQueue("served").getQueueUrl();
+        final Future<List<Message>> poll = pool.submit(new Callable<List<Message>>() {
+            public List<Message> call() {
+                return client.receiveMessage(new ReceiveMessageRequest(url).withMaxNumberOfMessages(1)
+                        .withWaitTimeSeconds(10)).getMessages();
+            }
+        });
+        Thread.sleep(300);
+        assertFalse(poll.isDone());
+        client.sendMessage(url, "wake");
+        final List<Message> messages = poll.get(5, TimeUnit.SECONDS);
+        assertEquals(1, messages.size());
+        assertEquals("wake", messages.get(0).getBody());
+    }
+
+    @Test
+    public void pipelinedRequestsAreAnsweredInOrder() throws Exception {
+        client.createQueue("first");
+        client.createQueue("second");
+        final Socket socket = new Socket("localhost", server.getPort());
+        try {
+            socket.setSoTimeout(5000);
+            // Both requests go out before either response is read, on one kept-alive connection
+            final OutputStream out = socket.getOutputStream();
+            out.write((request("Action=GetQueueUrl&QueueName=first") + request("Action=GetQueueUrl&QueueName=second"))
+                    .getBytes("UTF-8"));
+            out.flush();
+
+            final InputStream in = socket.getInputStream();
+            final ByteArrayOutputStream read = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            String responses = "";
+            while (count(responses, "</GetQueueUrlResponse>") < 2) {
+                final int length = in.read(buffer);
+                if (length < 0) { break; }
+                read.write(buffer, 0, length);
+                responses = read.toString("UTF-8");
+            }
+            assertEquals(2, count(responses, "HTTP/1.1 200"));
+            assertTrue(responses, responses.indexOf("/first<") < responses.indexOf("/second<"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String request(final String form) {
+        return "POST / HTTP/1.1\r\nHost: localhost:" + server.getPort() + "\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + form.length() + "\r\n\r\n" + form;
+    }
+
+    private static int count(final String str, final String part) {
+        int count = 0;
+        for (int at = str.indexOf(part); at >= 0; at = str.indexOf(part, at + 1)) { count++; }
+        return count;
+    }
+}
@@ -0,0 +1,81 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+/**
+ * A message must come back exactly as it was sent, whether it is held on the heap or read from
+ * a mapped file region, as a durable mock recovers it.
+ */
+public class StoredMessageTest {
+
+    private static final long ID = 1234567890123L;
+    private static final long SENT_AT = 1500000000000L;
+
+    @Test
+    public void heapMessageReturnsWhatWasSent() {
+        final HeapMessage stored = StoredMessage.encode(ID, SENT_AT, "body \u00fc \ud83d\ude00", attributes(), AmazonSQSMock.MAX_MESSAGE_SIZE);
+        check(stored, "body \u00fc \ud83d\ude00", attributes());
+    }
+
+    @Test
+    public void mappedMessageReturnsWhatWasSent() {
+        final HeapMessage heap = StoredMessage.encode(ID, SENT_AT, "mapped", attributes(), AmazonSQSMock.MAX_MESSAGE_SIZE);
+        // Somewhere in the middle of a larger direct buffer, as in a mapped file
+        final int offset = 37;
+        final ByteBuffer region = ByteBuffer.allocateDirect(offset + heap.size() + 11);
+        region.position(offset);
+        region.put(heap.encoded());
+        final MappedMessage mapped = new MappedMessage(region, offset, heap.size());
+        assertEquals(heap.size(), mapped.size());
+        check(mapped, "mapped", attributes());
+        assertEquals(heap.toMessage(), mapped.toMessage());
+    }
+
+    @Test
+    public void messageWithoutAttributesHasNone() {
+        final HeapMessage stored = StoredMessage.encode(ID, SENT_AT, "", null, AmazonSQSMock.MAX_MESSAGE_SIZE);
+        final Message msg = stored.toMessage();
+        assertEquals("", msg.getBody());
+        assertNull(stored.md5OfMessageAttributes());
+        assertEquals(0, msg.getMessageAttributes().size());
+    }
+
+    private static void check(final StoredMessage stored, final String body, final Map<String, MessageAttributeValue> attributes) {
+        assertEquals(ID, stored.idNumber());
+        assertEquals(SENT_AT, stored.sentAt());
+        assertEquals(AmazonSQSMock.MESSAGE_ID_PREFIX + ID, stored.messageId());
+        final Message msg = stored.toMessage();
+        assertEquals(stored.messageId(), msg.getMessageId());
+        assertEquals(body, msg.getBody());
+        assertEquals(attributes, msg.getMessageAttributes());
+        assertEquals(stored.md5OfBody(), msg.getMD5OfBody());
+        assertEquals(stored.md5OfMessageAttributes(), msg.getMD5OfMessageAttributes());
+        assertEquals("h\u00e9llo", stored.stringAttribute("text"));
+        assertEquals("", stored.stringAttribute("empty"));
+        assertNull(stored.stringAttribute("raw"));
+        assertNull(stored.stringAttribute("missing"));
+    }
+
+    private static Map<String, MessageAttributeValue> attributes() {
+        final Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+        attributes.put("text", new MessageAttributeValue().withDataType("String").withStringValue("h\u00e9llo"));
+        attributes.put("empty", new MessageAttributeValue().withDataType("String").withStringValue(""));
+        attributes.put("count", new MessageAttributeValue().withDataType("Number.float").withStringValue("3.25"));
+        attributes.put("raw", new MessageAttributeValue().withDataType("Binary").withBinaryValue(ByteBuffer.wrap(new byte[] { 0, -1, 2 })));
+        attributes.put("strings", new MessageAttributeValue().withDataType("String").withStringListValues(Arrays.asList("a", "b")));
+        attributes.put("blobs", new MessageAttributeValue().withDataType("Binary")
+                .withBinaryListValues(Arrays.asList(ByteBuffer.wrap(new byte[] { 1 }), ByteBuffer.wrap(new byte[0]))));
+        return attributes;
+    }
+}
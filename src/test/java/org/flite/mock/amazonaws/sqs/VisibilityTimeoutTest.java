@@ -0,0 +1,98 @@
+package org.flite.mock.amazonaws.sqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+
+public class VisibilityTimeoutTest {
+
+    private AmazonSQSMock sqs;
+    private String queueUrl;
+
+    @Before
+    public void setUp() {
+        sqs = new AmazonSQSMock();
+        queueUrl = sqs.createQueue("test").getQueueUrl();
+    }
+
+    @After
+    public void tearDown() {
+        sqs.shutdown();
+    }
+
+    @Test
+    public void messageReturnsOnceItsVisibilityTimeoutExpires() throws Exception {
+        sqs.sendMessage(queueUrl, "first");
+        sqs.sendMessage(queueUrl, "second");
+        final Message first = receive(1, 1).get(0);
+        assertEquals("first", first.getBody());
+        assertEquals("1", attribute(AmazonSQSMock.NUM_NOT_VISIBLE));
+        Thread.sleep(2500);
+
+        // Back at the head of the queue, ahead of the message sent after it
+        assertEquals("0", attribute(AmazonSQSMock.NUM_NOT_VISIBLE));
+        final Message again = receive(1, 60).get(0);
+        assertEquals(first.getMessageId(), again.getMessageId());
+        assertNotEquals(first.getReceiptHandle(), again.getReceiptHandle());
+        assertEquals("second", receive(1, 60).get(0).getBody());
+    }
+
+    @Test
+    public void visibilityTimeoutOfZeroReturnsTheMessageAtOnce() {
+        sqs.sendMessage(queueUrl, "only");
+        final Message msg = receive(1, 60).get(0);
+        assertTrue(receive(1, 60).isEmpty());
+        sqs.changeMessageVisibility(queueUrl, msg.getReceiptHandle(), 0);
+        final List<Message> again = receive(1, 60);
+        assertEquals(1, again.size());
+        assertEquals(msg.getMessageId(), again.get(0).getMessageId());
+    }
+
+    @Test
+    public void messageIsHiddenUntilItsVisibilityTimeoutExpires() throws Exception {
+        sqs.sendMessage(queueUrl, "hidden");
+        final long receivedAt = System.nanoTime();
+        receive(1, 2);
+        final List<Message> early = receive(1, 60);
+        if (System.nanoTime() - receivedAt < TimeUnit.SECONDS.toNanos(2)) { assertTrue(early.isEmpty()); }
+        Thread.sleep(2500);
+        assertEquals(1, receive(1, 60).size());
+    }
+
+    @Test
+    public void callsFailOnceShutDown() {
+        sqs.shutdown();
+        try {
+            sqs.sendMessage(queueUrl, "late");
+            fail("Sent after shutdown");
+        } catch (AmazonServiceException ex) {
+            fail("Expected a client exception: " + ex);
+        } catch (AmazonClientException ex) {
+            assertNull(ex.getCause());
+        }
+    }
+
+    private List<Message> receive(final int max, final int visibilityTimeout) {
+        return sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(max)
+                .withVisibilityTimeout(visibilityTimeout)).getMessages();
+    }
+
+    private String attribute(final String name) {
+        return sqs.getQueueAttributes(queueUrl, Collections.singletonList(name)).getAttributes().get(name);
+    }
+}